@@ -323,7 +323,7 @@ public class BPMF extends IterativeRecommender {
 
     @Override
     protected double predict(int u, int j) throws Exception {
-        return globalMean + DenseMatrix.rowMult(P, u, Q, j);
+        return globalMean + carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
     }
 
     @Override
@@ -84,18 +84,7 @@ public class BiasedMF extends IterativeRecommender {
 
                 loss += regB * bj * bj;
 
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-
-                    double delta_u = euj * qjf - regU * puf;
-                    double delta_j = euj * puf - regI * qjf;
-
-                    P.add(u, f, lRate * delta_u);
-                    Q.add(j, f, lRate * delta_j);
-
-                    loss += regU * puf * puf + regI * qjf * qjf;
-                }
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, lRate, regU, regI);
 
             }
             loss *= 0.5;
@@ -110,7 +99,22 @@ public class BiasedMF extends IterativeRecommender {
 
     @Override
     protected double predict(int u, int j) throws Exception {
-        return globalMean + userBias.get(u) + itemBias.get(j) + DenseMatrix.rowMult(P, u, Q, j);
+        return globalMean + userBias.get(u) + itemBias.get(j) + carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
+    }
+
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        u = splitUser(u, c);
+        double[] scores = isItemSplitting ? new double[numItems] : out;
+
+        // Q * p_u, plus the biases
+        carskit.data.structure.DenseMatrix.rowMults(Q, carskit.data.structure.DenseMatrix.rowOf(P, u), scores);
+        double base = globalMean + userBias.get(u);
+        for (int j = 0; j < scores.length; j++)
+            scores[j] = base + itemBias.get(j) + scores[j];
+
+        if (isItemSplitting)
+            gatherSplitItems(c, scores, out);
     }
 
     public double getMaxUserID()
@@ -19,18 +19,12 @@
 package carskit.alg.baseline.cf;
 
 
+import carskit.data.structure.NeighborIndex;
 import carskit.generic.Recommender;
 import librec.data.SparseMatrix;
 import librec.data.DenseVector;
 import librec.data.SparseVector;
-import librec.data.SymmMatrix;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map.Entry;
-
-import happy.coding.io.Lists;
 import happy.coding.io.Strings;
 import happy.coding.math.Stats;
 import happy.coding.io.Logs;
@@ -45,8 +39,8 @@ import happy.coding.io.Logs;
 
 public class ItemKNN extends Recommender {
 
-    // user: nearest neighborhood
-    private SymmMatrix itemCorrs;
+    // item: nearest neighborhood
+    private NeighborIndex itemNNs;
     private DenseVector itemMeans;
 
 
@@ -60,7 +54,7 @@ public class ItemKNN extends Recommender {
     protected void initModel() throws Exception {
         super.initModel();
 
-        itemCorrs = buildCorrs(false);
+        itemNNs = buildNeighbors(false, 0);
         itemMeans = new DenseVector(numItems);
         for (int i = 0; i < numItems; i++) {
             SparseVector vs = train.column(i);
@@ -81,45 +75,65 @@ public class ItemKNN extends Recommender {
     @Override
     protected double predict(int u, int j) throws Exception{
 
-        // find a number of similar items
-        Map<Integer, Double> nns = new HashMap<>();
-
-        SparseVector dv = itemCorrs.row(j);
-        for (int i : dv.getIndex()) {
-            double sim = dv.get(i);
+        // topN similar items rated by user u, from the most similar one
+        double sum = 0, ws = 0;
+        int count = 0;
+        for (int k = 0, size = itemNNs.size(j); k < size && (knn <= 0 || count < knn); k++) {
+            int i = itemNNs.neighbor(j, k);
+            double sim = itemNNs.similarity(j, k);
             double rate = train.get(u, i);
 
-            if (isRankingPred && rate > 0)
-                nns.put(i, sim);
-            else if (sim > 0 && rate > 0)
-                nns.put(i, sim);
-        }
-
-        // topN similar items
-        if (knn > 0 && knn < nns.size()) {
-            List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-            List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-            nns.clear();
-            for (Map.Entry<Integer, Double> kv : subset)
-                nns.put(kv.getKey(), kv.getValue());
+            // similarity could be negative for item ranking
+            if (rate > 0 && (isRankingPred || sim > 0)) {
+                sum += sim * (rate - itemMeans.get(i));
+                ws += Math.abs(sim);
+                count++;
+            }
         }
 
-        if (nns.size() == 0)
+        if (count == 0)
             return globalMean;
-        else {
-            double sum = 0, ws = 0;
-            for (Entry<Integer, Double> en : nns.entrySet()) {
-                int i = en.getKey();
-                double sim = en.getValue();
-                double rate = train.get(u, i);
+        else
+            return ws > 0 ? itemMeans.get(j) + sum / ws : globalMean;
 
-                sum += sim * (rate - itemMeans.get(i));
-                ws += Math.abs(sim);
+    }
+
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        u = splitUser(u, c);
+        double[] scores = isItemSplitting ? new double[numItems] : out;
+
+        // scatter the ratings of user u, so that the similar items of each item are looked up in constant time
+        int[] rowPtr = train.getRowPointers(), colInd = train.getColumnIndices();
+        double[] data = train.getData();
+        double[] ratings = new double[numItems];
+        for (int idx = rowPtr[u]; idx < rowPtr[u + 1]; idx++)
+            ratings[colInd[idx]] = data[idx];
+
+        for (int j = 0; j < scores.length; j++) {
+            // topN similar items rated by user u, from the most similar one
+            double sum = 0, ws = 0;
+            int count = 0;
+            for (int k = 0, size = itemNNs.size(j); k < size && (knn <= 0 || count < knn); k++) {
+                int i = itemNNs.neighbor(j, k);
+                double sim = itemNNs.similarity(j, k);
+                double rate = ratings[i];
+
+                if (rate > 0 && (isRankingPred || sim > 0)) {
+                    sum += sim * (rate - itemMeans.get(i));
+                    ws += Math.abs(sim);
+                    count++;
+                }
             }
 
-            return ws > 0 ? itemMeans.get(j) + sum / ws : globalMean;
+            if (count == 0)
+                scores[j] = globalMean;
+            else
+                scores[j] = ws > 0 ? itemMeans.get(j) + sum / ws : globalMean;
         }
 
+        if (isItemSplitting)
+            gatherSplitItems(c, scores, out);
     }
 
     @Override
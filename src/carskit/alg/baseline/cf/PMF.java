@@ -61,14 +61,7 @@ public class PMF extends IterativeRecommender {
                 loss += euj * euj;
 
                 // update factors
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f), qjf = Q.get(j, f);
-
-                    P.add(u, f, lRate * (euj * qjf - regU * puf));
-                    Q.add(j, f, lRate * (euj * puf - regI * qjf));
-
-                    loss += regU * puf * puf + regI * qjf * qjf;
-                }
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, lRate, regU, regI);
 
             }
 
@@ -93,6 +86,6 @@ public class PMF extends IterativeRecommender {
     @Override
     protected double predict(int u, int j) throws Exception{
 
-        return DenseMatrix.rowMult(P, u, Q, j);
+        return carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
     }
 }
@@ -34,7 +34,7 @@ import java.util.List;
 
 public class SVDPlusPlus extends BiasedMF {
 
-    protected DenseMatrix Y;
+    protected carskit.data.structure.DenseMatrix Y;
 
     public SVDPlusPlus(SparseMatrix trainMatrix, SparseMatrix testMatrix, int fold) {
         super(trainMatrix, testMatrix, fold);
@@ -46,7 +46,7 @@ public class SVDPlusPlus extends BiasedMF {
     protected void initModel() throws Exception {
         super.initModel();
 
-        Y = new DenseMatrix(numItems, numFactors);
+        Y = createDenseMatrix(numItems, numFactors);
         Y.init(initMean, initStd);
 
         userItemsCache = train.rowColumnsCache(cacheSpec);
@@ -94,25 +94,17 @@ public class SVDPlusPlus extends BiasedMF {
                     sum_ys[f] = w > 0 ? sum_f / w : sum_f;
                 }
 
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-
-                    double sgd_u = euj * qjf - regU * puf;
-                    double sgd_j = euj * (puf + sum_ys[f]) - regI * qjf;
-
-                    P.add(u, f, lRate * sgd_u);
-                    Q.add(j, f, lRate * sgd_j);
+                // the steps of y_k read the item factors before their own step
+                double[] qj = carskit.data.structure.DenseMatrix.rowOf(Q, j);
 
-                    loss += regU * puf * puf + regI * qjf * qjf;
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, lRate, regU, regI);
+                carskit.data.structure.DenseMatrix.rowAxpy(Q, j, lRate * euj, sum_ys);
 
-                    for (int k : items) {
-                        double ykf = Y.get(k, f);
-                        double delta_y = euj * qjf / w - regU * ykf;
-                        Y.add(k, f, lRate * delta_y);
+                for (int k : items) {
+                    loss += regU * Y.rowDot(k, Y, k);
 
-                        loss += regU * ykf * ykf;
-                    }
+                    Y.rowScale(k, 1 - lRate * regU);
+                    Y.rowAxpy(k, lRate * euj / w, qj);
                 }
 
             }
@@ -138,11 +130,34 @@ public class SVDPlusPlus extends BiasedMF {
     @Override
     protected double predict(int u, int j) throws Exception {
 
-        double pred = globalMean + userBias.get(u) + itemBias.get(j) + DenseMatrix.rowMult(P, u, Q, j);
+        double pred = globalMean + userBias.get(u) + itemBias.get(j) + carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
         List<Integer> items = userItemsCache.get(u);
         double w = Math.sqrt(items.size());
         for (int k : items)
-            pred += DenseMatrix.rowMult(Y, k, Q, j) / w;
+            pred += carskit.data.structure.DenseMatrix.rowMult(Y, k, Q, j) / w;
         return pred;
     }
+
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        u = splitUser(u, c);
+        double[] scores = isItemSplitting ? new double[numItems] : out;
+
+        // implicit user factors: p_u plus the factors of the rated items, which are shared by all the items
+        double[] pu = carskit.data.structure.DenseMatrix.rowOf(P, u);
+        List<Integer> items = userItemsCache.get(u);
+        double w = Math.sqrt(items.size());
+        for (int k : items)
+            for (int f = 0; f < numFactors; f++)
+                pu[f] += Y.get(k, f) / w;
+
+        // Q * (implicit user factors), plus the biases
+        carskit.data.structure.DenseMatrix.rowMults(Q, pu, scores);
+        double base = globalMean + userBias.get(u);
+        for (int j = 0; j < scores.length; j++)
+            scores[j] = base + itemBias.get(j) + scores[j];
+
+        if (isItemSplitting)
+            gatherSplitItems(c, scores, out);
+    }
 }
@@ -19,18 +19,12 @@
 package carskit.alg.baseline.cf;
 
 
+import carskit.data.structure.NeighborIndex;
 import carskit.generic.Recommender;
 import librec.data.SparseMatrix;
 import librec.data.DenseVector;
 import librec.data.SparseVector;
-import librec.data.SymmMatrix;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map.Entry;
-
-import happy.coding.io.Lists;
 import happy.coding.io.Strings;
 import happy.coding.math.Stats;
 import happy.coding.io.Logs;
@@ -47,7 +41,7 @@ import happy.coding.io.Logs;
 public class UserKNN extends Recommender {
 
     // user: nearest neighborhood
-    private SymmMatrix userCorrs;
+    private NeighborIndex userNNs;
     private DenseVector userMeans;
 
 
@@ -62,7 +56,7 @@ public class UserKNN extends Recommender {
     @Override
     protected void initModel() throws Exception {
         super.initModel();
-        userCorrs = buildCorrs(true);
+        userNNs = buildNeighbors(true, 0);
         userMeans = new DenseVector(numUsers);
         for (int u = 0; u < numUsers; u++) {
             SparseVector uv = train.row(u);
@@ -83,45 +77,68 @@ public class UserKNN extends Recommender {
 
     @Override
     protected double predict(int u, int j) throws Exception {
-        // find a number of similar users
-        Map<Integer, Double> nns = new HashMap<>();
-
-        SparseVector dv = userCorrs.row(u);
-        for (int v : dv.getIndex()) {
-            double sim = dv.get(v);
+        // topN similar users who rated item j, from the most similar one
+        double sum = 0, ws = 0;
+        int count = 0;
+        for (int k = 0, size = userNNs.size(u); k < size && (knn <= 0 || count < knn); k++) {
+            int v = userNNs.neighbor(u, k);
+            double sim = userNNs.similarity(u, k);
             double rate = train.get(v, j);
 
-            if (isRankingPred && rate > 0)
-                nns.put(v, sim); // similarity could be negative for item ranking
-            else if (sim > 0 && rate > 0)
-                nns.put(v, sim);
-        }
-
-        // topN similar users
-        if (knn > 0 && knn < nns.size()) {
-            List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-            List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-            nns.clear();
-            for (Map.Entry<Integer, Double> kv : subset)
-                nns.put(kv.getKey(), kv.getValue());
+            // similarity could be negative for item ranking
+            if (rate > 0 && (isRankingPred || sim > 0)) {
+                sum += sim * (rate - userMeans.get(v));
+                ws += Math.abs(sim);
+                count++;
+            }
         }
 
-        if (nns.size() == 0)
+        if (count == 0)
             return  globalMean;
-        else {
-            double sum = 0, ws = 0;
-            for (Entry<Integer, Double> en : nns.entrySet()) {
-                int v = en.getKey();
-                double sim = en.getValue();
-                double rate = train.get(v, j);
+        else
+            return ws > 0 ? userMeans.get(u) + sum / ws : globalMean;
 
-                sum += sim * (rate - userMeans.get(v));
-                ws += Math.abs(sim);
+    }
+
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        u = splitUser(u, c);
+        double[] scores = isItemSplitting ? new double[numItems] : out;
+
+        // accumulate the ratings of the similar users over the items they have rated, from the most similar one, so
+        // that each item gets the same neighbors as by predict
+        int[] rowPtr = train.getRowPointers(), colInd = train.getColumnIndices();
+        double[] data = train.getData();
+        double[] sums = new double[scores.length], ws = new double[scores.length];
+        int[] counts = new int[scores.length];
+        for (int k = 0, size = userNNs.size(u); k < size; k++) {
+            double sim = userNNs.similarity(u, k);
+            if (!isRankingPred && sim <= 0)
+                continue;
+
+            int v = userNNs.neighbor(u, k);
+            double mean = userMeans.get(v);
+            for (int idx = rowPtr[v]; idx < rowPtr[v + 1]; idx++) {
+                int j = colInd[idx];
+                double rate = data[idx];
+                if (rate > 0 && (knn <= 0 || counts[j] < knn)) {
+                    sums[j] += sim * (rate - mean);
+                    ws[j] += Math.abs(sim);
+                    counts[j]++;
+                }
             }
+        }
 
-            return ws > 0 ? userMeans.get(u) + sum / ws : globalMean;
+        double userMean = userMeans.get(u);
+        for (int j = 0; j < scores.length; j++) {
+            if (counts[j] == 0)
+                scores[j] = globalMean;
+            else
+                scores[j] = ws[j] > 0 ? userMean + sums[j] / ws[j] : globalMean;
         }
 
+        if (isItemSplitting)
+            gatherSplitItems(c, scores, out);
     }
 
     @Override
@@ -78,28 +78,19 @@ public class LRMF extends IterativeRecommender {
                 int j = me.column(); // item
                 double ruj = me.get();
 
-                double pred = DenseMatrix.rowMult(P, u, Q, j);
+                double pred = carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
                 double uexp = 0;
 
                 List<Integer> items = train.getColumns(u);
                 for (int i : items) {
-                    uexp += Math.exp(DenseMatrix.rowMult(P, u, Q, i));
+                    uexp += Math.exp(carskit.data.structure.DenseMatrix.rowMult(P, u, Q, i));
                 }
 
                 loss -= Math.exp(ruj) / userExp.get(u) * Math.log(Math.exp(pred) / uexp);
 
                 // update factors
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-                    double delta_u = (Math.exp(ruj) / userExp.get(u) - Math.exp(pred) / uexp) * gd(pred) * qjf - regU * puf;
-                    double delta_j = (Math.exp(ruj) / userExp.get(u) - Math.exp(pred) / uexp) * gd(pred) * puf - regI * qjf;
-
-                    P.add(u, f, lRate * delta_u);
-                    Q.add(j, f, lRate * delta_j);
-
-                    loss += 0.5 * regU * puf * puf + 0.5 * regI * qjf * qjf;
-                }
+                double err = (Math.exp(ruj) / userExp.get(u) - Math.exp(pred) / uexp) * gd(pred);
+                loss += 0.5 * carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, err, lRate, regU, regI);
 
             }
 
@@ -20,10 +20,10 @@ package carskit.alg.baseline.ranking;
 
 import happy.coding.io.Logs;
 import librec.data.DenseMatrix;
-import librec.data.SymmMatrix;
 import librec.data.VectorEntry;
 import librec.data.SparseVector;
 
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.data.setting.Configuration;
@@ -31,14 +31,12 @@ import carskit.data.setting.Configuration;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * SLIM: Ning, Xia, and George Karypis. "SLIM: Sparse linear methods for top-n recommender systems." Data Mining (ICDM), 2011 IEEE 11th International Conference on. IEEE, 2011.
@@ -78,35 +76,23 @@ public class SLIM extends IterativeRecommender {
     protected void initModel() throws Exception {
         super.initModel();
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
         userCache = train.rowCache(cacheSpec);
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false);
+            NeighborIndex nns = buildNeighbors(false, knn);
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -208,6 +194,46 @@ public class SLIM extends IterativeRecommender {
         return predict(u,j,true, j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        u = splitUser(u, c);
+        double[] scores = isItemSplitting ? new double[numItems] : out;
+
+        // scatter the ratings of user u which predict finds in Ru
+        SparseVector Ru = userCache.get(u);
+        double[] ratings = new double[numItems];
+        for (int k : Ru.getIndex()) {
+            if (Ru.contains(k))
+                ratings[k] = Ru.get(k);
+        }
+
+        if (knn > 0) {
+            for (int j = 0; j < scores.length; j++) {
+                double pred = 0;
+                for (int k : itemNNs.get(j)) {
+                    if (ratings[k] != 0 && k != j)
+                        pred += ratings[k] * W.get(k, j);
+                }
+                scores[j] = pred;
+            }
+        } else {
+            // all items are neighbors: accumulate the rows of W of the rated items, in the order of allItems
+            Arrays.fill(scores, 0);
+            for (int k : allItems) {
+                double ruk = ratings[k];
+                if (ruk == 0)
+                    continue;
+                for (int j = 0; j < scores.length; j++) {
+                    if (j != k)
+                        scores[j] += ruk * W.get(k, j);
+                }
+            }
+        }
+
+        if (isItemSplitting)
+            gatherSplitItems(c, scores, out);
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
@@ -24,8 +24,12 @@ import carskit.generic.IterativeRecommender;
 import happy.coding.io.Strings;
 import librec.data.DenseMatrix;
 import librec.data.DenseVector;
+import librec.data.SparseVector;
 import librec.data.SymmMatrix;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * CSLIM: General Class for Contextual Sparse Linear Method (CSLIM)
  *
@@ -58,6 +62,25 @@ public abstract class CSLIM extends ContextRecommender{
         lowbound = 1.0/Math.pow(10, 100);
     }
 
+    /**
+     * Items rated by a user among the given items, in their order: with all the items as neighbors, only these add to
+     * the predictions, so that {@code scoreAll} visits them rather than all the items for each item to score.
+     *
+     * @param Ru
+     *            ratings of the user
+     * @param items
+     *            neighbors of every item
+     * @return the rated items, in the order of the neighbors
+     */
+    protected static List<Integer> ratedItems(SparseVector Ru, List<Integer> items) {
+        List<Integer> rated = new ArrayList<>(Ru.getCount());
+        for (int k : items) {
+            if (Ru.contains(k))
+                rated.add(k);
+        }
+        return rated;
+    }
+
     @Override
     public String toString() {
         return Strings.toString(new Object[]{"numFactors: " + numFactors, "numIter: " + numIters, "lrate: " + initLRate, "maxlrate: " + maxLRate, "regB: " + regB, "regU: " + regU, "regI: " + regI, "regC: " + regC,
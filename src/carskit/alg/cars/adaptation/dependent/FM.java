@@ -66,10 +66,10 @@ public class FM extends ContextRecommender {
         w = new DenseVector(p);
         w.init();
 
-        V = new DenseMatrix(p,k);
+        V = createDenseMatrix(p, k);
         V.init(initMean, initStd);
 
-        Q = new DenseMatrix(size, k);
+        Q = createDenseMatrix(size, k);
 
     }
 
@@ -64,13 +64,27 @@ public class CAMF_C extends CAMF{
 
     @Override
     protected double predict(int u, int j, int c) throws Exception {
-        double pred=globalMean + userBias.get(u) + itemBias.get(j) +DenseMatrix.rowMult(P, u, Q, j);
+        double pred=globalMean + userBias.get(u) + itemBias.get(j) +carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
         for(int cond:getConditions(c)){
             pred+=condBias.get(cond);
         }
         return pred;
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        // Q * p_u, plus the biases
+        carskit.data.structure.DenseMatrix.rowMults(Q, carskit.data.structure.DenseMatrix.rowOf(P, u), out);
+        double base = globalMean + userBias.get(u);
+        int[] conds = getConditions(c);
+        for (int j = 0; j < out.length; j++) {
+            double pred = base + itemBias.get(j) + out[j];
+            for (int cond : conds)
+                pred += condBias.get(cond);
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected void buildModel() throws Exception {
 
@@ -114,18 +128,7 @@ public class CAMF_C extends CAMF{
 
                 loss += regB * bc_sum;
 
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-
-                    double delta_u = euj * qjf - regU * puf;
-                    double delta_j = euj * puf - regI * qjf;
-
-                    P.add(u, f, lRate * delta_u);
-                    Q.add(j, f, lRate * delta_j);
-
-                    loss += regU * puf * puf + regI * qjf * qjf;
-                }
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, lRate, regU, regI);
 
             }
             loss *= 0.5;
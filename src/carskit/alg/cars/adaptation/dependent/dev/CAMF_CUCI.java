@@ -68,13 +68,29 @@ public class CAMF_CUCI extends ContextRecommender{
 
     @Override
     protected double predict(int u, int j, int c) throws Exception {
-        double pred=globalMean + DenseMatrix.rowMult(P, u, Q, j);
+        double pred=globalMean + carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
         for(int cond:getConditions(c)){
             pred+=icBias.get(j,cond)+ucBias.get(u,cond);
         }
         return pred;
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        // Q * p_u, plus the biases
+        carskit.data.structure.DenseMatrix.rowMults(Q, carskit.data.structure.DenseMatrix.rowOf(P, u), out);
+        int[] conds = getConditions(c);
+        double[] ucs = new double[conds.length];
+        for (int k = 0; k < conds.length; k++)
+            ucs[k] = ucBias.get(u, conds[k]);
+        for (int j = 0; j < out.length; j++) {
+            double pred = globalMean + out[j];
+            for (int k = 0; k < conds.length; k++)
+                pred += icBias.get(j, conds[k]) + ucs[k];
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected void buildModel() throws Exception {
 
@@ -110,18 +126,7 @@ public class CAMF_CUCI extends ContextRecommender{
 
                 loss += regC * Bic_sum + regC * Buc_sum;
 
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-
-                    double delta_u = euj * qjf - regU * puf;
-                    double delta_j = euj * puf - regI * qjf;
-
-                    P.add(u, f, lRate * delta_u);
-                    Q.add(j, f, lRate * delta_j);
-
-                    loss += regU * puf * puf + regI * qjf * qjf;
-                }
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, lRate, regU, regI);
 
             }
             loss *= 0.5;
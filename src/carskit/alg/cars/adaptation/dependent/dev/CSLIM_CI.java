@@ -20,18 +20,17 @@ package carskit.alg.cars.adaptation.dependent.dev;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * CSLIM_CI: Zheng, Yong, Bamshad Mobasher, and Robin Burke. "CSLIM: Contextual slim recommendation algorithms." Proceedings of the 8th ACM Conference on Recommender Systems. ACM, 2014.
@@ -75,7 +74,7 @@ public class CSLIM_CI extends CSLIM {
         ciDev = new DenseMatrix(numItems, numConditions);
         ciDev.init();
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -84,28 +83,16 @@ public class CSLIM_CI extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -143,9 +130,9 @@ public class CSLIM_CI extends CSLIM {
                 // update factors
 
 
-                Collection<Integer> conditions=rateDao.getContextConditionsList().get(c);
+                int[] conditions=rateDao.getConditions(c);
                 double dev_c=0;
-                for(Integer cond:conditions)
+                for(int cond:conditions)
                 {
                     dev_c+=ciDev.get(j,cond);
                 }
@@ -165,7 +152,7 @@ public class CSLIM_CI extends CSLIM {
                 }
 
                 // start updating ciDev
-                for(Integer cond:conditions)
+                for(int cond:conditions)
                 {
                     double update = ciDev.get(j,cond);
 
@@ -190,9 +177,9 @@ public class CSLIM_CI extends CSLIM {
         Collection<Integer> nns = knn > 0 ? itemNNs.get(j) : allItems;
         SparseVector Ru = userCache.get(u);
 
-        Collection<Integer> conditions=rateDao.getContextConditionsList().get(c);
+        int[] conditions=rateDao.getConditions(c);
         double dev_c=0;
-        for(Integer cond:conditions)
+        for(int cond:conditions)
         {
             dev_c+=ciDev.get(j,cond);
         }
@@ -218,6 +205,30 @@ public class CSLIM_CI extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+
+        int[] conditions=rateDao.getConditions(c);
+
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double dev_c=0;
+            for(int cond:conditions)
+            {
+                dev_c+=ciDev.get(j,cond);
+            }
+
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && Ru.contains(k))
+                    pred += (Ru.get(k) + dev_c) * W.get(k, j);
+            }
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
@@ -20,18 +20,17 @@ package carskit.alg.cars.adaptation.dependent.dev;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 
 /**
@@ -78,7 +77,7 @@ public class CSLIM_CU extends CSLIM {
         cuDev = new DenseMatrix(numUsers, numConditions);
         cuDev.init();
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -87,28 +86,16 @@ public class CSLIM_CU extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -145,9 +132,9 @@ public class CSLIM_CU extends CSLIM {
 
                 // update factors
 
-                Collection<Integer> conditions=rateDao.getContextConditionsList().get(c);
+                int[] conditions=rateDao.getConditions(c);
                 double dev_c=0;
-                for(Integer cond:conditions)
+                for(int cond:conditions)
                 {
                     dev_c+=cuDev.get(u,cond);
                 }
@@ -167,7 +154,7 @@ public class CSLIM_CU extends CSLIM {
                 }
 
                 // start updating cuDev
-                for(Integer cond:conditions)
+                for(int cond:conditions)
                 {
                     double update = cuDev.get(u,cond);
 
@@ -192,9 +179,9 @@ public class CSLIM_CU extends CSLIM {
             Collection<Integer> nns = knn > 0 ? itemNNs.get(j) : allItems;
             SparseVector Ru = userCache.get(u);
 
-            Collection<Integer> conditions=rateDao.getContextConditionsList().get(c);
+            int[] conditions=rateDao.getConditions(c);
             double dev_c=0;
-            for(Integer cond:conditions)
+            for(int cond:conditions)
             {
                 dev_c+=cuDev.get(u,cond);
             }
@@ -220,6 +207,29 @@ public class CSLIM_CU extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+
+        int[] conditions=rateDao.getConditions(c);
+        double dev_c=0;
+        for(int cond:conditions)
+        {
+            dev_c+=cuDev.get(u,cond);
+        }
+
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && Ru.contains(k))
+                    pred += (Ru.get(k) + dev_c) * W.get(k, j);
+            }
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
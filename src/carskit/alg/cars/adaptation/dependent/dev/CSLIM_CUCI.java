@@ -20,18 +20,17 @@ package carskit.alg.cars.adaptation.dependent.dev;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 
 /**
@@ -79,7 +78,7 @@ public class CSLIM_CUCI extends CSLIM {
         ciDev = new DenseMatrix(numItems, numConditions);
         ciDev.init();
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -88,28 +87,16 @@ public class CSLIM_CUCI extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -146,9 +133,9 @@ public class CSLIM_CUCI extends CSLIM {
 
                 // update factors
 
-                Collection<Integer> conditions=rateDao.getContextConditionsList().get(c);
+                int[] conditions=rateDao.getConditions(c);
                 double dev_cu=0, dev_ci=0;
-                for(Integer cond:conditions)
+                for(int cond:conditions)
                 {
                     dev_cu+=cuDev.get(u,cond);
                     dev_ci+=ciDev.get(j,cond);
@@ -169,7 +156,7 @@ public class CSLIM_CUCI extends CSLIM {
                 }
 
                 // start updating cuDev
-                for(Integer cond:conditions)
+                for(int cond:conditions)
                 {
                     double update_u = cuDev.get(u,cond);
                     double update_i = ciDev.get(j,cond);
@@ -199,9 +186,9 @@ public class CSLIM_CUCI extends CSLIM {
             Collection<Integer> nns = knn > 0 ? itemNNs.get(j) : allItems;
             SparseVector Ru = userCache.get(u);
 
-            Collection<Integer> conditions=rateDao.getContextConditionsList().get(c);
+            int[] conditions=rateDao.getConditions(c);
             double dev_cu=0, dev_ci=0;
-            for(Integer cond:conditions)
+            for(int cond:conditions)
             {
                 dev_cu+=cuDev.get(u,cond);
                 dev_ci+=ciDev.get(j,cond);
@@ -228,6 +215,35 @@ public class CSLIM_CUCI extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+
+        int[] conditions=rateDao.getConditions(c);
+        double dev_cu=0;
+        for(int cond:conditions)
+        {
+            dev_cu+=cuDev.get(u,cond);
+        }
+
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double dev_ci=0;
+            for(int cond:conditions)
+            {
+                dev_ci+=ciDev.get(j,cond);
+            }
+
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && Ru.contains(k))
+                    pred += (Ru.get(k) + dev_cu + dev_ci) * W.get(k, j);
+            }
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
@@ -22,20 +22,19 @@ package carskit.alg.cars.adaptation.dependent.dev;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import happy.coding.math.Stats;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 
 /**
@@ -83,7 +82,7 @@ public class GCSLIM_CC extends CSLIM {
         for(int i=0;i<numConditions;++i)
             ccDev.set(i,i,0.0);
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -92,28 +91,16 @@ public class GCSLIM_CC extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -152,8 +139,7 @@ public class GCSLIM_CC extends CSLIM {
                     if (Ru.contains(k)) {
                         if(k != j) {
                             // extract a random contextual rating by user u and item k
-                            String key=u+","+k;
-                            int uiid=rateDao.getUserItemId(key);
+                            int uiid=rateDao.getUserItemId(u, k);
                             List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
 
                             Random r = new Random();
@@ -163,13 +149,13 @@ public class GCSLIM_CC extends CSLIM {
                             // get rating for u, k, ctx
                             double ruk = this.trainMatrix.get(uiid, ctx);
 
-                            String[] sfrom=rateDao.getContextId(ctx).split(",");
-                            String[] sto=rateDao.getContextId(c).split(",");
+                            int[] sfrom=rateDao.getConditions(ctx);
+                            int[] sto=rateDao.getConditions(c);
                             double dev_c=0;
                             double w = W.get(k, j);
                             for(int i=0;i<sfrom.length;++i){
-                                int cond1=Integer.valueOf(sfrom[i]);
-                                int cond2=Integer.valueOf(sto[i]);
+                                int cond1=sfrom[i];
+                                int cond2=sto[i];
                                 dev_c+=ccDev.get(cond1,cond2);
                                 if(cond1!=cond2) {
                                     if (Dev_weights.contains(cond1, cond2))
@@ -238,8 +224,7 @@ public class GCSLIM_CC extends CSLIM {
                     continue;
                 else {
                     // extract a random contextual rating by user u and item k
-                    String key=u+","+k;
-                    int uiid=rateDao.getUserItemId(key);
+                    int uiid=rateDao.getUserItemId(u, k);
                     List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
 
                     Random r = new Random();
@@ -260,11 +245,11 @@ public class GCSLIM_CC extends CSLIM {
     }
 
     private double getDeviation(int from, int to){
-            String[] sfrom=rateDao.getContextId(from).split(",");
-            String[] sto=rateDao.getContextId(to).split(",");
+            int[] sfrom=rateDao.getConditions(from);
+            int[] sto=rateDao.getConditions(to);
             double sum=0;
             for(int i=0;i<sfrom.length;++i){
-                sum+=ccDev.get(Integer.valueOf(sfrom[i]), Integer.valueOf(sto[i]));
+                sum+=ccDev.get(sfrom[i], sto[i]);
             }
             return sum;
     }
@@ -274,6 +259,44 @@ public class GCSLIM_CC extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+        int[] conditions=getConditions(c);
+
+        // the contextual ratings by user u of each rated item and their deviations towards context c, found once for all the
+        // items; each prediction still draws one of them at random
+        double[][] ruks = new double[numItems][];
+        double[][] devs = new double[numItems][];
+        for (int k : Ru.getIndex()) {
+            if (!Ru.contains(k))
+                continue;
+            int uiid=rateDao.getUserItemId(u, k);
+            List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
+            ruks[k] = new double[ctxid.size()];
+            devs[k] = new double[ctxid.size()];
+            for (int i = 0; i < ctxid.size(); i++) {
+                int ctx=ctxid.get(i);
+                ruks[k][i] = this.trainMatrix.get(uiid, ctx);
+                devs[k][i] = getDeviation(ctx, c);
+            }
+        }
+
+        Random r = new Random();
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && ruks[k] != null) {
+                    int index = r.nextInt(ruks[k].length);
+                    pred += (ruks[k][index] + devs[k][index]) * W.get(k, j);
+                }
+            }
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
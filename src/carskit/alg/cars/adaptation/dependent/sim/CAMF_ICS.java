@@ -50,13 +50,29 @@ public class CAMF_ICS extends CAMF{
 
     @Override
     protected double predict(int u, int j, int c) throws Exception {
-        double pred=DenseMatrix.rowMult(P, u, Q, j);
-        List<Integer> conditions=getConditions(c);
-        for(int i=0;i<conditions.size();++i)
-            pred=pred*ccMatrix_ICS.get(conditions.get(i), EmptyContextConditions.get(i));
+        double pred=carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
+        int[] conditions=getConditions(c);
+        for(int i=0;i<conditions.length;++i)
+            pred=pred*ccMatrix_ICS.get(conditions[i], EmptyContextConditions.get(i));
         return pred;
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        // Q * p_u, times the similarity of each condition to the empty one
+        carskit.data.structure.DenseMatrix.rowMults(Q, carskit.data.structure.DenseMatrix.rowOf(P, u), out);
+        int[] conditions=getConditions(c);
+        double[] sims=new double[conditions.length];
+        for(int i=0;i<conditions.length;++i)
+            sims[i]=ccMatrix_ICS.get(conditions[i], EmptyContextConditions.get(i));
+        for (int j = 0; j < out.length; j++) {
+            double pred = out[j];
+            for (double sim : sims)
+                pred = pred * sim;
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected void buildModel() throws Exception {
 
@@ -73,12 +89,12 @@ public class CAMF_ICS extends CAMF{
 
                 HashBasedTable<Integer, Integer, Double> toBeUpdated = HashBasedTable.create();
                 double simc=1.0;
-                double dotRating=DenseMatrix.rowMult(P, u, Q, j);
+                double dotRating=carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
 
                 double pred=dotRating;
-                List<Integer> conditions=getConditions(ctx);
-                for(int i=0;i<conditions.size();++i) {
-                    int index1=conditions.get(i);
+                int[] conditions=getConditions(ctx);
+                for(int i=0;i<conditions.length;++i) {
+                    int index1=conditions[i];
                     int index2=EmptyContextConditions.get(i);
                     double sim=1.0;
                     if(index1!=index2) {
@@ -107,18 +123,7 @@ public class CAMF_ICS extends CAMF{
 
                 // update user and item vectors
 
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-
-                    double delta_u = euj * qjf * simc- regU * puf;
-                    double delta_j = euj * puf * simc - regI * qjf;
-
-                    P.add(u, f, lRate * delta_u);
-                    Q.add(j, f, lRate * delta_j);
-
-                    loss += regU * puf * puf + regI * qjf * qjf;
-                }
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, simc, lRate, regU, regI);
 
             }
             loss *= 0.5;
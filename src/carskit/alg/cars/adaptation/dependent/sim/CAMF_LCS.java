@@ -42,10 +42,10 @@ public class CAMF_LCS extends CAMF{
 
     @Override
     protected double predict(int u, int j, int c) throws Exception {
-        double pred=DenseMatrix.rowMult(P, u, Q, j);
-        List<Integer> conditions=getConditions(c);
-        for(int i=0;i<conditions.size();++i){
-            double[] dv1=cfMatrix_LCS.row(conditions.get(i)).getData();
+        double pred=carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
+        int[] conditions=getConditions(c);
+        for(int i=0;i<conditions.length;++i){
+            double[] dv1=cfMatrix_LCS.row(conditions[i]).getData();
             double[] dv2=cfMatrix_LCS.row(EmptyContextConditions.get(i)).getData();
             double sum1=0,sum2=0;
             for(int h=0;h<dv1.length;++h){
@@ -55,13 +55,29 @@ public class CAMF_LCS extends CAMF{
             sum1=Math.sqrt(sum1);
             sum2=Math.sqrt(sum2);
             //if(isRankingPred)
-            pred=pred*DenseMatrix.rowMult(cfMatrix_LCS, conditions.get(i), cfMatrix_LCS, EmptyContextConditions.get(i));
+            pred=pred*carskit.data.structure.DenseMatrix.rowMult(cfMatrix_LCS, conditions[i], cfMatrix_LCS, EmptyContextConditions.get(i));
             //else
-            //pred=pred*DenseMatrix.rowMult(cfMatrix_LCS, conditions.get(i), cfMatrix_LCS, EmptyContextConditions.get(i))/(sum1*sum2);
+            //pred=pred*carskit.data.structure.DenseMatrix.rowMult(cfMatrix_LCS, conditions[i], cfMatrix_LCS, EmptyContextConditions.get(i))/(sum1*sum2);
         }
         return pred;
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        // Q * p_u, times the similarity of each condition to the empty one
+        carskit.data.structure.DenseMatrix.rowMults(Q, carskit.data.structure.DenseMatrix.rowOf(P, u), out);
+        int[] conditions=getConditions(c);
+        double[] sims=new double[conditions.length];
+        for(int i=0;i<conditions.length;++i)
+            sims[i]=carskit.data.structure.DenseMatrix.rowMult(cfMatrix_LCS, conditions[i], cfMatrix_LCS, EmptyContextConditions.get(i));
+        for (int j = 0; j < out.length; j++) {
+            double pred = out[j];
+            for (double sim : sims)
+                pred = pred * sim;
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected void buildModel() throws Exception {
 
@@ -78,16 +94,16 @@ public class CAMF_LCS extends CAMF{
 
                 HashBasedTable<Integer, Integer, Double> toBeUpdated = HashBasedTable.create();
                 double simc=1.0;
-                double dotRating=DenseMatrix.rowMult(P, u, Q, j);
+                double dotRating=carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
 
                 double pred=dotRating;
-                List<Integer> conditions=getConditions(ctx);
-                for(int i=0;i<conditions.size();++i) {
-                    int index1=conditions.get(i);
+                int[] conditions=getConditions(ctx);
+                for(int i=0;i<conditions.length;++i) {
+                    int index1=conditions[i];
                     int index2=EmptyContextConditions.get(i);
                     double sim=1.0;
                     if(index1!=index2) {
-                        sim = DenseMatrix.rowMult(cfMatrix_LCS, index1, cfMatrix_LCS, index2);
+                        sim = carskit.data.structure.DenseMatrix.rowMult(cfMatrix_LCS, index1, cfMatrix_LCS, index2);
                         toBeUpdated.put(index1,index2,sim);
                         simc*=sim;
                     }
@@ -123,18 +139,7 @@ public class CAMF_LCS extends CAMF{
 
                 // update user and item vectors
 
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-
-                    double delta_u = euj * qjf * simc- regU * puf;
-                    double delta_j = euj * puf * simc - regI * qjf;
-
-                    P.add(u, f, lRate * delta_u);
-                    Q.add(j, f, lRate * delta_j);
-
-                    loss += regU * puf * puf + regI * qjf * qjf;
-                }
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, simc, lRate, regU, regI);
 
             }
             loss *= 0.5;
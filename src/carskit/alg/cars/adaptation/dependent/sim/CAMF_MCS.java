@@ -51,11 +51,11 @@ public class CAMF_MCS extends CAMF{
 
     @Override
     protected double predict(int u, int j, int c) throws Exception {
-        double pred=DenseMatrix.rowMult(P, u, Q, j);
-        List<Integer> conditions=getConditions(c);
+        double pred=carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
+        int[] conditions=getConditions(c);
         double dist=0;
-        for(int i=0;i<conditions.size();++i) {
-            int index1=conditions.get(i);
+        for(int i=0;i<conditions.length;++i) {
+            int index1=conditions[i];
             int index2=EmptyContextConditions.get(i);
             dist += Math.pow(cVector_MCS.get(index1) - cVector_MCS.get(index2), 2);
         }
@@ -67,6 +67,23 @@ public class CAMF_MCS extends CAMF{
         return pred;
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        // Q * p_u, times the similarity of the context to the empty one
+        carskit.data.structure.DenseMatrix.rowMults(Q, carskit.data.structure.DenseMatrix.rowOf(P, u), out);
+        int[] conditions=getConditions(c);
+        double dist=0;
+        for(int i=0;i<conditions.length;++i) {
+            int index1=conditions[i];
+            int index2=EmptyContextConditions.get(i);
+            dist += Math.pow(cVector_MCS.get(index1) - cVector_MCS.get(index2), 2);
+        }
+        dist = Math.sqrt(dist);
+        double sim=1-dist;
+        for (int j = 0; j < out.length; j++)
+            out[j] = out[j]*sim;
+    }
+
     @Override
     protected void buildModel() throws Exception {
 
@@ -83,13 +100,13 @@ public class CAMF_MCS extends CAMF{
 
                 HashBasedTable<Integer, Integer, Double> toBeUpdated = HashBasedTable.create();
                 double simc=1.0;
-                double dotRating=DenseMatrix.rowMult(P, u, Q, j);
+                double dotRating=carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
 
                 double pred=dotRating;
-                List<Integer> conditions=getConditions(ctx);
+                int[] conditions=getConditions(ctx);
                 double dist=0;
-                for(int i=0;i<conditions.size();++i) {
-                    int index1=conditions.get(i);
+                for(int i=0;i<conditions.length;++i) {
+                    int index1=conditions[i];
                     int index2=EmptyContextConditions.get(i);
                     double pos1=cVector_MCS.get(index1);
                     double pos2=cVector_MCS.get(index2);
@@ -142,18 +159,7 @@ public class CAMF_MCS extends CAMF{
 
                 // update user and item vectors
 
-                for (int f = 0; f < numFactors; f++) {
-                    double puf = P.get(u, f);
-                    double qjf = Q.get(j, f);
-
-                    double delta_u = euj * qjf * (1-dist)- regU * puf;
-                    double delta_j = euj * puf * (1-dist) - regI * qjf;
-
-                    P.add(u, f, lRate * delta_u);
-                    Q.add(j, f, lRate * delta_j);
-
-                    loss += regU * puf * puf + regI * qjf * qjf;
-                }
+                loss += carskit.data.structure.DenseMatrix.rowSgd(P, u, Q, j, euj, 1-dist, lRate, regU, regI);
 
             }
             loss *= 0.05;
@@ -2,19 +2,18 @@ package carskit.alg.cars.adaptation.dependent.sim;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * Yong Zheng, Bamshad Mobasher, Robin Burke. "Integrating Context Similarity with Sparse Linear Recommendation Model", Proceedings of the 23rd Conference on User Modeling, Adaptation and Personalization (UMAP), pp. 370-376, Dublin, Ireland, June 2015
@@ -53,7 +52,7 @@ public class CSLIM_ICS extends CSLIM {
             for(int j=0;j<numConditions;++j)
                 ccMatrix_ICS.set(i,j,1.0);
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -62,28 +61,16 @@ public class CSLIM_ICS extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -112,11 +99,11 @@ public class CSLIM_ICS extends CSLIM {
                 double rujc = me.get();
 
                 HashBasedTable<Integer, Integer, Double> toBeUpdated = HashBasedTable.create();
-                List<Integer> conditions=getConditions(c);
+                int[] conditions=getConditions(c);
                 double simc=1.0;
-                for(int i=0;i<conditions.size();++i)
+                for(int i=0;i<conditions.length;++i)
                 {
-                    int index1=conditions.get(i);
+                    int index1=conditions[i];
                     int index2=EmptyContextConditions.get(i);
 
                     double sim=1.0;
@@ -181,11 +168,11 @@ public class CSLIM_ICS extends CSLIM {
         Collection<Integer> nns = knn > 0 ? itemNNs.get(j) : allItems;
         SparseVector Ru = userCache.get(u);
 
-        List<Integer> conditions=getConditions(c);
+        int[] conditions=getConditions(c);
         double sim=1.0;
-        for(int i=0;i<conditions.size();++i)
+        for(int i=0;i<conditions.length;++i)
         {
-            sim*=ccMatrix_ICS.get(conditions.get(i), EmptyContextConditions.get(i));
+            sim*=ccMatrix_ICS.get(conditions[i], EmptyContextConditions.get(i));
         }
 
         double pred = 0;
@@ -209,6 +196,29 @@ public class CSLIM_ICS extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+
+        int[] conditions=getConditions(c);
+        double sim=1.0;
+        for(int i=0;i<conditions.length;++i)
+        {
+            sim*=ccMatrix_ICS.get(conditions[i], EmptyContextConditions.get(i));
+        }
+
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && Ru.contains(k))
+                    pred += Ru.get(k) * W.get(k, j);
+            }
+            out[j] = pred*sim;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
@@ -2,19 +2,18 @@ package carskit.alg.cars.adaptation.dependent.sim;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * Yong Zheng, Bamshad Mobasher, Robin Burke. "Integrating Context Similarity with Sparse Linear Recommendation Model", Proceedings of the 23rd Conference on User Modeling, Adaptation and Personalization (UMAP), pp. 370-376, Dublin, Ireland, June 2015
@@ -57,7 +56,7 @@ public class CSLIM_MCS extends CSLIM {
         cVector_MCS=new librec.data.DenseVector(numConditions);
         cVector_MCS.init(upbound);
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -66,28 +65,16 @@ public class CSLIM_MCS extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -117,10 +104,10 @@ public class CSLIM_MCS extends CSLIM {
 
                 HashBasedTable<Integer, Integer, Double> toBeUpdated = HashBasedTable.create();
                 double simc=1.0;
-                List<Integer> conditions=getConditions(c);
+                int[] conditions=getConditions(c);
                 double dist=0;
-                for(int i=0;i<conditions.size();++i) {
-                    int index1=conditions.get(i);
+                for(int i=0;i<conditions.length;++i) {
+                    int index1=conditions[i];
                     int index2=EmptyContextConditions.get(i);
                     double pos1=cVector_MCS.get(index1);
                     double pos2=cVector_MCS.get(index2);
@@ -206,10 +193,10 @@ public class CSLIM_MCS extends CSLIM {
         SparseVector Ru = userCache.get(u);
 
 
-        List<Integer> conditions=getConditions(c);
+        int[] conditions=getConditions(c);
         double dist=0;
-        for(int i=0;i<conditions.size();++i) {
-            int index1=conditions.get(i);
+        for(int i=0;i<conditions.length;++i) {
+            int index1=conditions[i];
             int index2=EmptyContextConditions.get(i);
             dist += Math.pow(cVector_MCS.get(index1) - cVector_MCS.get(index2), 2);
         }
@@ -237,6 +224,32 @@ public class CSLIM_MCS extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+
+        int[] conditions=getConditions(c);
+        double dist=0;
+        for(int i=0;i<conditions.length;++i) {
+            int index1=conditions[i];
+            int index2=EmptyContextConditions.get(i);
+            dist += Math.pow(cVector_MCS.get(index1) - cVector_MCS.get(index2), 2);
+        }
+        dist = Math.sqrt(dist);
+        double sim=1-dist;
+
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && Ru.contains(k))
+                    pred += Ru.get(k) * W.get(k, j);
+            }
+            out[j] = pred*sim;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
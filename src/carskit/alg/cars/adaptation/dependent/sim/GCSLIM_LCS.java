@@ -2,19 +2,18 @@ package carskit.alg.cars.adaptation.dependent.sim;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * Yong Zheng, Bamshad Mobasher, Robin Burke. "Integrating Context Similarity with Sparse Linear Recommendation Model", Proceedings of the 23rd Conference on User Modeling, Adaptation and Personalization (UMAP), pp. 370-376, Dublin, Ireland, June 2015
@@ -52,7 +51,7 @@ public class GCSLIM_LCS extends CSLIM {
         cfMatrix_LCS=new DenseMatrix(numConditions, numFactors);
         cfMatrix_LCS.init();
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -61,28 +60,16 @@ public class GCSLIM_LCS extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -112,7 +99,7 @@ public class GCSLIM_LCS extends CSLIM {
 
                 HashBasedTable<Integer, Integer, Double> toBeUpdated_sim_factor = HashBasedTable.create();
                 HashBasedTable<Integer, Integer, Double> toBeUpdated_w_factor = HashBasedTable.create();
-                List<Integer> conditions=getConditions(c);
+                int[] conditions=getConditions(c);
 
                 Collection<Integer> nns = knn > 0 ? itemNNs.get(j) : allItems;
                 SparseVector Ru = userCache.get(u);
@@ -121,24 +108,23 @@ public class GCSLIM_LCS extends CSLIM {
                     if (Ru.contains(k)) {
                         if(k != j) {
                             // extract a random contextual rating by user u and item k
-                            String key=u+","+k;
-                            int uiid=rateDao.getUserItemId(key);
+                            int uiid=rateDao.getUserItemId(u, k);
                             List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
 
                             Random r = new Random();
                             int index = r.nextInt(ctxid.size());
                             int ctx=ctxid.get(index);
-                            List<Integer> conditions_from=getConditions(ctx);
+                            int[] conditions_from=getConditions(ctx);
 
                             // get rating for u, k, ctx
                             double ruk = this.trainMatrix.get(uiid, ctx);
                             double rating=ruk*W.get(k,j);
 
                             double simc=1.0;
-                            for(int i=0;i<conditions.size();++i)
+                            for(int i=0;i<conditions.length;++i)
                             {
-                                int index1=conditions.get(i);
-                                int index2=conditions_from.get(i);
+                                int index1=conditions[i];
+                                int index2=conditions_from[i];
                                 double sim=DenseMatrix.rowMult(cfMatrix_LCS, index1, cfMatrix_LCS, index2);
                                 double update_factor = rating/sim;
                                 if(toBeUpdated_sim_factor.contains(index1,index2))
@@ -212,7 +198,7 @@ public class GCSLIM_LCS extends CSLIM {
         Collection<Integer> nns = knn > 0 ? itemNNs.get(j) : allItems;
         SparseVector Ru = userCache.get(u);
 
-        List<Integer> conditions=getConditions(c);
+        int[] conditions=getConditions(c);
 
         double pred = 0;
         for (int k : nns) {
@@ -220,22 +206,21 @@ public class GCSLIM_LCS extends CSLIM {
                 continue;
             else {
                 // extract a random contextual rating by user u and item k
-                String key=u+","+k;
-                int uiid=rateDao.getUserItemId(key);
+                int uiid=rateDao.getUserItemId(u, k);
                 List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
 
                 Random r = new Random();
                 int index = r.nextInt(ctxid.size());
                 int ctx=ctxid.get(index);
-                List<Integer> conditions_from=getConditions(ctx);
+                int[] conditions_from=getConditions(ctx);
 
                 // get rating for u, k, ctx
                 double ruk = this.trainMatrix.get(uiid, ctx);
 
                 double sim=1.0;
-                for(int i=0;i<conditions.size();++i)
+                for(int i=0;i<conditions.length;++i)
                 {
-                    double[] dv1=cfMatrix_LCS.row(conditions.get(i)).getData();
+                    double[] dv1=cfMatrix_LCS.row(conditions[i]).getData();
                     double[] dv2=cfMatrix_LCS.row(EmptyContextConditions.get(i)).getData();
                     double sum1=0,sum2=0;
                     for(int h=0;h<dv1.length;++h){
@@ -244,7 +229,7 @@ public class GCSLIM_LCS extends CSLIM {
                     }
                     sum1=Math.sqrt(sum1);
                     sum2=Math.sqrt(sum2);
-                    sim*=DenseMatrix.rowMult(cfMatrix_LCS, conditions.get(i), cfMatrix_LCS, EmptyContextConditions.get(i))/(sum1*sum2);
+                    sim*=DenseMatrix.rowMult(cfMatrix_LCS, conditions[i], cfMatrix_LCS, EmptyContextConditions.get(i))/(sum1*sum2);
                 }
 
                 pred += ruk * W.get(k, j)*sim;
@@ -260,6 +245,55 @@ public class GCSLIM_LCS extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+        int[] conditions=getConditions(c);
+        double sim=1.0;
+        for(int i=0;i<conditions.length;++i)
+        {
+            double[] dv1=cfMatrix_LCS.row(conditions[i]).getData();
+            double[] dv2=cfMatrix_LCS.row(EmptyContextConditions.get(i)).getData();
+            double sum1=0,sum2=0;
+            for(int h=0;h<dv1.length;++h){
+                sum1+=dv1[h]*dv1[h];
+                sum2+=dv2[h]*dv2[h];
+            }
+            sum1=Math.sqrt(sum1);
+            sum2=Math.sqrt(sum2);
+            sim*=DenseMatrix.rowMult(cfMatrix_LCS, conditions[i], cfMatrix_LCS, EmptyContextConditions.get(i))/(sum1*sum2);
+        }
+
+        // the contextual ratings by user u of each rated item, found once for all the
+        // items; each prediction still draws one of them at random
+        double[][] ruks = new double[numItems][];
+        for (int k : Ru.getIndex()) {
+            if (!Ru.contains(k))
+                continue;
+            int uiid=rateDao.getUserItemId(u, k);
+            List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
+            ruks[k] = new double[ctxid.size()];
+            for (int i = 0; i < ctxid.size(); i++) {
+                int ctx=ctxid.get(i);
+                ruks[k][i] = this.trainMatrix.get(uiid, ctx);
+            }
+        }
+
+        Random r = new Random();
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && ruks[k] != null) {
+                    int index = r.nextInt(ruks[k].length);
+                    pred += ruks[k][index] * W.get(k, j)*sim;
+                }
+            }
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
@@ -2,19 +2,18 @@ package carskit.alg.cars.adaptation.dependent.sim;
 
 import carskit.data.setting.Configuration;
 import carskit.data.structure.DenseVector;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.alg.cars.adaptation.dependent.CSLIM;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import librec.data.*;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 
 /**
@@ -58,7 +57,7 @@ public class GCSLIM_MCS extends CSLIM {
         cVector_MCS=new librec.data.DenseVector(numConditions);
         cVector_MCS.init(upbound);
 
-        W = new DenseMatrix(numItems, numItems);
+        W = createDenseMatrix(numItems, numItems);
         W.init(); // initial guesses: make smaller guesses (e.g., W.init(0.01)) to speed up training
 
 
@@ -67,28 +66,16 @@ public class GCSLIM_MCS extends CSLIM {
 
         if (knn > 0) {
             // find the nearest neighbors for each item based on item similarity
-            SymmMatrix itemCorrs = buildCorrs(false); // this is based on transformed 2D rating matrix, this.train
+            NeighborIndex nns = buildNeighbors(false, knn); // this is based on transformed 2D rating matrix, this.train
             itemNNs = HashMultimap.create();
 
             for (int j = 0; j < numItems; j++) {
                 // set diagonal entries to 0
                 W.set(j, j, 0);
 
-                // find the k-nearest neighbors for each item
-                Map<Integer, Double> nns = itemCorrs.row(j).toMap();
-
-                // sort by values to retriev topN similar items
-                if (knn > 0 && knn < nns.size()) {
-                    List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-                    List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-                    nns.clear();
-                    for (Map.Entry<Integer, Double> kv : subset)
-                        nns.put(kv.getKey(), kv.getValue());
-                }
-
-                // put into the nns multimap
-                for (Map.Entry<Integer, Double> en : nns.entrySet())
-                    itemNNs.put(j, en.getKey());
+                // put the k-nearest neighbors of each item into the nns multimap
+                for (int k = 0; k < nns.size(j); k++)
+                    itemNNs.put(j, nns.neighbor(j, k));
             }
         } else {
             // all items are used
@@ -116,15 +103,15 @@ public class GCSLIM_MCS extends CSLIM {
                 int c = me.column(); // context
                 double rujc = me.get();
 
-                List<Integer> conditions=getConditions(c);
+                int[] conditions=getConditions(c);
                 HashBasedTable<Integer, Integer, Double> toBeUpdated_sim_factor = HashBasedTable.create();
                 HashBasedTable<Integer, Integer, Double> toBeUpdated_w_factor = HashBasedTable.create();
 
                 /*
                 double simc=1.0;
                 double dist=0;
-                for(int i=0;i<conditions.size();++i) {
-                    int index1=conditions.get(i);
+                for(int i=0;i<conditions.length;++i) {
+                    int index1=conditions[i];
                     int index2=EmptyContextConditions.get(i);
                     double pos1=cVector_MCS.get(index1);
                     double pos2=cVector_MCS.get(index2);
@@ -146,23 +133,22 @@ public class GCSLIM_MCS extends CSLIM {
                     if (Ru.contains(k)) {
                         if(k != j) {
                             // extract a random contextual rating by user u and item k
-                            String key=u+","+k;
-                            int uiid=rateDao.getUserItemId(key);
+                            int uiid=rateDao.getUserItemId(u, k);
                             List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
 
                             Random r = new Random();
                             int index = r.nextInt(ctxid.size());
                             int ctx=ctxid.get(index);
-                            List<Integer> conditions_from=getConditions(ctx);
+                            int[] conditions_from=getConditions(ctx);
 
                             // get rating for u, k, ctx
                             double ruk = this.trainMatrix.get(uiid, ctx);
                             double rating = ruk * W.get(k, j);
 
                             double dist=0;
-                            for(int i=0;i<conditions.size();++i) {
-                                int index1=conditions.get(i);
-                                int index2=conditions_from.get(i);
+                            for(int i=0;i<conditions.length;++i) {
+                                int index1=conditions[i];
+                                int index2=conditions_from[i];
                                 double pos1=cVector_MCS.get(index1);
                                 double pos2=cVector_MCS.get(index2);
                                 double diff = pos1-pos2;
@@ -244,7 +230,7 @@ public class GCSLIM_MCS extends CSLIM {
         SparseVector Ru = userCache.get(u);
 
 
-        List<Integer> conditions=getConditions(c);
+        int[] conditions=getConditions(c);
 
 
         double pred = 0;
@@ -254,22 +240,21 @@ public class GCSLIM_MCS extends CSLIM {
                     continue;
                 else {
                     // extract a random contextual rating by user u and item k
-                    String key=u+","+k;
-                    int uiid=rateDao.getUserItemId(key);
+                    int uiid=rateDao.getUserItemId(u, k);
                     List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
 
                     Random r = new Random();
                     int index = r.nextInt(ctxid.size());
                     int ctx=ctxid.get(index);
-                    List<Integer> conditions_from=getConditions(ctx);
+                    int[] conditions_from=getConditions(ctx);
 
                     // get rating for u, k, ctx
                     double ruk = this.trainMatrix.get(uiid, ctx);
 
                     double dist=0;
-                    for(int i=0;i<conditions.size();++i) {
-                        int index1=conditions.get(i);
-                        int index2=conditions_from.get(i);
+                    for(int i=0;i<conditions.length;++i) {
+                        int index1=conditions[i];
+                        int index2=conditions_from[i];
                         dist += Math.pow(cVector_MCS.get(index1) - cVector_MCS.get(index2), 2);
                     }
                     dist = Math.sqrt(dist);
@@ -287,6 +272,52 @@ public class GCSLIM_MCS extends CSLIM {
         return predict(u,j,c,true,j);
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        SparseVector Ru = userCache.get(u);
+        int[] conditions=getConditions(c);
+
+        // the contextual ratings by user u of each rated item and their similarities to context c, found once for all the
+        // items; each prediction still draws one of them at random
+        double[][] ruks = new double[numItems][];
+        double[][] sims = new double[numItems][];
+        for (int k : Ru.getIndex()) {
+            if (!Ru.contains(k))
+                continue;
+            int uiid=rateDao.getUserItemId(u, k);
+            List<Integer> ctxid=this.trainMatrix.getColumns(uiid);
+            ruks[k] = new double[ctxid.size()];
+            sims[k] = new double[ctxid.size()];
+            for (int i = 0; i < ctxid.size(); i++) {
+                int ctx=ctxid.get(i);
+                ruks[k][i] = this.trainMatrix.get(uiid, ctx);
+                int[] conditions_from=getConditions(ctx);
+                double dist=0;
+                for(int h=0;h<conditions.length;++h) {
+                    int index1=conditions[h];
+                    int index2=conditions_from[h];
+                    dist += Math.pow(cVector_MCS.get(index1) - cVector_MCS.get(index2), 2);
+                }
+                dist = Math.sqrt(dist);
+                sims[k][i] = 1-dist;
+            }
+        }
+
+        Random r = new Random();
+        // with all the items as neighbors, only the rated ones add to the scores
+        List<Integer> rated = knn > 0 ? null : ratedItems(Ru, allItems);
+        for (int j = 0; j < out.length; j++) {
+            double pred = 0;
+            for (int k : knn > 0 ? itemNNs.get(j) : rated) {
+                if (k != j && ruks[k] != null) {
+                    int index = r.nextInt(ruks[k].length);
+                    pred += ruks[k][index] * W.get(k, j)*sims[k][index];
+                }
+            }
+            out[j] = pred;
+        }
+    }
+
     @Override
     protected boolean isConverged(int iter) {
         double delta_loss = last_loss - loss;
@@ -47,7 +47,7 @@ public class CPTF extends TensorRecommender {
         M = new DenseMatrix[numDimensions];
 
         for (int d = 0; d < numDimensions; d++) {
-            M[d] = new DenseMatrix(dimensions[d], numFactors);
+            M[d] = createDenseMatrix(dimensions[d], numFactors);
             //M[d].init(initMean,initStd);
             //normalize(d);
             M[d].init(1, 0.1); // randomly initialization
@@ -138,6 +138,29 @@ public class CPTF extends TensorRecommender {
         return pred;
     }
 
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        // the factors of the user and the conditions are shared by all the items: M[1] * (their products)
+        int[] keys = getKeys(u, 0, c);
+        double[] w = new double[numFactors];
+        for (int f = 0; f < numFactors; f++) {
+            double prod = 1;
+            for (int d = 0; d < numDimensions; d++) {
+                if (d != 1)
+                    prod *= M[d].get(keys[d], f);
+            }
+            w[f] = prod;
+        }
+        carskit.data.structure.DenseMatrix.rowMults(M[1], w, out);
+
+        for (int j = 0; j < out.length; j++) {
+            if (out[j] > maxRate)
+                out[j] = maxRate;
+            if (out[j] < minRate)
+                out[j] = minRate;
+        }
+    }
+
     protected double predict(int[] keys) {
         double pred = 0;
 
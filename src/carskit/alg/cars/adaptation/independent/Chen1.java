@@ -68,7 +68,7 @@ public class Chen1 extends Recommender {
                         ArrayList<Double> component2=new ArrayList<>();
 
                         for(Integer user:users){
-                            int ui=rateDao.getUserItemId(user+","+item);
+                            int ui=rateDao.getUserItemId(user, item);
                             if(ui==-1 || !trainMatrix.rows().contains(ui))
                                 continue;
                             double rate_ui_condk1=0;
@@ -153,7 +153,7 @@ public class Chen1 extends Recommender {
             ArrayList<Double> component2=new ArrayList<>();
 
             for(Integer user:users){
-                int ui=rateDao.getUserItemId(user+","+item);
+                int ui=rateDao.getUserItemId(user, item);
                 if(ui==-1 || !trainMatrix.rows().contains(ui))
                     continue;
                 double rate_ui_condk1=0;
@@ -208,7 +208,7 @@ public class Chen1 extends Recommender {
     @Override
     protected double predict(int u, int j, int c) throws Exception {
         double rate=0;
-        int ui=rateDao.getUserItemId(u+","+j);
+        int ui=rateDao.getUserItemId(u, j);
         if(!trainMatrix.rows().contains(ui)){
             rate=train.get(u,j);
             rate=(rate>0)?rate:this.globalMean;
@@ -260,6 +260,12 @@ public class Chen1 extends Recommender {
     }
 
 
+    @Override
+    protected boolean isThreadSafe() {
+        // the similarities of contexts are cached by predict()
+        return false;
+    }
+
     @Override
     public String toString() {
         return Strings.toString(new Object[] { knn, similarityMeasure, similarityShrinkage });
@@ -1,12 +1,11 @@
 package carskit.alg.cars.adaptation.independent;
 
+import carskit.data.structure.NeighborIndex;
 import carskit.generic.Recommender;
 import com.google.common.collect.HashMultimap;
-import happy.coding.io.Lists;
 import happy.coding.io.Strings;
 import librec.data.DenseVector;
 import librec.data.SparseVector;
-import librec.data.SymmMatrix;
 
 import java.util.*;
 
@@ -18,7 +17,7 @@ import java.util.*;
 public class Chen2 extends Recommender {
 
     // user: nearest neighborhood
-    private SymmMatrix userCorrs;
+    private NeighborIndex userNNs;
     private DenseVector userMeans;
     HashMultimap<Integer, HashMap<String, Double>> item_ContextsSimilarity=HashMultimap.create();
 
@@ -34,7 +33,7 @@ public class Chen2 extends Recommender {
     @Override
     protected void initModel() throws Exception {
         super.initModel();
-        userCorrs = buildCorrs(true);
+        userNNs = buildNeighbors(true, 0);
     }
 
     protected double getContextsSimilarity(int item, int c1, int c2) throws Exception{
@@ -62,7 +61,7 @@ public class Chen2 extends Recommender {
             ArrayList<Double> component2=new ArrayList<>();
 
             for(Integer user:users){
-                int ui=rateDao.getUserItemId(user+","+item);
+                int ui=rateDao.getUserItemId(user, item);
                 if(ui==-1 || !trainMatrix.rows().contains(ui))
                     continue;
                 double rate_ui_condk1=0;
@@ -115,27 +114,20 @@ public class Chen2 extends Recommender {
 
     @Override
     protected double predict(int u, int j, int c) throws Exception {
-        // find a number of similar users
-        Map<Integer, Double> nns = new HashMap<>();
+        // topN similar users who rated item j, from the most similar one
+        List<Integer> nns = new ArrayList<>();
+        List<Double> nnSims = new ArrayList<>();
 
-        SparseVector dv = userCorrs.row(u);
-        for (int v : dv.getIndex()) {
-            double sim = dv.get(v);
+        for (int k = 0, size = userNNs.size(u); k < size && (knn <= 0 || nns.size() < knn); k++) {
+            int v = userNNs.neighbor(u, k);
+            double sim = userNNs.similarity(u, k);
             double rate = train.get(v, j);
 
-            if (isRankingPred && rate > 0)
-                nns.put(v, sim); // similarity could be negative for item ranking
-            else if (sim > 0 && rate > 0)
-                nns.put(v, sim);
-        }
-
-        // topN similar users
-        if (knn > 0 && knn < nns.size()) {
-            List<Map.Entry<Integer, Double>> sorted = Lists.sortMap(nns, true);
-            List<Map.Entry<Integer, Double>> subset = sorted.subList(0, knn);
-            nns.clear();
-            for (Map.Entry<Integer, Double> kv : subset)
-                nns.put(kv.getKey(), kv.getValue());
+            // similarity could be negative for item ranking
+            if (rate > 0 && (isRankingPred || sim > 0)) {
+                nns.add(v);
+                nnSims.add(sim);
+            }
         }
 
         double rate=0;
@@ -151,9 +143,9 @@ public class Chen2 extends Recommender {
             double user_avg=(sv.getCount()>0) ? sv.mean() : this.globalMean;
             // follow equation 6) in the paper
             double d1=0,d2=0;
-            for (Map.Entry<Integer, Double> entry : nns.entrySet()){
-                d1+=(predictNeighborRating(entry.getKey(),j,c)-user_avg)*entry.getValue();
-                d2+=entry.getValue();
+            for (int k = 0; k < nns.size(); k++){
+                d1+=(predictNeighborRating(nns.get(k),j,c)-user_avg)*nnSims.get(k);
+                d2+=nnSims.get(k);
             }
             if(d2==0)
                 rate=rate_uj;
@@ -165,7 +157,7 @@ public class Chen2 extends Recommender {
 
     protected double predictNeighborRating(int u, int j, int c) throws Exception {
         double rate = 0;
-        int ui = rateDao.getUserItemId(u + "," + j);
+        int ui = rateDao.getUserItemId(u, j);
         if (!trainMatrix.rows().contains(ui)) {
             rate = train.get(u, j);
             rate = (rate > 0) ? rate : this.globalMean;
@@ -222,6 +214,12 @@ public class Chen2 extends Recommender {
     }
 
 
+    @Override
+    protected boolean isThreadSafe() {
+        // the similarities of contexts are cached by predict()
+        return false;
+    }
+
     @Override
     public String toString() {
         return Strings.toString(new Object[] { knn, similarityMeasure, similarityShrinkage });
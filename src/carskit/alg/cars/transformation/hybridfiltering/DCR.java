@@ -209,6 +209,9 @@ public class DCR extends IterativeRecommender {
             else
                 pos_3[i-2*num_dim] = pos[i];
         }
+        long[] mask_1 = rateDao.getDimensionMask(pos_1);
+        long[] mask_2 = rateDao.getDimensionMask(pos_2);
+        long[] mask_3 = rateDao.getDimensionMask(pos_3);
 
         double part3=0, part3_count=0;
         HashMap<Integer, Double> part22 =new  HashMap<Integer, Double>();
@@ -223,7 +226,7 @@ public class DCR extends IterativeRecommender {
             int ctx = me.column(); // context
             double rujc = me.get(); // real rating
             if(u == a){
-                if(ContextRelaxation(c, ctx, pos_3)){
+                if(ContextRelaxation(c, ctx, mask_3)){
                     part3 += rujc;
                     part3_count += 1.0;
                 }
@@ -233,19 +236,19 @@ public class DCR extends IterativeRecommender {
                     // a potential neighbor
                     int j = rateDao.getItemIdFromUI(ui);
                     // double check whether this user has rated item t in c1
-                    int newui = rateDao.getUserItemId(u + "," + t);
+                    int newui = rateDao.getUserItemId(u, t);
                     if (newui != -1) {
                         SparseVector sv = trainMatrix.row(newui);
                         if (sv != null) {
                             // search whether this user rated in c1
                             int[] cs = sv.getIndex();
-                            double rate = ContextRelaxation(c, cs, pos_1, sv);
+                            double rate = ContextRelaxation(c, cs, mask_1, sv);
 
                             if (rate != -1) {
                                 // this user is a successful neighbor
                                 nns.put(u, sim);
                                 // search whether this user rated in c2
-                                rate = ContextRelaxation(c, cs, pos_2, sv);
+                                rate = ContextRelaxation(c, cs, mask_2, sv);
                                 if (rate == -1) {
                                     // if neighbor did not rate items in c2, return rate(u, t)
                                     rate = train.get(u, t);
@@ -287,7 +290,7 @@ public class DCR extends IterativeRecommender {
                     SparseVector sv = trainMatrix.row(uiid);
                     int[] cs = sv.getIndex();
                     for (int ctx : cs) {
-                        if (ContextRelaxation(c, ctx, pos_2)) {
+                        if (ContextRelaxation(c, ctx, mask_2)) {
                             double r = sv.get(ctx);
                             if (part22.containsKey(u)) {
                                 part22.put(u, part22.get(u) + r);
@@ -326,11 +329,11 @@ public class DCR extends IterativeRecommender {
         return pred;
     }
 
-    protected double ContextRelaxation(int c, int[] cs, double[] pos, SparseVector sv){
+    protected double ContextRelaxation(int c, int[] cs, long[] mask, SparseVector sv){
         double rate=-1;
         int index=-1;
         for(int ctx:cs){
-            if(ContextRelaxation(c, ctx, pos)){
+            if(ContextRelaxation(c, ctx, mask)){
                 index = ctx;
                 break;
             }
@@ -340,19 +343,19 @@ public class DCR extends IterativeRecommender {
         return rate;
     }
 
-    protected boolean ContextRelaxation(int c, int ctx, double[] pos){
-        boolean mt = true;
-        ArrayList<Integer> conds1=rateDao.getContextConditionsList().get(c);
-        ArrayList<Integer> conds2=rateDao.getContextConditionsList().get(ctx);
-        for(int i=0;i<pos.length;++i){
-            if(pos[i]==1){
-                if(conds1.get(i) != conds2.get(i)){
-                    mt = false;
-                    break;
-                }
-            }
+    /**
+     * @param mask
+     *            conditions of the selected dimensions, see {@code DataDAO.getDimensionMask}
+     * @return whether two contexts have the same conditions in all the selected dimensions
+     */
+    protected boolean ContextRelaxation(int c, int ctx, long[] mask){
+        long[] conds1=rateDao.getContextMask(c);
+        long[] conds2=rateDao.getContextMask(ctx);
+        for(int i=0;i<mask.length;++i){
+            if(((conds1[i] ^ conds2[i]) & mask[i]) != 0)
+                return false;
         }
-        return mt;
+        return true;
     }
 
     @Override
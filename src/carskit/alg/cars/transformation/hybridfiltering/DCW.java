@@ -54,6 +54,7 @@ public class DCW extends IterativeRecommender {
     private double th;
 
     private int num_dim;
+    private int[] condDims; // {condition, dimension}
     private int num_component=3;
     double p1=3, p2=4;
 
@@ -91,6 +92,9 @@ public class DCW extends IterativeRecommender {
             userMeans.set(u, uv.getCount() > 0 ? uv.mean() : globalMean);
         }
         num_dim=rateDao.numContextDims();
+        condDims = new int[rateDao.numConditions()];
+        for(int cond=0;cond<condDims.length;++cond)
+            condDims[cond] = rateDao.getDimensionByConditionId(cond);
 
         fitness_gbest = Double.MAX_VALUE;
         this.len = num_dim*num_component;
@@ -210,7 +214,7 @@ public class DCW extends IterativeRecommender {
                     // a potential neighbor
                     int j = rateDao.getItemIdFromUI(ui);
                     // double check whether this user has rated item t in c1
-                    int newui = rateDao.getUserItemId(u + "," + t);
+                    int newui = rateDao.getUserItemId(u, t);
                     if (newui != -1) {
                         SparseVector sv = trainMatrix.row(newui);
                         if (sv != null) {
@@ -328,11 +332,16 @@ public class DCW extends IterativeRecommender {
 
     protected double ContextSimilarity(int c, int ctx, double[] pos){
         double sim=0;
-        ArrayList<Integer> conds1=rateDao.getContextConditionsList().get(c);
-        ArrayList<Integer> conds2=rateDao.getContextConditionsList().get(ctx);
-        for(int i=0;i<pos.length;++i){
-                if(conds1.get(i) == conds2.get(i))
-                    sim+=pos[i];
+        long[] conds1=rateDao.getContextMask(c);
+        long[] conds2=rateDao.getContextMask(ctx);
+        for(int i=0;i<conds1.length;++i){
+            // conditions in common, i.e., the dimensions on which two contexts match
+            long common = conds1[i] & conds2[i];
+            while(common != 0){
+                int cond = (i << 6) + Long.numberOfTrailingZeros(common);
+                sim+=pos[condDims[cond]];
+                common &= common - 1;
+            }
         }
         return sim/ Stats.sum(pos);
     }
@@ -22,10 +22,9 @@ import carskit.data.structure.*;
 import carskit.data.structure.SparseMatrix;
 import carskit.generic.IterativeRecommender;
 import carskit.generic.Recommender;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Table;
+import com.google.common.primitives.Ints;
 import happy.coding.io.FileIO;
 import happy.coding.io.Lists;
 import happy.coding.io.Logs;
@@ -48,6 +47,8 @@ import java.util.*;
 public class ExactFiltering extends Recommender {
     // user: nearest neighborhood
     private SymmMatrix userCorrs;
+    // neighbors of users in the current context, for item ranking
+    private NeighborIndex userNNs;
     private DenseVector userMeans;
     private carskit.data.structure.SparseMatrix sm;
 
@@ -80,19 +81,16 @@ public class ExactFiltering extends Recommender {
             HashMap<Integer, Double> nns = new HashMap<>();
             HashMap<Integer, Double> nns_ratings = new HashMap<>();
 
-            SparseVector sv = userCorrs.row(a);
-            for (int u : sv.getIndex()) {
-                if (nns.size() >= knn)
-                    break;
-                else {
-                    double sim = sv.get(u);
-                    if (sim > 0) {
-                        double rate = this.sm.get(u, t);
-                        if (rate > 0) {
-                            nns.put(u, sim);
-                            nns_ratings.put(u, rate);
-                        }
-                    }
+            // the most similar users who rated item t in the context
+            for (int k = 0, size = userNNs.size(a); k < size && nns.size() < knn; k++) {
+                double sim = userNNs.similarity(a, k);
+                if (sim <= 0)
+                    break; // the rest are not similar either
+                int u = userNNs.neighbor(a, k);
+                double rate = this.sm.get(u, t);
+                if (rate > 0) {
+                    nns.put(u, sim);
+                    nns_ratings.put(u, rate);
                 }
             }
 
@@ -135,7 +133,7 @@ public class ExactFiltering extends Recommender {
 
             for(int u:users){
                 if(u!=a){
-                    int ui = rateDao.getUserItemId(u+","+t);
+                    int ui = rateDao.getUserItemId(u, t);
                     if(ui!=-1)
                     {
                         double rate = trainMatrix.get(ui, c);
@@ -180,26 +178,25 @@ public class ExactFiltering extends Recommender {
 
     protected SparseMatrix getUIMatrix(int ctx)
     {
-        // Table {row-id, col-id, rate}
-        Table<Integer, Integer, Double> dataTable_ui = HashBasedTable.create();
-
-        // Map {col-id, multiple row-id}: used to fast build a rating matrix
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
-
         // read data to have a list of rating profiles for each uc pair
         SparseVector sv=trainMatrix.column(ctx);
+        SparseMatrix.Builder data_ui = new SparseMatrix.Builder(sv.getCount());
         for(int ui: sv.getIndex()){
             int u = rateDao.getUserIdFromUI(ui);
             int j = rateDao.getItemIdFromUI(ui);
-            dataTable_ui.put(u, j, sv.get(ui));
-            colMap.put(j,u);
+            data_ui.add(u, j, sv.get(ui));
         }
-        return new SparseMatrix(numUsers, numItems, dataTable_ui, colMap);
+        return data_ui.build(numUsers, numItems, SparseMatrix.Policy.LAST);
     }
 
     @Override
     protected Map<Measure, Double> evalRankings() throws Exception {
 
+        // the items are ranked within each filtered context, which the sampled candidates of Recommender do not cover
+        if (numSamples > 0)
+            Logs.warn("{}{} does not support -sample of item.ranking: its items are ranked against all the candidate items",
+                    algoName, foldInfo);
+
         HashMap<Integer, HashMultimap<Integer, Integer>> cuiList=rateDao.getCtxUserList(testMatrix, binThold);
         HashMap<Integer, HashMultimap<Integer, Integer>> cuiList_train=rateDao.getCtxUserList(trainMatrix);
         int capacity = cuiList.keySet().size();
@@ -263,6 +260,21 @@ public class ExactFiltering extends Recommender {
             }
         }
 
+        // ranking scores of all items for a user in a context
+        double[] scores = new double[rateDao.numItems()];
+        // selector of the top-N items out of the scores
+        TopKSelector topN = new TopKSelector(numRecs);
+        // ranked items, and the correct ones among the candidate items
+        int[] ranked = new int[Math.max(numRecs, 16)];
+        BitSet correctItems = new BitSet(scores.length);
+        // measures at the cutoffs, in the order of Measures.rankingAt
+        int n = rankingCutoffs.length;
+        double[] at = new double[Measures.NUM_RANKING_MEASURES * n];
+        // sums and counts of the measures at all the cutoffs, over the rows and over the users of a context, for the
+        // extra cutoffs of option -cutoffs
+        double[] at_sums = new double[at.length], c_at_sums = new double[at.length];
+        int[] at_counts = new int[at.length], c_at_counts = new int[at.length];
+
         // for each context
         for (int ctx:cuiList.keySet()) {
 
@@ -292,16 +304,18 @@ public class ExactFiltering extends Recommender {
             List<Double> c_ndcgs5 = new ArrayList<>(u_capacity);
             List<Double> c_ndcgs10 = new ArrayList<>(u_capacity);
             List<Double> c_ndcgsN = new ArrayList<>(u_capacity);
+            Arrays.fill(c_at_sums, 0);
+            Arrays.fill(c_at_counts, 0);
             HashMultimap<Integer, Integer> uList_train = (cuiList_train.containsKey(ctx))?cuiList_train.get(ctx):HashMultimap.<Integer, Integer>create();
 
             // for each ctx, we build a 2D rating matrix -- only users and items
             this.sm=null;
-            userCorrs=null;
+            userNNs=null;
             userMeans=null;
 
             carskit.data.structure.SparseMatrix UIM = getUIMatrix(ctx);
             this.sm=UIM;
-            userCorrs = buildCorrs(true, UIM);
+            userNNs = buildNeighbors(true, UIM, 0);
             userMeans = new DenseVector(numUsers);
             for (int u = 0; u < numUsers; u++) {
                 SparseVector uv = UIM.row(u);
@@ -319,57 +333,60 @@ public class ExactFiltering extends Recommender {
 
                 // get positive items from test matrix
                 Collection<Integer> posItems = uis.get(u);
-                List<Integer> correctItems = new ArrayList<>();
+                correctItems.clear();
+                int numCorrect = 0;
 
                 // intersect with the candidate items
                 for (Integer j : posItems) {
-                    if (candItems.contains(j))
-                        correctItems.add(j);
+                    if (candItems.contains(j)) {
+                        correctItems.set(j);
+                        numCorrect++;
+                    }
                 }
 
-                if (correctItems.size() == 0)
+                if (numCorrect == 0)
                     continue; // no testing data for user u
 
                 // remove rated items from candidate items
                 Set<Integer> ratedItems = (uList_train.containsKey(u))?uList_train.get(u):new HashSet<Integer>();
 
                 // predict the ranking scores (unordered) of all candidate items
-                List<Map.Entry<Integer, Double>> itemScores = new ArrayList<>(Lists.initSize(candItems));
+                scoreAll(u, ctx, scores);
+                topN.clear();
                 for (final Integer j : candItems) {
                     if (!ratedItems.contains(j)) {
-                        final double rank = ranking(u, j, ctx);
+                        final double rank = scores[j];
                         if (!Double.isNaN(rank)) {
                             if(rank>binThold)
-                                itemScores.add(new AbstractMap.SimpleImmutableEntry<Integer, Double>(j, rank));
+                                topN.offer(j, rank);
                         }
                     } else {
                         numCands--;
                     }
                 }
 
-                if (itemScores.size() == 0)
+                // order the top-N ranking scores from highest to lowest, ties in the order of the candidate items
+                int numRanked = topN.sort();
+                if (numRanked == 0)
                     continue; // no recommendations available for user u
 
-                // order the ranking scores from highest to lowest: List to preserve orders
-                Lists.sortList(itemScores, true);
-                List<Map.Entry<Integer, Double>> recomd = (numRecs <= 0 || itemScores.size() <= numRecs) ? itemScores
-                        : itemScores.subList(0, numRecs);
-
-                List<Integer> rankedItems = new ArrayList<>();
+                if (ranked.length < numRanked)
+                    ranked = new int[numRanked];
+                int size = 0;
                 StringBuilder sb = new StringBuilder();
                 int count = 0;
-                for (Map.Entry<Integer, Double> kv : recomd) {
-                    Integer item = kv.getKey();
-                    rankedItems.add(item);
+                for (int r = 0; r < numRanked; r++) {
+                    int item = topN.id(r);
+                    ranked[size++] = item;
 
                     if (isResultsOut && count < numTopNRanks) {
                         // restore back to the original item id
                         sb.append("(").append(rateDao.getItemId(item));
 
-                        if (posItems.contains(item))
+                        if (correctItems.get(item))
                             sb.append("*"); // indicating correct recommendation
 
-                        sb.append(", ").append(kv.getValue().floatValue()).append(")");
+                        sb.append(", ").append((float) topN.score(r)).append(")");
 
                         if (++count >= numTopNRanks)
                             break;
@@ -378,24 +395,21 @@ public class ExactFiltering extends Recommender {
                     }
                 }
 
-                int numDropped = numCands - rankedItems.size();
+                int numDropped = numCands - size;
+                List<Integer> rankedItems = Ints.asList(ranked).subList(0, size);
 
-                List<Integer> cutoffs = Arrays.asList(5, 10, numRecs);
-                Map<Integer, Double> precs = Measures.PrecAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> recalls = Measures.RecallAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> aucs = Measures.AUCAt(rankedItems, correctItems, numDropped,cutoffs);
-                Map<Integer, Double> aps = Measures.APAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> ndcgs = Measures.nDCGAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> rrs = Measures.RRAt(rankedItems, correctItems, cutoffs);
+                // all the measures at all the cutoffs, in one pass over the ranked items
+                Measures.rankingAt(ranked, size, correctItems, numCorrect, numDropped, rankingCutoffs, at, 0);
 
                 // ======== adapt to evaluation strategies ========
                 if (evalStrategy.equals("uc")) {
-                    precs5.add(precs.get(5));       precs10.add(precs.get(10));       precsN.add(precs.get(numRecs));
-                    recalls5.add(recalls.get(5));   recalls10.add(recalls.get(10));   recallsN.add(recalls.get(numRecs));
-                    aucs5.add(aucs.get(5));         aucs10.add(aucs.get(10));         aucsN.add(aucs.get(numRecs));
-                    aps5.add(aps.get(5));           aps10.add(aps.get(10));           apsN.add(aps.get(numRecs));
-                    rrs5.add(rrs.get(5));           rrs10.add(rrs.get(10));           rrsN.add(rrs.get(numRecs));
-                    ndcgs5.add(ndcgs.get(5));       ndcgs10.add(ndcgs.get(10));       ndcgsN.add(ndcgs.get(numRecs));
+                    precs5.add(at[0]);          precs10.add(at[1]);         precsN.add(at[2]);
+                    recalls5.add(at[n]);        recalls10.add(at[n + 1]);   recallsN.add(at[n + 2]);
+                    aucs5.add(at[2 * n]);       aucs10.add(at[2 * n + 1]);  aucsN.add(at[2 * n + 2]);
+                    aps5.add(at[3 * n]);        aps10.add(at[3 * n + 1]);   apsN.add(at[3 * n + 2]);
+                    rrs5.add(at[4 * n]);        rrs10.add(at[4 * n + 1]);   rrsN.add(at[4 * n + 2]);
+                    ndcgs5.add(at[5 * n]);      ndcgs10.add(at[5 * n + 1]); ndcgsN.add(at[5 * n + 2]);
+                    accumulate(at, 0, at_sums, at_counts);
 
                     if (isDiverseUsed) {
                         ds5.add(diverseAt(rankedItems, 5));
@@ -403,12 +417,13 @@ public class ExactFiltering extends Recommender {
                         dsN.add(diverseAt(rankedItems, numRecs));
                     }
                 } else {
-                    c_precs5.add(precs.get(5));       c_precs10.add(precs.get(10));       c_precsN.add(precs.get(numRecs));
-                    c_recalls5.add(recalls.get(5));   c_recalls10.add(recalls.get(10));   c_recallsN.add(recalls.get(numRecs));
-                    c_aucs5.add(aucs.get(5));         c_aucs10.add(aucs.get(10));         c_aucsN.add(aucs.get(numRecs));
-                    c_aps5.add(aps.get(5));           c_aps10.add(aps.get(10));           c_apsN.add(aps.get(numRecs));
-                    c_rrs5.add(rrs.get(5));           c_rrs10.add(rrs.get(10));           c_rrsN.add(rrs.get(numRecs));
-                    c_ndcgs5.add(ndcgs.get(5));       c_ndcgs10.add(ndcgs.get(10));       c_ndcgsN.add(ndcgs.get(numRecs));
+                    c_precs5.add(at[0]);          c_precs10.add(at[1]);         c_precsN.add(at[2]);
+                    c_recalls5.add(at[n]);        c_recalls10.add(at[n + 1]);   c_recallsN.add(at[n + 2]);
+                    c_aucs5.add(at[2 * n]);       c_aucs10.add(at[2 * n + 1]);  c_aucsN.add(at[2 * n + 2]);
+                    c_aps5.add(at[3 * n]);        c_aps10.add(at[3 * n + 1]);   c_apsN.add(at[3 * n + 2]);
+                    c_rrs5.add(at[4 * n]);        c_rrs10.add(at[4 * n + 1]);   c_rrsN.add(at[4 * n + 2]);
+                    c_ndcgs5.add(at[5 * n]);      c_ndcgs10.add(at[5 * n + 1]); c_ndcgsN.add(at[5 * n + 2]);
+                    accumulate(at, 0, c_at_sums, c_at_counts);
 
                     if (isDiverseUsed) {
                         c_ds5.add(diverseAt(rankedItems, 5));
@@ -430,6 +445,9 @@ public class ExactFiltering extends Recommender {
 
             if (!evalStrategy.equals("uc")) {
                 // calculate metrics for a specific user averaged by contexts
+                for (int m = 0; m < at.length; m++)
+                    at[m] = c_at_sums[m] / c_at_counts[m];
+                accumulate(at, 0, at_sums, at_counts);
                 ds5.add(isDiverseUsed ? Stats.mean(c_ds5) : 0.0);
                 ds10.add(isDiverseUsed ? Stats.mean(c_ds10) : 0.0);
                 dsN.add(isDiverseUsed ? Stats.mean(c_dsN) : 0.0);
@@ -487,6 +505,10 @@ public class ExactFiltering extends Recommender {
         measures.put(Measure.MAPN, Stats.mean(apsN));
         measures.put(Measure.MRRN, Stats.mean(rrsN));
 
+        for (int m = 0; m < at.length; m++)
+            at[m] = at_sums[m] / at_counts[m];
+        cutoffMeasures = getCutoffMeasures(at, 0);
+
         return measures;
     }
 
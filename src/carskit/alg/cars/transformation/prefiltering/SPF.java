@@ -20,11 +20,12 @@
 package carskit.alg.cars.transformation.prefiltering;
 
 import carskit.data.structure.SparseMatrix;
+import carskit.data.structure.TopKSelector;
 import carskit.generic.ContextRecommender;
 
 import java.util.*;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Table;
+import com.google.common.primitives.Ints;
 import happy.coding.io.FileIO;
 import happy.coding.io.Lists;
 import happy.coding.io.Logs;
@@ -32,8 +33,6 @@ import happy.coding.io.Strings;
 import carskit.eval.Measures;
 import happy.coding.math.Stats;
 import librec.data.*;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table.Cell;
 import com.google.common.collect.HashMultimap;
 import librec.data.SparseVector;
 import librec.data.DenseVector;
@@ -130,7 +129,7 @@ public class SPF extends ContextRecommender {
         // put each pair of similarity into SimMatrix
         for(int i=0;i<numConditions;++i)
             for(int j=i+1; j<numConditions;++j)
-                SimMatrix.set(i, j,librec.data.DenseMatrix.rowMult(P, i, P, j));
+                SimMatrix.set(i, j,carskit.data.structure.DenseMatrix.rowMult(P, i, P, j));
         */
     }
 
@@ -146,7 +145,7 @@ public class SPF extends ContextRecommender {
                 int j = me.column(); // item
                 double rcj = me.get();
 
-                double pred = globalMean + cBias.get(c) + eBias.get(j) + librec.data.DenseMatrix.rowMult(C, c, E, j);
+                double pred = globalMean + cBias.get(c) + eBias.get(j) + carskit.data.structure.DenseMatrix.rowMult(C, c, E, j);
                 double ecj = rcj - pred;
 
                 loss += ecj * ecj;
@@ -185,12 +184,8 @@ public class SPF extends ContextRecommender {
 
     protected SparseMatrix getCUMatrix()
     {
-        // Table {row-id, col-id, rate}
-        Table<Integer, Integer, Double> dataTable_cu = HashBasedTable.create();
-        Table<Integer, Integer, Double> dataTable_cu_count = HashBasedTable.create();
-
-        // Map {col-id, multiple row-id}: used to fast build a rating matrix
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        // entries {condition, user, rate - baseline}, averaged with shrinkage beta per condition-user pair
+        SparseMatrix.Builder cu = new SparseMatrix.Builder(trainMatrix.size());
 
         // read data to have a list of rating profiles for each uc pair
         for (MatrixEntry me : trainMatrix){
@@ -200,41 +195,23 @@ public class SPF extends ContextRecommender {
 
             int ctx = me.column(); // context
 
-            Collection<Integer> cs= rateDao.getContextConditionsList().get(ctx);
+            int[] cs= rateDao.getConditions(ctx);
 
             double rujc = me.get();
             double bui = mean + bu.get(u) + bi.get(j);
 
-            for(int c:cs) {
-                if (dataTable_cu.contains(c, u)) {
-                    dataTable_cu.put(c, u, dataTable_cu.get(c, u) + rujc - bui);
-                    dataTable_cu_count.put(c, u, dataTable_cu_count.get(c, u) + 1.0);
-                } else {
-                    dataTable_cu.put(c, u, rujc - bui);
-                    dataTable_cu_count.put(c, u, 1.0);
-                }
-            }
+            for(int c:cs)
+                cu.add(c, u, rujc - bui);
         }
 
         // formulate sparse matrix in order to perform SVD
-        for(Cell<Integer, Integer, Double> cell: dataTable_cu.cellSet()){
-            int c = cell.getRowKey();
-            int u = cell.getColumnKey();
-            dataTable_cu.put(c, u, cell.getValue()/(beta+dataTable_cu_count.get(c, u)));
-            colMap.put(u, c);
-        }
-        //Logs.info("numConditions = " + numConditions+", datatable.row = "+dataTable_cu.rowKeySet().size());
-        return new SparseMatrix(numConditions, numUsers, dataTable_cu, colMap);
+        return cu.buildMean(numConditions, numUsers, beta);
     }
 
     protected SparseMatrix getCIMatrix()
     {
-        // Table {row-id, col-id, rate}
-        Table<Integer, Integer, Double> dataTable_ci = HashBasedTable.create();
-        Table<Integer, Integer, Double> dataTable_ci_count = HashBasedTable.create();
-
-        // Map {col-id, multiple row-id}: used to fast build a rating matrix
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        // entries {condition, item, rate - baseline}, averaged with shrinkage beta per condition-item pair
+        SparseMatrix.Builder ci = new SparseMatrix.Builder(trainMatrix.size());
 
         // read data to have a list of rating profiles for each uc pair
 
@@ -244,41 +221,28 @@ public class SPF extends ContextRecommender {
             int j= rateDao.getItemIdFromUI(ui);
             int ctx = me.column(); // context
 
-            Collection<Integer> cs= rateDao.getContextConditionsList().get(ctx);
+            int[] cs= rateDao.getConditions(ctx);
 
             double rujc = me.get();
             double bui = mean + bu.get(u) + bi.get(j);
 
-            for(int c:cs) {
-                if (dataTable_ci.contains(c, j)) {
-                    dataTable_ci.put(c, j, dataTable_ci.get(c, j) + rujc - bui);
-                    dataTable_ci_count.put(c, j, dataTable_ci_count.get(c, j) + 1.0);
-                } else {
-                    dataTable_ci.put(c, j, rujc - bui);
-                    dataTable_ci_count.put(c, j, 1.0);
-                }
-            }
+            for(int c:cs)
+                ci.add(c, j, rujc - bui);
         }
 
         // formulate sparse matrix in order to perform SVD
-        for(Cell<Integer, Integer, Double> cell: dataTable_ci.cellSet()){
-            int c = cell.getRowKey();
-            int j = cell.getColumnKey();
-            dataTable_ci.put(c, j, cell.getValue()/(beta+dataTable_ci_count.get(c, j)));
-            colMap.put(j, c);
-        }
-        return new SparseMatrix(numConditions, numItems, dataTable_ci,colMap);
+        return ci.buildMean(numConditions, numItems, beta);
 
     }
 
     protected DenseVector getContextVector(int ctx){
-        Collection<Integer> css= rateDao.getContextConditionsList().get(ctx);
+        int[] css= rateDao.getConditions(ctx);
         DenseVector v_ctx = new DenseVector(C.numColumns());
         for(int index_cs:css){
             v_ctx=v_ctx.add(C.row(index_cs));
         }
         for(int i=0;i<C.numColumns();++i)
-            v_ctx.set(i,v_ctx.get(i)/css.size());
+            v_ctx.set(i,v_ctx.get(i)/css.length);
         return v_ctx;
     }
 
@@ -298,13 +262,12 @@ public class SPF extends ContextRecommender {
     protected SparseMatrix getUIMatrix(int ctx)
     {
         DenseVector vc_target = getContextVector(ctx);
+        // similarity to the target context, computed once per context rather than per rating
+        double[] sims = new double[rateDao.numContexts()];
+        Arrays.fill(sims, Double.NaN);
 
-        // Table {row-id, col-id, rate}
-        Table<Integer, Integer, Double> dataTable_ui = HashBasedTable.create();
-        Table<Integer, Integer, Double> dataTable_ui_count = HashBasedTable.create();
-
-        // Map {col-id, multiple row-id}: used to fast build a rating matrix
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        // entries {user, item, rate} of the contexts similar to the target one
+        SparseMatrix.Builder data_ui = new SparseMatrix.Builder();
 
         // read data to have a list of rating profiles for each uc pair
         for (MatrixEntry me : trainMatrix) {
@@ -312,34 +275,27 @@ public class SPF extends ContextRecommender {
             int u = rateDao.getUserIdFromUI(ui);
             int j = rateDao.getItemIdFromUI(ui);
             int c = me.column(); // context
-            DenseVector vc_current = getContextVector(c);
-            double sim = cosineSimilarity(vc_target, vc_current);
-            if (sim >= th) {
-                double rujc = me.get();
-                if (dataTable_ui.contains(u, j)) {
-                    dataTable_ui.put(u, j, dataTable_ui.get(u, j));
-                    dataTable_ui_count.put(u, j, dataTable_ui_count.get(u, j) + 1.0);
-                } else {
-                    dataTable_ui.put(u, j, rujc);
-                    dataTable_ui_count.put(u, j, 1.0);
-                }
-            }
-
-            // formulate sparse matrix in order to perform SVD
-            for (Cell<Integer, Integer, Double> cell : dataTable_ui.cellSet()) {
-                int uu = cell.getRowKey();
-                int jj = cell.getColumnKey();
-                dataTable_ui.put(uu, jj, cell.getValue() / dataTable_ui_count.get(uu, jj));
-                colMap.put(jj, uu);
+            double sim = sims[c];
+            if (Double.isNaN(sim)) {
+                DenseVector vc_current = getContextVector(c);
+                sim = sims[c] = cosineSimilarity(vc_target, vc_current);
             }
+            if (sim >= th)
+                data_ui.add(u, j, me.get());
         }
 
-        return new SparseMatrix(numUsers, numItems, dataTable_ui, colMap);
+        // formulate sparse matrix in order to perform SVD, averaging the ratings of each user-item pair
+        return data_ui.build(numUsers, numItems, SparseMatrix.Policy.MEAN);
     }
 
     @Override
     protected Map<Measure, Double> evalRankings() throws Exception {
 
+        // the items are ranked within each filtered context, which the sampled candidates of Recommender do not cover
+        if (numSamples > 0)
+            Logs.warn("{}{} does not support -sample of item.ranking: its items are ranked against all the candidate items",
+                    algoName, foldInfo);
+
         HashMap<Integer, HashMultimap<Integer, Integer>> cuiList=rateDao.getCtxUserList(testMatrix, binThold);
         HashMap<Integer, HashMultimap<Integer, Integer>> cuiList_train=rateDao.getCtxUserList(trainMatrix);
         int capacity = cuiList.keySet().size();
@@ -403,6 +359,21 @@ public class SPF extends ContextRecommender {
             }
         }
 
+        // ranking scores of all items for a user in a context
+        double[] scores = new double[rateDao.numItems()];
+        // selector of the top-N items out of the scores
+        TopKSelector topN = new TopKSelector(numRecs);
+        // ranked items, and the correct ones among the candidate items
+        int[] ranked = new int[Math.max(numRecs, 16)];
+        BitSet correctItems = new BitSet(scores.length);
+        // measures at the cutoffs, in the order of Measures.rankingAt
+        int n = rankingCutoffs.length;
+        double[] at = new double[Measures.NUM_RANKING_MEASURES * n];
+        // sums and counts of the measures at all the cutoffs, over the rows and over the users of a context, for the
+        // extra cutoffs of option -cutoffs
+        double[] at_sums = new double[at.length], c_at_sums = new double[at.length];
+        int[] at_counts = new int[at.length], c_at_counts = new int[at.length];
+
         // for each context
         for (int ctx:cuiList.keySet()) {
 
@@ -432,6 +403,8 @@ public class SPF extends ContextRecommender {
             List<Double> c_ndcgs5 = new ArrayList<>(u_capacity);
             List<Double> c_ndcgs10 = new ArrayList<>(u_capacity);
             List<Double> c_ndcgsN = new ArrayList<>(u_capacity);
+            Arrays.fill(c_at_sums, 0);
+            Arrays.fill(c_at_counts, 0);
             HashMultimap<Integer, Integer> uList_train = (cuiList_train.containsKey(ctx))?cuiList_train.get(ctx):HashMultimap.<Integer, Integer>create();
 
             // for each ctx, we build a 2D rating matrix -- only users and items
@@ -453,57 +426,60 @@ public class SPF extends ContextRecommender {
 
                 // get positive items from test matrix
                 Collection<Integer> posItems = uis.get(u);
-                List<Integer> correctItems = new ArrayList<>();
+                correctItems.clear();
+                int numCorrect = 0;
 
                 // intersect with the candidate items
                 for (Integer j : posItems) {
-                    if (candItems.contains(j))
-                        correctItems.add(j);
+                    if (candItems.contains(j)) {
+                        correctItems.set(j);
+                        numCorrect++;
+                    }
                 }
 
-                if (correctItems.size() == 0)
+                if (numCorrect == 0)
                     continue; // no testing data for user u
 
                 // remove rated items from candidate items
                 Set<Integer> ratedItems = (uList_train.containsKey(u))?uList_train.get(u):new HashSet<Integer>();
 
                 // predict the ranking scores (unordered) of all candidate items
-                List<Map.Entry<Integer, Double>> itemScores = new ArrayList<>(Lists.initSize(candItems));
+                scoreAll(u, ctx, scores);
+                topN.clear();
                 for (final Integer j : candItems) {
                     if (!ratedItems.contains(j)) {
-                        final double rank = ranking(u, j, ctx);
+                        final double rank = scores[j];
                         if (!Double.isNaN(rank)) {
                             if(rank>binThold)
-                                itemScores.add(new AbstractMap.SimpleImmutableEntry<Integer, Double>(j, rank));
+                                topN.offer(j, rank);
                         }
                     } else {
                         numCands--;
                     }
                 }
 
-                if (itemScores.size() == 0)
+                // order the top-N ranking scores from highest to lowest, ties in the order of the candidate items
+                int numRanked = topN.sort();
+                if (numRanked == 0)
                     continue; // no recommendations available for user u
 
-                // order the ranking scores from highest to lowest: List to preserve orders
-                Lists.sortList(itemScores, true);
-                List<Map.Entry<Integer, Double>> recomd = (numRecs <= 0 || itemScores.size() <= numRecs) ? itemScores
-                        : itemScores.subList(0, numRecs);
-
-                List<Integer> rankedItems = new ArrayList<>();
+                if (ranked.length < numRanked)
+                    ranked = new int[numRanked];
+                int size = 0;
                 StringBuilder sb = new StringBuilder();
                 int count = 0;
-                for (Map.Entry<Integer, Double> kv : recomd) {
-                    Integer item = kv.getKey();
-                    rankedItems.add(item);
+                for (int r = 0; r < numRanked; r++) {
+                    int item = topN.id(r);
+                    ranked[size++] = item;
 
                     if (isResultsOut && count < numTopNRanks) {
                         // restore back to the original item id
                         sb.append("(").append(rateDao.getItemId(item));
 
-                        if (posItems.contains(item))
+                        if (correctItems.get(item))
                             sb.append("*"); // indicating correct recommendation
 
-                        sb.append(", ").append(kv.getValue().floatValue()).append(")");
+                        sb.append(", ").append((float) topN.score(r)).append(")");
 
                         if (++count >= numTopNRanks)
                             break;
@@ -512,28 +488,21 @@ public class SPF extends ContextRecommender {
                     }
                 }
 
-                int numDropped = numCands - rankedItems.size();
-                double AUC = Measures.AUC(rankedItems, correctItems, numDropped);
-                double AP = Measures.AP(rankedItems, correctItems);
-                double nDCG = Measures.nDCG(rankedItems, correctItems);
-                double RR = Measures.RR(rankedItems, correctItems);
+                int numDropped = numCands - size;
+                List<Integer> rankedItems = Ints.asList(ranked).subList(0, size);
 
-                List<Integer> cutoffs = Arrays.asList(5, 10, numRecs);
-                Map<Integer, Double> precs = Measures.PrecAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> recalls = Measures.RecallAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> aucs = Measures.AUCAt(rankedItems, correctItems, numDropped,cutoffs);
-                Map<Integer, Double> aps = Measures.APAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> ndcgs = Measures.nDCGAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> rrs = Measures.RRAt(rankedItems, correctItems, cutoffs);
+                // all the measures at all the cutoffs, in one pass over the ranked items
+                Measures.rankingAt(ranked, size, correctItems, numCorrect, numDropped, rankingCutoffs, at, 0);
 
                 // ======== adapt to evaluation strategies ========
                 if (evalStrategy.equals("uc")) {
-                    precs5.add(precs.get(5));       precs10.add(precs.get(10));       precsN.add(precs.get(numRecs));
-                    recalls5.add(recalls.get(5));   recalls10.add(recalls.get(10));   recallsN.add(recalls.get(numRecs));
-                    aucs5.add(aucs.get(5));         aucs10.add(aucs.get(10));         aucsN.add(aucs.get(numRecs));
-                    aps5.add(aps.get(5));           aps10.add(aps.get(10));           apsN.add(aps.get(numRecs));
-                    rrs5.add(rrs.get(5));           rrs10.add(rrs.get(10));           rrsN.add(rrs.get(numRecs));
-                    ndcgs5.add(ndcgs.get(5));       ndcgs10.add(ndcgs.get(10));       ndcgsN.add(ndcgs.get(numRecs));
+                    precs5.add(at[0]);          precs10.add(at[1]);         precsN.add(at[2]);
+                    recalls5.add(at[n]);        recalls10.add(at[n + 1]);   recallsN.add(at[n + 2]);
+                    aucs5.add(at[2 * n]);       aucs10.add(at[2 * n + 1]);  aucsN.add(at[2 * n + 2]);
+                    aps5.add(at[3 * n]);        aps10.add(at[3 * n + 1]);   apsN.add(at[3 * n + 2]);
+                    rrs5.add(at[4 * n]);        rrs10.add(at[4 * n + 1]);   rrsN.add(at[4 * n + 2]);
+                    ndcgs5.add(at[5 * n]);      ndcgs10.add(at[5 * n + 1]); ndcgsN.add(at[5 * n + 2]);
+                    accumulate(at, 0, at_sums, at_counts);
 
                     if (isDiverseUsed) {
                         ds5.add(diverseAt(rankedItems, 5));
@@ -541,12 +510,13 @@ public class SPF extends ContextRecommender {
                         dsN.add(diverseAt(rankedItems, numRecs));
                     }
                 } else {
-                    c_precs5.add(precs.get(5));       c_precs10.add(precs.get(10));       c_precsN.add(precs.get(numRecs));
-                    c_recalls5.add(recalls.get(5));   c_recalls10.add(recalls.get(10));   c_recallsN.add(recalls.get(numRecs));
-                    c_aucs5.add(aucs.get(5));         c_aucs10.add(aucs.get(10));         c_aucsN.add(aucs.get(numRecs));
-                    c_aps5.add(aps.get(5));           c_aps10.add(aps.get(10));           c_apsN.add(aps.get(numRecs));
-                    c_rrs5.add(rrs.get(5));           c_rrs10.add(rrs.get(10));           c_rrsN.add(rrs.get(numRecs));
-                    c_ndcgs5.add(ndcgs.get(5));       c_ndcgs10.add(ndcgs.get(10));       c_ndcgsN.add(ndcgs.get(numRecs));
+                    c_precs5.add(at[0]);          c_precs10.add(at[1]);         c_precsN.add(at[2]);
+                    c_recalls5.add(at[n]);        c_recalls10.add(at[n + 1]);   c_recallsN.add(at[n + 2]);
+                    c_aucs5.add(at[2 * n]);       c_aucs10.add(at[2 * n + 1]);  c_aucsN.add(at[2 * n + 2]);
+                    c_aps5.add(at[3 * n]);        c_aps10.add(at[3 * n + 1]);   c_apsN.add(at[3 * n + 2]);
+                    c_rrs5.add(at[4 * n]);        c_rrs10.add(at[4 * n + 1]);   c_rrsN.add(at[4 * n + 2]);
+                    c_ndcgs5.add(at[5 * n]);      c_ndcgs10.add(at[5 * n + 1]); c_ndcgsN.add(at[5 * n + 2]);
+                    accumulate(at, 0, c_at_sums, c_at_counts);
 
                     if (isDiverseUsed) {
                         c_ds5.add(diverseAt(rankedItems, 5));
@@ -568,6 +538,9 @@ public class SPF extends ContextRecommender {
 
             if (!evalStrategy.equals("uc")) {
                 // calculate metrics for a specific user averaged by contexts
+                for (int m = 0; m < at.length; m++)
+                    at[m] = c_at_sums[m] / c_at_counts[m];
+                accumulate(at, 0, at_sums, at_counts);
                 ds5.add(isDiverseUsed ? Stats.mean(c_ds5) : 0.0);
                 ds10.add(isDiverseUsed ? Stats.mean(c_ds10) : 0.0);
                 dsN.add(isDiverseUsed ? Stats.mean(c_dsN) : 0.0);
@@ -625,6 +598,10 @@ public class SPF extends ContextRecommender {
         measures.put(Measure.MAPN, Stats.mean(apsN));
         measures.put(Measure.MRRN, Stats.mean(rrsN));
 
+        for (int m = 0; m < at.length; m++)
+            at[m] = at_sums[m] / at_counts[m];
+        cutoffMeasures = getCutoffMeasures(at, 0);
+
         return measures;
     }
 
@@ -726,7 +703,16 @@ public class SPF extends ContextRecommender {
 
     @Override
     protected double predict(int u, int j, int c) throws Exception {
-        return globalMean + userBias.get(u) + itemBias.get(j) + DenseMatrix.rowMult(P, u, Q, j);
+        return globalMean + userBias.get(u) + itemBias.get(j) + carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
+    }
+
+    @Override
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        // Q * p_u of the model of context c, plus the biases
+        carskit.data.structure.DenseMatrix.rowMults(Q, carskit.data.structure.DenseMatrix.rowOf(P, u), out);
+        double base = globalMean + userBias.get(u);
+        for (int j = 0; j < out.length; j++)
+            out[j] = base + itemBias.get(j) + out[j];
     }
 
     @Override
@@ -27,21 +27,30 @@ import happy.coding.io.Logs;
 import happy.coding.io.Strings;
 import happy.coding.math.Stats;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import carskit.data.structure.SparseMatrix;
+import carskit.data.structure.UserItemIndex;
 import librec.data.SparseTensor;
 
 import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multiset;
-import com.google.common.collect.Table;
+import com.google.common.hash.Hashing;
 import librec.data.SparseVector;
 import org.apache.commons.math3.analysis.function.Max;
 import org.apache.commons.math3.stat.inference.TTest;
@@ -72,19 +81,16 @@ public class DataDAO {
 
     // variables for full data statistics
     private boolean fullStat = false;
+
+    // number of threads to parse the data file
+    private int numThreads = 1;
     private SparseMatrix rateMatrix_UI;
     private SparseMatrix rateMatrix_UC;
     private SparseMatrix rateMatrix_IC;
     private double density_unique_ui;
     private double density_unique_uc;
     private double density_unique_ic;
-    private HashMap<Integer, Double> rates_c;
-    private HashMap<Integer, Double> rates_c_count;
-    private HashMap<Integer, Double> rates_u_count;
-    private HashMap<Integer, Double> rates_i_count;
-    private Collection<Double> ratingDist_ui;
-    private Collection<Double> ratingDist_uc;
-    private Collection<Double> ratingDist_ic;
+    private RatingStats stats;
 
 
     // data scales
@@ -98,6 +104,9 @@ public class DataDAO {
     // user/item {raw id, inner id} map
     private BiMap<String, Integer> userIds, itemIds, ctxIds, uiIds, dimIds, condIds;
 
+    // {(user inner id, item inner id), user-item inner id} index
+    private UserItemIndex uiIndex;
+
     // inverse views of userIds, itemIds, contextidmensionIds, contextconditionIds, UIIds (i.e.,  <user, item> ids)
     private BiMap<Integer, String> idUsers, idItems, idCtx, idUIs, idDims, idConds;
 
@@ -107,8 +116,15 @@ public class DataDAO {
     private HashMap<Integer, Integer> uiUserIds, uiItemIds, condDimensionMap;
     private HashMap<Integer,  ArrayList<Integer>> dimensionConditionsList, contextConditionsList;
 
+    // primitive indices of the conditions of contexts: built from the two lists above when needed
+    private volatile ConditionIndex conditionIndex;
+
     private ArrayList<Integer> EmptyContextConditions;
 
+    // header of binary data snapshots; increase the version whenever the layout changes
+    private static final int SNAPSHOT_MAGIC = 0x43415253; // "CARS"
+    private static final int SNAPSHOT_VERSION = 1;
+
 
     /**
      * Constructor for a data DAO object
@@ -119,13 +135,15 @@ public class DataDAO {
     public DataDAO(String path, BiMap<String, Integer> userIds, BiMap<String, Integer>itemIds, BiMap<String, Integer> ctxIds, BiMap<String, Integer> uiIds,
                    BiMap<String, Integer> dimIds, BiMap<String, Integer> condIds, Multimap<Integer, Integer> uRatedList, Multimap<Integer, Integer> iRatedList,
                    Multimap<Integer, Integer> dimConditionsList, HashMap<Integer, Integer> condDimensionMap, Multimap<Integer, Integer> condContextsList,
-                   HashMap<Integer,  ArrayList<Integer>> contextConditionsList, HashMap<Integer, Integer> uiUserIds, HashMap<Integer, Integer>  uiItemIds) {
+                   HashMap<Integer,  ArrayList<Integer>> contextConditionsList, HashMap<Integer, Integer> uiUserIds, HashMap<Integer, Integer>  uiItemIds,
+                   UserItemIndex uiIndex) {
         dataPath = path;
 
         this.userIds = (userIds==null) ? HashBiMap.<String, Integer>create() : (HashBiMap<String, Integer>)userIds;
         this.itemIds = (itemIds==null) ? HashBiMap.<String, Integer>create() : (HashBiMap<String, Integer>)itemIds;
         this.ctxIds = (ctxIds==null) ? HashBiMap.<String, Integer>create() : (HashBiMap<String, Integer>)ctxIds;
         this.uiIds = (uiIds==null) ? HashBiMap.<String, Integer>create() : (HashBiMap<String, Integer>)uiIds;
+        this.uiIndex = (uiIndex==null) ? new UserItemIndex() : uiIndex;
         this.dimIds = (dimIds==null) ? HashBiMap.<String, Integer>create() : (HashBiMap<String, Integer>)dimIds;
         this.condIds = (condIds==null) ? HashBiMap.<String, Integer>create() : (HashBiMap<String, Integer>)condIds;
 
@@ -149,7 +167,7 @@ public class DataDAO {
      *            path to data file
      */
     public DataDAO(String path) {
-        this(path, null, null, null, null, null, null, null, null, null, null,null,null,null,null);
+        this(path, null, null, null, null, null, null, null, null, null, null,null,null,null,null,null);
     }
 
 
@@ -170,27 +188,16 @@ public class DataDAO {
         else
             Logs.info(String.format("Dataset: %s", Strings.last(dataPath, 38)));
 
-        // Table {row-id, col-id, rate}
-        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-        // Map {col-id, multiple row-id}: used to fast build a rating matrix
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        // full data statistics are only collected by the sequential reader
+        if (numThreads > 1 && !fullStat)
+            return readDataInParallel();
 
-
-        Table<Integer, Integer, Double> dataTable_ui=null, dataTable_uc=null, dataTable_ic=null, dataTable_ui_counter=null, dataTable_uc_counter=null, dataTable_ic_counter=null;
-        Multimap<Integer, Integer> colMap_ui=null, colMap_uc=null, colMap_ic=null;
-
-        if(fullStat){
-            dataTable_ui=HashBasedTable.create();
-            dataTable_uc=HashBasedTable.create();
-            dataTable_ic=HashBasedTable.create();
-            dataTable_ui_counter=HashBasedTable.create();
-            dataTable_uc_counter=HashBasedTable.create();
-            dataTable_ic_counter=HashBasedTable.create();
-
-            colMap_ui = HashMultimap.create();
-            colMap_uc = HashMultimap.create();
-            colMap_ic = HashMultimap.create();
-        }
+        // growable {row-id, col-id, rate} triplets: used to build the CRS/CCS arrays of the rating matrix directly
+        int capacity = 1 << 16;
+        int[] uiBuf = new int[capacity];
+        int[] ctxBuf = new int[capacity];
+        double[] rateBuf = new double[capacity];
+        int size = 0;
 
 
         EmptyContextConditions=new ArrayList<>();
@@ -199,33 +206,29 @@ public class DataDAO {
         String line = br.readLine(); // 1st line is header in shape of: user, item, rating, dim1:c1, dim1:c2, ....
         String[] data = line.trim().split("[\t,]+");
         // indexing context dimensions and ctx
-        for(int i=3;i<data.length;++i){
-            String context=data[i].trim();
-            String[] cs=context.split(":");
-            String dim=cs[0].trim();
-            int dimc = dimIds.containsKey(dim) ? dimIds.get(dim) : dimIds.size(); // hash dimension Ids, from 0 to N
-            dimIds.put(dim,dimc);
-            condIds.put(context,i-3);
-            dimConditionsList.put(dimc,i-3);
-            condDimensionMap.put(i-3,dimc); // key = condId, value = dimId
-
-            // record which conditions are the empty contexts, i.e., the condition value = NA
-            if(context.endsWith(":na"))
-                EmptyContextConditions.add(i-3);
-        }
+        for(int i=3;i<data.length;++i)
+            indexCondition(data[i].trim(), i - 3);
 
-        rates_c = new HashMap<>();
-        rates_c_count = new HashMap<>();
-        rates_u_count = new HashMap<>();
-        rates_i_count = new HashMap<>();
+        // statistics are collected for all but the empty conditions
+        stats = fullStat ? new RatingStats(numConditions()) : null;
+        boolean[] isEmptyCondition = new boolean[numConditions()];
+        for (int cond : EmptyContextConditions)
+            isEmptyCondition[cond] = true;
 
+        StringBuilder sb_ctx = new StringBuilder();
         while ((line = br.readLine()) != null) {
-            //data = line.trim().split("[\t,]+");
-            data = line.trim().split(",",-1);
+            line = line.trim();
+
+            // fields are scanned in place rather than split into a new array for each line
+            int end0 = line.indexOf(',');
+            int end1 = line.indexOf(',', end0 + 1);
+            int end2 = line.indexOf(',', end1 + 1);
+            if (end2 < 0)
+                end2 = line.length();
 
-            String user = data[0];
-            String item = data[1];
-            Double rate = Double.valueOf(data[2]);
+            String user = line.substring(0, end0);
+            String item = line.substring(end0 + 1, end1);
+            double rate = Double.parseDouble(line.substring(end1 + 1, end2));
 
             // binarize the rating for item recommendation task
             //if (binThold >= 0)
@@ -234,113 +237,63 @@ public class DataDAO {
             scaleDist.add(rate);
 
             // inner id starting from 0
-            int row = userIds.containsKey(user) ? userIds.get(user) : userIds.size();
-            userIds.put(user, row);
-
-            int col = itemIds.containsKey(item) ? itemIds.get(item) : itemIds.size();
-            itemIds.put(item, col);
-
-            // create UI matrix
-            if(fullStat){
-                if(dataTable_ui.contains(row,col)){
-                    dataTable_ui.put(row,col,rate+dataTable_ui.get(row,col));
-                    dataTable_ui_counter.put(row,col,1+dataTable_ui_counter.get(row,col));
-                }else{
-                    dataTable_ui.put(row,col,rate);
-                    dataTable_ui_counter.put(row,col,1.0);
-                    colMap_ui.put(col,row);
-                }
-
-                if(rates_u_count.containsKey(row))
-                    rates_u_count.put(row, 1.0+rates_u_count.get(row));
-                else
-                    rates_u_count.put(row, 1.0);
-
-                if(rates_i_count.containsKey(col))
-                    rates_i_count.put(col, 1.0+rates_i_count.get(col));
-                else
-                    rates_i_count.put(col, 1.0);
+            Integer row = userIds.get(user);
+            if (row == null) {
+                row = userIds.size();
+                userIds.put(user, row);
             }
 
-            // also, indexing (user,item); note: user inner id as key
-            String useritem=row+","+col;
-            int uic = uiIds.containsKey(useritem) ? uiIds.get(useritem) : uiIds.size();
-            uiIds.put(useritem,uic);
-
+            Integer col = itemIds.get(item);
+            if (col == null) {
+                col = itemIds.size();
+                itemIds.put(item, col);
+            }
 
-            // add ui to uList and iList; multiple non-duplicate values will be added to a same key
-            uRatedList.put(row,uic);
-            iRatedList.put(col,uic);
+            // collect statistics of UI matrix
+            if(fullStat)
+                stats.add(row, col, rate);
 
-            uiUserIds.put(uic,row);
-            uiItemIds.put(uic,col);
+            // also, indexing (user,item); note: user inner id as key
+            int uic = uiIndex.get(row, col);
+            if (uic < 0)
+                uic = indexUserItem(row, col);
 
             // indexing ctx; only record ID which is correlated with the header
-            StringBuilder sb_ctx=new StringBuilder();
-            ArrayList<Integer> condList=new ArrayList<>();
-            for(int i=3;i<data.length;++i)
+            sb_ctx.setLength(0);
+            int start = end2 + 1;
+            for(int i=3;start<=line.length();++i)
             {
-                if(data[i].trim().equals(""))
-                    Logs.error(line+"; "+data[i]);
-                int value=Integer.valueOf(data[i].trim());
+                int end = line.indexOf(',', start);
+                if (end < 0)
+                    end = line.length();
+                int value = parseFlag(line, start, end);
+                start = end + 1;
                 if(value==1) {
                     if (sb_ctx.length() > 0) sb_ctx.append(",");
                     sb_ctx.append(i - 3);
-                    condList.add(i-3);
-
-                    if(fullStat && !EmptyContextConditions.contains(i-3)){
-                        // create UC matrix
-                        if(dataTable_uc.contains(row, i-3)){
-                            dataTable_uc.put(row, i-3, rate+dataTable_uc.get(row, i-3));
-                            dataTable_uc_counter.put(row, i-3, 1.0+dataTable_uc_counter.get(row, i-3));
-                        }else
-                        {
-                            dataTable_uc.put(row, i-3, rate);
-                            dataTable_uc_counter.put(row, i-3, 1.0);
-                            colMap_uc.put(i-3, row);
-                        }
-
-                        // create IC matrix
-                        if(dataTable_ic.contains(col, i-3)){
-                            dataTable_ic.put(col, i-3, rate+dataTable_ic.get(col, i-3));
-                            dataTable_ic_counter.put(col, i-3, 1.0+dataTable_ic_counter.get(col, i-3));
-                        }else
-                        {
-                            dataTable_ic.put(col, i-3, rate);
-                            dataTable_ic_counter.put(col, i-3, 1.0);
-                            colMap_ic.put(i-3, col);
-                        }
 
-                        // collect ratings for each context condition
-                        if(rates_c.containsKey(i-3)){
-                            rates_c.put(i-3, rate+rates_c.get(i-3));
-                            rates_c_count.put(i-3, 1.0+rates_c_count.get(i-3));
-                        }else
-                        {
-                            rates_c.put(i-3, rate);
-                            rates_c_count.put(i-3, 1.0);
-                        }
-                    }
+                    // collect statistics of UC and IC matrices, and of each context condition
+                    if(fullStat && !isEmptyCondition[i-3])
+                        stats.addCondition(row, col, i-3, rate);
                 }
-
-
-
-
             }
             String ctx=sb_ctx.toString();
             // inner id starting from 0
-            int cc=ctxIds.containsKey(ctx) ? ctxIds.get(ctx) : ctxIds.size();
-            ctxIds.put(ctx, cc);
-            contextConditionsList.put(cc, condList);
-            for(Integer cond:condList) {
-                //contextConditionsList.put(cc, cond);
-                this.condContextsList.put(cond, cc);
+            Integer cc=ctxIds.get(ctx);
+            if(cc==null)
+                cc = indexContext(ctx);
+
+            // useritem, ctx, rating
+            if (size == uiBuf.length) {
+                capacity = size + (size >> 1);
+                uiBuf = Arrays.copyOf(uiBuf, capacity);
+                ctxBuf = Arrays.copyOf(ctxBuf, capacity);
+                rateBuf = Arrays.copyOf(rateBuf, capacity);
             }
-
-            //System.out.println(useritem+"; "+ctx+"; "+rate);
-
-            dataTable.put(uic, cc, rate); // useritem, ctx, rating
-            colMap.put(cc, uic);
+            uiBuf[size] = uic;
+            ctxBuf[size] = cc;
+            rateBuf[size] = rate;
+            size++;
 
         }
         br.close();
@@ -351,66 +304,532 @@ public class DataDAO {
 
 
         // build rating matrix
-        rateMatrix = new SparseMatrix(numUserItems(), numContexts(), dataTable, colMap);
+        rateMatrix = SparseMatrix.fromTriplets(numUserItems(), numContexts(), uiBuf, ctxBuf, rateBuf, size);
+        uiBuf = null;
+        ctxBuf = null;
+        rateBuf = null;
 
         // build other matrices
         if(fullStat){
-            density_unique_ui = 0;
-            density_unique_uc = 0;
-            density_unique_ic = 0;
-
-
-            // UI Matrix
-            for(int row:dataTable_ui.rowKeySet())
-                for(int col:dataTable_ui.columnKeySet()){
-                    if(dataTable_ui.contains(row, col)) {
-                        double counter = dataTable_ui_counter.get(row, col);
-                        if(counter>1) density_unique_ui+=1.0;
-                        dataTable_ui.put(row, col, dataTable_ui.get(row, col) / counter);
+            RatingStats.Pairs ui = stats.getUserItemPairs();
+            RatingStats.Pairs uc = stats.getUserConditionPairs();
+            RatingStats.Pairs ic = stats.getItemConditionPairs();
+
+            density_unique_ui = ui.numRepeated();
+            density_unique_uc = uc.numRepeated();
+            density_unique_ic = ic.numRepeated();
+
+            rateMatrix_UI = ui.toMatrix(numUsers(), numItems());
+            rateMatrix_UC = uc.toMatrix(numUsers(), numConditions());
+            rateMatrix_IC = ic.toMatrix(numItems(), numConditions());
+        }
+
+        Logs.info("Rating data set has been successfully loaded.");
+        return rateMatrix;
+    }
+
+    /**
+     * Read data by parsing chunks of the data file in parallel. Each chunk is parsed with its own local dictionaries,
+     * which are then merged into the global ones in file order; hence all inner ids are the same as those of a
+     * sequential read.
+     *
+     * @return a sparse matrix storing all the relevant data
+     */
+    private SparseMatrix readDataInParallel() throws Exception {
+
+        EmptyContextConditions=new ArrayList<>();
+        Logs.info("DataPath: "+dataPath);
+        BufferedReader br = FileIO.getReader(dataPath);
+        String line = br.readLine(); // 1st line is header in shape of: user, item, rating, dim1:c1, dim1:c2, ....
+        br.close();
+        String[] data = line.trim().split("[\t,]+");
+        // indexing context dimensions and ctx
+        for(int i=3;i<data.length;++i)
+            indexCondition(data[i].trim(), i - 3);
+
+        List<DataChunk> chunks = new LineChunks(dataPath, numThreads, true).parse(numThreads,
+                new LineChunks.Parser<DataChunk>() {
+
+                    @Override
+                    public DataChunk parse(String[] lines) throws Exception {
+                        DataChunk chunk = new DataChunk();
+                        for (String line : lines)
+                            chunk.add(line);
+                        return chunk;
                     }
+                });
+
+        int size = 0;
+        for (DataChunk chunk : chunks)
+            size += chunk.size;
+        int[] uiBuf = new int[size];
+        int[] ctxBuf = new int[size];
+        double[] rateBuf = new double[size];
+
+        size = 0;
+        for (DataChunk chunk : chunks) {
+            for (Map.Entry<Double, Integer> en : chunk.scales.entrySet())
+                scaleDist.add(en.getKey(), en.getValue());
+
+            int[] users = new int[chunk.userIds.size()];
+            int k = 0;
+            for (String user : chunk.userIds.keySet()) {
+                Integer row = userIds.get(user);
+                if (row == null) {
+                    row = userIds.size();
+                    userIds.put(user, row);
                 }
-            rateMatrix_UI = new SparseMatrix(numUsers(), numItems(), dataTable_ui, colMap_ui);
-
-            // UC matrix
-            for(int row:dataTable_uc.rowKeySet())
-                for(int col:dataTable_uc.columnKeySet()){
-                    if(dataTable_uc.contains(row, col)) {
-                        double counter = dataTable_uc_counter.get(row, col);
-                        if(counter>1) density_unique_uc+=1.0;
-                        dataTable_uc.put(row, col, dataTable_uc.get(row, col) / counter);
-                    }
+                users[k++] = row;
+            }
+
+            int[] items = new int[chunk.itemIds.size()];
+            k = 0;
+            for (String item : chunk.itemIds.keySet()) {
+                Integer col = itemIds.get(item);
+                if (col == null) {
+                    col = itemIds.size();
+                    itemIds.put(item, col);
                 }
-            rateMatrix_UC = new SparseMatrix(numUsers(), numConditions(), dataTable_uc, colMap_uc);
-
-            // IC matrix
-            for(int row:dataTable_ic.rowKeySet())
-                for(int col:dataTable_ic.columnKeySet()){
-                    if(dataTable_ic.contains(row, col)) {
-                        double counter = dataTable_ic_counter.get(row, col);
-                        if (counter > 1) density_unique_ic += 1.0;
-                        dataTable_ic.put(row, col, dataTable_ic.get(row, col) / counter);
-                    }
+                items[k++] = col;
+            }
+
+            int[] uis = new int[chunk.uiIds.size()];
+            k = 0;
+            for (long key : chunk.uiIds.keySet()) {
+                int row = users[(int) (key >>> 32)];
+                int col = items[(int) key];
+                int uic = uiIndex.get(row, col);
+                if (uic < 0)
+                    uic = indexUserItem(row, col);
+                uis[k++] = uic;
+            }
+
+            int[] ctxs = new int[chunk.ctxIds.size()];
+            k = 0;
+            for (String ctx : chunk.ctxIds.keySet()) {
+                Integer cc = ctxIds.get(ctx);
+                if (cc == null)
+                    cc = indexContext(ctx);
+                ctxs[k++] = cc;
+            }
+
+            for (int t = 0; t < chunk.size; t++, size++) {
+                uiBuf[size] = uis[chunk.uis[t]];
+                ctxBuf[size] = ctxs[chunk.ctxs[t]];
+                rateBuf[size] = chunk.rates[t];
+            }
+        }
+
+        numRatings = scaleDist.size();
+        ratingScale = new ArrayList<>(scaleDist.elementSet());
+        Collections.sort(ratingScale);
+
+        // build rating matrix
+        rateMatrix = SparseMatrix.fromTriplets(numUserItems(), numContexts(), uiBuf, ctxBuf, rateBuf, size);
+
+        Logs.info("Rating data set has been successfully loaded.");
+        return rateMatrix;
+    }
+
+    /**
+     * Ratings parsed from a chunk of the data file, indexed by local ids in order of first appearance
+     */
+    private static class DataChunk {
+        LinkedHashMap<String, Integer> userIds = new LinkedHashMap<>();
+        LinkedHashMap<String, Integer> itemIds = new LinkedHashMap<>();
+        LinkedHashMap<String, Integer> ctxIds = new LinkedHashMap<>();
+        // key = (local user id << 32) | local item id
+        LinkedHashMap<Long, Integer> uiIds = new LinkedHashMap<>();
+        // rating scale with counts
+        LinkedHashMap<Double, Integer> scales = new LinkedHashMap<>();
+
+        int size = 0;
+        int[] uis = new int[1024];
+        int[] ctxs = new int[1024];
+        double[] rates = new double[1024];
+
+        private StringBuilder sb_ctx = new StringBuilder();
+
+        void add(String line) {
+            line = line.trim();
+
+            int end0 = line.indexOf(',');
+            int end1 = line.indexOf(',', end0 + 1);
+            int end2 = line.indexOf(',', end1 + 1);
+            if (end2 < 0)
+                end2 = line.length();
+
+            String user = line.substring(0, end0);
+            String item = line.substring(end0 + 1, end1);
+            double rate = Double.parseDouble(line.substring(end1 + 1, end2));
+
+            Integer count = scales.get(rate);
+            scales.put(rate, count == null ? 1 : count + 1);
+
+            long row = localId(userIds, user);
+            int col = localId(itemIds, item);
+            int uic = localId(uiIds, (row << 32) | col);
+
+            sb_ctx.setLength(0);
+            int start = end2 + 1;
+            for(int i=3;start<=line.length();++i)
+            {
+                int end = line.indexOf(',', start);
+                if (end < 0)
+                    end = line.length();
+                int value = parseFlag(line, start, end);
+                start = end + 1;
+                if(value==1) {
+                    if (sb_ctx.length() > 0) sb_ctx.append(",");
+                    sb_ctx.append(i - 3);
                 }
-            rateMatrix_IC = new SparseMatrix(numItems(), numConditions(), dataTable_ic, colMap_ic);
+            }
+            int cc = localId(ctxIds, sb_ctx.toString());
+
+            if (size == uis.length) {
+                int capacity = size + (size >> 1);
+                uis = Arrays.copyOf(uis, capacity);
+                ctxs = Arrays.copyOf(ctxs, capacity);
+                rates = Arrays.copyOf(rates, capacity);
+            }
+            uis[size] = uic;
+            ctxs[size] = cc;
+            rates[size] = rate;
+            size++;
+        }
 
-            ratingDist_ui=dataTable_ui_counter.values();
-            ratingDist_uc=dataTable_uc_counter.values();
-            ratingDist_ic=dataTable_ic_counter.values();
+        private static <K> int localId(Map<K, Integer> ids, K key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            return id;
         }
+    }
+
+    /**
+     * Index a context condition given in the header, in shape of dim:c
+     */
+    private void indexCondition(String context, int condId) {
+        String[] cs=context.split(":");
+        String dim=cs[0].trim();
+        int dimc = dimIds.containsKey(dim) ? dimIds.get(dim) : dimIds.size(); // hash dimension Ids, from 0 to N
+        dimIds.put(dim,dimc);
+        condIds.put(context,condId);
+        dimConditionsList.put(dimc,condId);
+        condDimensionMap.put(condId,dimc); // key = condId, value = dimId
+
+        // record which conditions are the empty contexts, i.e., the condition value = NA
+        if(context.endsWith(":na"))
+            EmptyContextConditions.add(condId);
+    }
+
+    /**
+     * Index a new (user, item) pair
+     *
+     * @return inner user-item id
+     */
+    private int indexUserItem(int row, int col) {
+        int uic = uiIds.size();
+        uiIds.put(row + "," + col, uic);
+        uiIndex.put(row, col, uic);
+
+        // add ui to uList and iList; multiple non-duplicate values will be added to a same key
+        uRatedList.put(row, uic);
+        iRatedList.put(col, uic);
 
-        // release memory of data table
-        dataTable = null;
-        dataTable_ui = null;
-        dataTable_ui_counter=null;
-        dataTable_uc = null;
-        dataTable_uc_counter = null;
-        dataTable_ic = null;
-        dataTable_ic_counter = null;
+        uiUserIds.put(uic, row);
+        uiItemIds.put(uic, col);
+        return uic;
+    }
+
+    /**
+     * Index a new context situation and its conditions, in shape of 1,2,3
+     *
+     * @return inner context id
+     */
+    private int indexContext(String ctx) {
+        int cc = ctxIds.size();
+        ctxIds.put(ctx, cc);
+        ArrayList<Integer> condList = new ArrayList<>();
+        if (ctx.length() > 0)
+            for (String cond : ctx.split(","))
+                condList.add(Integer.valueOf(cond));
+        contextConditionsList.put(cc, condList);
+        for(Integer cond:condList) {
+            this.condContextsList.put(cond, cc);
+        }
+        return cc;
+    }
+
+    /**
+     * Parse a binary context flag in {@code line[start, end)}; the common single-digit case is read without
+     * creating a substring.
+     */
+    private static int parseFlag(String line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ')
+            start++;
+        while (end > start && line.charAt(end - 1) <= ' ')
+            end--;
+
+        if (end - start == 1) {
+            char ch = line.charAt(start);
+            if (ch >= '0' && ch <= '9')
+                return ch - '0';
+        }
+        if (start == end)
+            Logs.error(line + "; " + line.substring(start, end));
+        return Integer.parseInt(line.substring(start, end));
+    }
+
+    /**
+     * Compute the content hash of a data file, which is used as the key of a binary snapshot
+     *
+     * @param path
+     *            path to data file
+     * @return hash of the file content, or null if the file does not exist
+     */
+    public static String hashFile(String path) throws Exception {
+        File file = new File(path);
+        if (!file.exists())
+            return null;
+
+        return com.google.common.io.Files.hash(file, Hashing.murmur3_128()).toString() + "-" + file.length();
+    }
+
+    /**
+     * Write the loaded data as a binary snapshot, i.e., the CRS arrays of the rating matrix, the rating scale and all
+     * id dictionaries, so that later runs can map it back by {@code readSnapshot} without parsing the data file. A
+     * snapshot which is too large to be mapped in one buffer is not written.
+     *
+     * @param path
+     *            path to snapshot file
+     * @param key
+     *            content hash of the source data file
+     */
+    public void writeSnapshot(String path, String key) throws Exception {
+        long size = snapshotSize(key);
+        if (size > Integer.MAX_VALUE) {
+            Logs.info("Data snapshot is not written, since it exceeds 2GB: " + size + " bytes");
+            return;
+        }
+
+        File tmp = new File(path + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        writeString(out, key);
+
+        // rating scale
+        out.writeInt(numRatings);
+        Set<Multiset.Entry<Double>> scales = scaleDist.entrySet();
+        out.writeInt(scales.size());
+        for (Multiset.Entry<Double> en : scales) {
+            out.writeDouble(en.getElement());
+            out.writeInt(en.getCount());
+        }
+
+        // dictionaries, in order of inner ids
+        writeStrings(out, condIds.inverse(), numConditions());
+        writeStrings(out, userIds.inverse(), numUsers());
+        writeStrings(out, itemIds.inverse(), numItems());
+        writeStrings(out, ctxIds.inverse(), numContexts());
+        out.writeInt(numUserItems());
+        for (int uic = 0; uic < numUserItems(); uic++) {
+            out.writeInt(uiUserIds.get(uic));
+            out.writeInt(uiItemIds.get(uic));
+        }
+
+        // rating matrix
+        int[] rowPtr = rateMatrix.getRowPointers();
+        int[] colInd = rateMatrix.getColumnIndices();
+        double[] rowData = rateMatrix.getData();
+        out.writeInt(rateMatrix.numRows());
+        out.writeInt(rateMatrix.numColumns());
+        out.writeInt(rowData.length);
+        for (int v : rowPtr)
+            out.writeInt(v);
+        for (int v : colInd)
+            out.writeInt(v);
+        for (double v : rowData)
+            out.writeDouble(v);
+        out.close();
+
+        File file = new File(path);
+        if (file.exists())
+            file.delete();
+        if (!tmp.renameTo(file))
+            Logs.warn("Cannot write data snapshot: " + path);
+        else
+            Logs.info("Data snapshot has been written to " + path);
+    }
+
+    /**
+     * @return size of the snapshot in bytes, as written by {@code writeSnapshot}
+     */
+    private long snapshotSize(String key) {
+        long size = 8 + stringSize(key);
+
+        size += 8 + 12L * scaleDist.elementSet().size();
+        size += stringsSize(condIds.inverse(), numConditions());
+        size += stringsSize(userIds.inverse(), numUsers());
+        size += stringsSize(itemIds.inverse(), numItems());
+        size += stringsSize(ctxIds.inverse(), numContexts());
+        size += 4 + 8L * numUserItems();
+
+        size += 12 + 4L * (rateMatrix.numRows() + 1) + 12L * rateMatrix.getData().length;
+        return size;
+    }
+
+    private static long stringsSize(Map<Integer, String> ids, int size) {
+        long bytes = 4;
+        for (int k = 0; k < size; k++)
+            bytes += stringSize(ids.get(k));
+        return bytes;
+    }
+
+    private static long stringSize(String str) {
+        return 4 + str.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Load data from a binary snapshot written by {@code writeSnapshot}. The dictionaries are rebuilt in the same
+     * order as {@code readData} does, hence all inner ids are identical to those of parsing the data file. The whole
+     * snapshot is read before any of it is indexed, so that a truncated or corrupt one leaves this object untouched
+     * for parsing the data file instead.
+     *
+     * @param path
+     *            path to snapshot file
+     * @param key
+     *            content hash of the source data file
+     * @return the rate matrix, or null if the snapshot does not exist, is out of date or cannot be read
+     */
+    public SparseMatrix readSnapshot(String path, String key) throws Exception {
+        File file = new File(path);
+        if (key == null || !file.exists() || file.length() > Integer.MAX_VALUE)
+            return null;
+
+        MappedByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int ratings, rows, cols;
+        double[] scales, rowData;
+        int[] scaleCounts, uiRows, uiCols, rowPtr, colInd;
+        String[] conds, users, items, ctxs;
+        try {
+            if (buf.getInt() != SNAPSHOT_MAGIC || buf.getInt() != SNAPSHOT_VERSION || !key.equals(readString(buf))) {
+                Logs.info("Data snapshot is out of date and will be rebuilt: " + path);
+                return null;
+            }
+
+            ratings = buf.getInt();
+            int numScales = readCount(buf, 12);
+            scales = new double[numScales];
+            scaleCounts = new int[numScales];
+            for (int k = 0; k < numScales; k++) {
+                scales[k] = buf.getDouble();
+                scaleCounts[k] = buf.getInt();
+            }
+
+            conds = readStrings(buf);
+            users = readStrings(buf);
+            items = readStrings(buf);
+            ctxs = readStrings(buf);
+            int numUIs = readCount(buf, 8);
+            uiRows = new int[numUIs];
+            uiCols = new int[numUIs];
+            for (int k = 0; k < numUIs; k++) {
+                uiRows[k] = buf.getInt();
+                uiCols[k] = buf.getInt();
+            }
+
+            rows = buf.getInt();
+            cols = buf.getInt();
+            int nnz = buf.getInt();
+            if (rows < 0 || nnz < 0 || 4L * (rows + 1) + 12L * nnz != buf.remaining())
+                throw new BufferUnderflowException();
+            rowPtr = new int[rows + 1];
+            colInd = new int[nnz];
+            rowData = new double[nnz];
+            buf.asIntBuffer().get(rowPtr);
+            buf.position(buf.position() + 4 * rowPtr.length);
+            buf.asIntBuffer().get(colInd);
+            buf.position(buf.position() + 4 * nnz);
+            buf.asDoubleBuffer().get(rowData);
+        } catch (BufferUnderflowException e) {
+            Logs.info("Data snapshot is truncated or corrupt and will be rebuilt: " + path);
+            return null;
+        }
+
+        if (CARSKit.isMeasuresOnly)
+            Logs.debug(String.format("Dataset: %s", Strings.last(dataPath, 38)));
+        else
+            Logs.info(String.format("Dataset: %s (snapshot)", Strings.last(dataPath, 38)));
+
+        numRatings = ratings;
+        for (int k = 0; k < scales.length; k++)
+            scaleDist.add(scales[k], scaleCounts[k]);
+        ratingScale = new ArrayList<>(scaleDist.elementSet());
+        Collections.sort(ratingScale);
+
+        EmptyContextConditions = new ArrayList<>();
+        for (int k = 0; k < conds.length; k++)
+            indexCondition(conds[k], k);
+        for (int k = 0; k < users.length; k++)
+            userIds.put(users[k], k);
+        for (int k = 0; k < items.length; k++)
+            itemIds.put(items[k], k);
+        for (String ctx : ctxs)
+            indexContext(ctx);
+        for (int k = 0; k < uiRows.length; k++)
+            indexUserItem(uiRows[k], uiCols[k]);
+
+        rateMatrix = new SparseMatrix(rows, cols, rowPtr, colInd, rowData);
 
         Logs.info("Rating data set has been successfully loaded.");
         return rateMatrix;
     }
 
+    private static void writeStrings(DataOutputStream out, Map<Integer, String> ids, int size) throws Exception {
+        out.writeInt(size);
+        for (int k = 0; k < size; k++)
+            writeString(out, ids.get(k));
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws Exception {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String[] readStrings(ByteBuffer buf) {
+        String[] strs = new String[readCount(buf, 4)];
+        for (int k = 0; k < strs.length; k++)
+            strs[k] = readString(buf);
+        return strs;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[readCount(buf, 1)];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the number of entries of a section, which must fit in the rest of the buffer given the (minimum) size of
+     * each entry; a count which does not is read from a truncated or corrupt snapshot.
+     */
+    private static int readCount(ByteBuffer buf, int entryBytes) {
+        int count = buf.getInt();
+        if (count < 0 || (long) count * entryBytes > buf.remaining())
+            throw new BufferUnderflowException();
+        return count;
+    }
+
     public HashMap<Integer, ArrayList<Integer>> getDimensionConditionsList()
     {
         return this.dimensionConditionsList;
@@ -527,6 +946,14 @@ public class DataDAO {
         this.fullStat = full;
     }
 
+    /**
+     * @param numThreads
+     *            number of threads to parse the data file; the file is read sequentially if it is not greater than 1
+     */
+    public void setNumThreads(int numThreads){
+        this.numThreads = numThreads;
+    }
+
 
     /**
      * print out specifications of the dataset
@@ -573,10 +1000,11 @@ public class DataDAO {
 
         // user/item mean
         double[] data = rateMatrix.getData();
+        RatingStats.Histogram hist = new RatingStats.Histogram(data, Doubles.toArray(ratingScale));
         float mean = (float) (Stats.sum(data) / numRates);
         float std = (float) Stats.sd(data);
-        float mode = (float) Stats.mode(data);
-        float median = (float) Stats.median(data);
+        float mode = (float) hist.mode();
+        float median = (float) hist.median();
         sps.add(String.format("Average value of all ratings: %f", mean));
         sps.add(String.format("Standard deviation of all ratings: %f", std));
         sps.add(String.format("Mode of all rating values: %f", mode));
@@ -585,19 +1013,19 @@ public class DataDAO {
         if(fullStat){
 
             sps.add("");
-            Collection<Double> ratingDist_c=rates_c_count.values();
-            Collection<Double> ratingDist_u=rates_u_count.values();
-            Collection<Double> ratingDist_i=rates_i_count.values();
-            sps.add("Distribution of rate counts per user: mean = "+Stats.mean(ratingDist_u)+", median = "+Stats.median(ratingDist_u)+", sd = "+Stats.sd(ratingDist_u));
-            sps.add("Distribution of rate counts per item: mean = "+Stats.mean(ratingDist_i)+", median = "+Stats.median(ratingDist_i)+", sd = "+Stats.sd(ratingDist_i));
-            sps.add("Distribution of rate counts per context condition: mean = "+Stats.mean(ratingDist_c)+", median = "+Stats.median(ratingDist_c)+", sd = "+Stats.sd(ratingDist_c));
+            sps.add("Distribution of rate counts per user: "+describeCounts(stats.getUsers().getCounts()));
+            sps.add("Distribution of rate counts per item: "+describeCounts(stats.getItems().getCounts()));
+            sps.add("Distribution of rate counts per context condition: "+describeCounts(stats.getConditions().getCounts()));
             sps.add("");
             sps.add("Average rating in each context condition: (Average, Counts)");
-            Lists.sortMap(rates_c,false);
-            for(int c:rates_c.keySet()){
-                sps.add(this.getContextConditionId(c)+" - "+String.format("%.6f", rates_c.get(c)/rates_c_count.get(c)) + ", "+rates_c_count.get(c).intValue());
+            for(int c=0;c<conds;++c){
+                int count=stats.getConditions().getCount(c);
+                if(count>0)
+                    sps.add(this.getContextConditionId(c)+" - "+String.format("%.6f", stats.getConditions().getMean(c)) + ", "+count);
             }
 
+            // moments of the pair averages, from the primitive sums of the pairs
+            double[] moments;
             data = rateMatrix_UI.getData();
             double numRates_M = data.length;
             sps.add("");
@@ -607,15 +1035,17 @@ public class DataDAO {
             sps.add("Rate amount: " + numRates_M);
             sps.add(String.format("Data density: %.4f%%", (numRates_M + 0.0) / users / items * 100));
             sps.add(String.format("Data density (unique pairs): %.4f%%", density_unique_ui / numRates_M * 100));
-            mean = (float) (Stats.sum(data) / numRates_M);
-            std = (float) Stats.sd(data);
-            mode = (float) Stats.mode(data);
-            median = (float) Stats.median(data);
+            moments = stats.getUserItemPairs().getAverageMoments();
+            mean = (float) moments[0];
+            std = (float) moments[1];
+            hist = new RatingStats.Histogram(data, RatingStats.Histogram.levels(data));
+            mode = (float) hist.mode();
+            median = (float) hist.median();
             sps.add(String.format("Average value of all ratings: %f", mean));
             sps.add(String.format("Standard deviation of all ratings: %f", std));
             sps.add(String.format("Mode of all rating values: %f", mode));
             sps.add(String.format("Median of all rating values: %f", median));
-            sps.add("Distribution of rate counts per UI pair: mean = "+Stats.mean(ratingDist_ui)+", median = "+Stats.median(ratingDist_ui)+", sd = "+Stats.sd(ratingDist_ui));
+            sps.add("Distribution of rate counts per UI pair: "+describeCounts(stats.getUserItemPairs().getCounts()));
 
 
             data = rateMatrix_UC.getData();
@@ -627,15 +1057,17 @@ public class DataDAO {
             sps.add("Rate amount: " + numRates_M);
             sps.add(String.format("Data density: %.4f%%", (numRates_M + 0.0) / users / numConditions() * 100));
             sps.add(String.format("Data density (unique pairs): %.4f%%", density_unique_uc / numRates_M * 100));
-            mean = (float) (Stats.sum(data) / numRates_M);
-            std = (float) Stats.sd(data);
-            mode = (float) Stats.mode(data);
-            median = (float) Stats.median(data);
+            moments = stats.getUserConditionPairs().getAverageMoments();
+            mean = (float) moments[0];
+            std = (float) moments[1];
+            hist = new RatingStats.Histogram(data, RatingStats.Histogram.levels(data));
+            mode = (float) hist.mode();
+            median = (float) hist.median();
             sps.add(String.format("Average value of all ratings: %f", mean));
             sps.add(String.format("Standard deviation of all ratings: %f", std));
             sps.add(String.format("Mode of all rating values: %f", mode));
             sps.add(String.format("Median of all rating values: %f", median));
-            sps.add("Distribution of rate counts per UC pair: mean = "+Stats.mean(ratingDist_uc)+", median = "+Stats.median(ratingDist_uc)+", sd = "+Stats.sd(ratingDist_uc));
+            sps.add("Distribution of rate counts per UC pair: "+describeCounts(stats.getUserConditionPairs().getCounts()));
 
             data = rateMatrix_IC.getData();
             numRates_M = data.length;
@@ -646,15 +1078,17 @@ public class DataDAO {
             sps.add("Rate amount: " + numRates_M);
             sps.add(String.format("Data density: %.4f%%", (numRates_M + 0.0) / items / numConditions() * 100));
             sps.add(String.format("Data density (unique pairs): %.4f%%", density_unique_ic / numRates_M * 100));
-            mean = (float) (Stats.sum(data) / numRates_M);
-            std = (float) Stats.sd(data);
-            mode = (float) Stats.mode(data);
-            median = (float) Stats.median(data);
+            moments = stats.getItemConditionPairs().getAverageMoments();
+            mean = (float) moments[0];
+            std = (float) moments[1];
+            hist = new RatingStats.Histogram(data, RatingStats.Histogram.levels(data));
+            mode = (float) hist.mode();
+            median = (float) hist.median();
             sps.add(String.format("Average value of all ratings: %f", mean));
             sps.add(String.format("Standard deviation of all ratings: %f", std));
             sps.add(String.format("Mode of all rating values: %f", mode));
             sps.add(String.format("Median of all rating values: %f", median));
-            sps.add("Distribution of rate counts per IC pair: mean = "+Stats.mean(ratingDist_ic)+", median = "+Stats.median(ratingDist_ic)+", sd = "+Stats.sd(ratingDist_ic));
+            sps.add("Distribution of rate counts per IC pair: "+describeCounts(stats.getItemConditionPairs().getCounts()));
 
             sps.add("");
             ArrayList<Double> urates = new ArrayList<>();
@@ -662,27 +1096,24 @@ public class DataDAO {
             ArrayList<Double> irates = new ArrayList<>();
             ArrayList<Double> irates_c = new ArrayList<>();
 
+            // an empty row or column has no non-zero entries, which is the same as not being listed by rows()
             for(int u:rateMatrix_UI.rows())
             {
-                if(rateMatrix_UC.rows().contains(u)){
-                    SparseVector sv=rateMatrix_UI.row(u);
-                    SparseVector svc=rateMatrix_UC.row(u);
-                    if(sv.size()!=0 && svc.size()!=0){
-                        urates.add(sv.mean());
-                        urates_c.add(svc.mean());
-                    }
+                SparseVector sv=rateMatrix_UI.row(u);
+                SparseVector svc=rateMatrix_UC.row(u);
+                if(sv.size()!=0 && svc.size()!=0){
+                    urates.add(sv.mean());
+                    urates_c.add(svc.mean());
                 }
             }
 
             for(int i:rateMatrix_UI.columns())
             {
-                if(rateMatrix_IC.rows().contains(i)){
-                    SparseVector sv=rateMatrix_UI.column(i);
-                    SparseVector svc=rateMatrix_IC.row(i);
-                    if(sv.size()!=0 && svc.size()!=0){
-                        irates.add(sv.mean());
-                        irates_c.add(svc.mean());
-                    }
+                SparseVector sv=rateMatrix_UI.column(i);
+                SparseVector svc=rateMatrix_IC.row(i);
+                if(sv.size()!=0 && svc.size()!=0){
+                    irates.add(sv.mean());
+                    irates_c.add(svc.mean());
                 }
             }
 
@@ -694,6 +1125,14 @@ public class DataDAO {
         Logs.info(Strings.toSection(sps));
     }
 
+    /**
+     * @return mean, median and standard deviation of rate counts
+     */
+    private static String describeCounts(int[] counts) {
+        return "mean = " + RatingStats.mean(counts) + ", median = " + RatingStats.median(counts) + ", sd = "
+                + RatingStats.sd(counts);
+    }
+
 
     /**
      * @return number of User-item
@@ -812,7 +1251,18 @@ public class DataDAO {
 
         int inn_uid=getUserId(rawUserId);
         int inn_iid=getItemId(rawItemId);
-        return getUserItemId(inn_uid + "," + inn_iid);
+        return getUserItemId(inn_uid, inn_iid);
+    }
+
+    /**
+     * @param u
+     *            inner user id
+     * @param i
+     *            inner item id
+     * @return inner user-item id as int, or -1 if the user has not rated the item
+     */
+    public int getUserItemId(int u, int i) {
+        return uiIndex.get(u, i);
     }
 
     /**
@@ -1006,6 +1456,13 @@ public class DataDAO {
         return uiIds;
     }
 
+    /**
+     * @return {(user, item), user-item inner id} index
+     */
+    public UserItemIndex getUserItemIndex() {
+        return uiIndex;
+    }
+
     /**
      * @return Context {rawid, inner id} mappings
      */
@@ -1035,6 +1492,116 @@ public class DataDAO {
     public HashMap<Integer,  ArrayList<Integer>> getContextConditionsList(){return this.contextConditionsList;}
     public ArrayList<Integer> getEmptyContextConditions(){return this.EmptyContextConditions;}
 
+    /**
+     * @param ctx
+     *            inner context id
+     * @return inner ids of the conditions of a context, in ascending order; the returned array should not be modified
+     */
+    public int[] getConditions(int ctx) {
+        return getConditionIndex().conditionsOfContext[ctx];
+    }
+
+    /**
+     * @param cond
+     *            inner condition id
+     * @return inner ids of the contexts which contain a condition, in ascending order; the returned array should not
+     *         be modified
+     */
+    public int[] getContexts(int cond) {
+        return getConditionIndex().contextsOfCondition[cond];
+    }
+
+    /**
+     * @param ctx
+     *            inner context id
+     * @return the conditions of a context as a bitset over inner condition ids, i.e., bit {@code cond % 64} of word
+     *         {@code cond / 64}; the returned array should not be modified
+     */
+    public long[] getContextMask(int ctx) {
+        return getConditionIndex().contextMasks[ctx];
+    }
+
+    /**
+     * @param dims
+     *            selection of context dimensions, where a dimension is selected if its value is 1
+     * @return a bitset over inner condition ids, which contains all the conditions of the selected dimensions; two
+     *         contexts match on the selected dimensions if their masks are equal after applying this mask
+     */
+    public long[] getDimensionMask(double[] dims) {
+        long[] mask = new long[(numConditions() + 63) >>> 6];
+        for (int dim = 0; dim < dims.length; dim++) {
+            if (dims[dim] != 1)
+                continue;
+            for (int cond : dimConditionsList.get(dim))
+                mask[cond >>> 6] |= 1L << cond;
+        }
+        return mask;
+    }
+
+    /**
+     * Build the primitive {context, conditions}, {condition, contexts} and {context, condition bitset} indices. Contexts may still be added after
+     * the training data is loaded (e.g., by the DAO of a test set sharing the dictionaries), in which case the
+     * indices are rebuilt. All of them are published at once, so that a reader never mixes indices of different
+     * builds.
+     */
+    private ConditionIndex getConditionIndex() {
+        ConditionIndex index = conditionIndex;
+        if (index == null || index.conditionsOfContext.length != numContexts())
+            index = buildConditionIndex();
+        return index;
+    }
+
+    private synchronized ConditionIndex buildConditionIndex() {
+        int numContexts = numContexts();
+        ConditionIndex index = conditionIndex;
+        if (index != null && index.conditionsOfContext.length == numContexts)
+            return index;
+
+        int[][] ctxConds = new int[numContexts][];
+        int[] counts = new int[numConditions()];
+        for (int c = 0; c < numContexts; c++) {
+            ArrayList<Integer> conds = contextConditionsList.get(c);
+            ctxConds[c] = new int[conds.size()];
+            for (int k = 0; k < ctxConds[c].length; k++) {
+                ctxConds[c][k] = conds.get(k);
+                counts[ctxConds[c][k]]++;
+            }
+        }
+
+        int[][] condCtxs = new int[counts.length][];
+        for (int cond = 0; cond < counts.length; cond++)
+            condCtxs[cond] = new int[counts[cond]];
+        Arrays.fill(counts, 0);
+        for (int c = 0; c < numContexts; c++)
+            for (int cond : ctxConds[c])
+                condCtxs[cond][counts[cond]++] = c;
+
+        int numWords = (counts.length + 63) >>> 6;
+        long[][] masks = new long[numContexts][numWords];
+        for (int c = 0; c < numContexts; c++)
+            for (int cond : ctxConds[c])
+                masks[c][cond >>> 6] |= 1L << cond;
+
+        index = new ConditionIndex(ctxConds, condCtxs, masks);
+        conditionIndex = index;
+        return index;
+    }
+
+    /**
+     * {context id, condition ids}, {condition id, sorted context ids} and {context id, bitset of its conditions in
+     * 64-bit words} of one build
+     */
+    private static class ConditionIndex {
+        final int[][] conditionsOfContext, contextsOfCondition;
+        final long[][] contextMasks;
+
+        ConditionIndex(int[][] conditionsOfContext, int[][] contextsOfCondition, long[][] contextMasks) {
+            this.conditionsOfContext = conditionsOfContext;
+            this.contextsOfCondition = contextsOfCondition;
+            this.contextMasks = contextMasks;
+        }
+    }
+
     public int getUserIdFromUI(int uiid)
     {
         return this.uiUserIds.get(uiid);
@@ -1240,20 +1807,18 @@ public class DataDAO {
 
     public librec.data.SparseMatrix toTraditionalSparseMatrix(SparseMatrix sm)
     {
-        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        // each user-item id is a distinct (user, item) pair
+        SparseMatrix.Builder data = new SparseMatrix.Builder(sm.numRows());
 
         for(int uiid:sm.rows()){
             int uid=getUserIdFromUI(uiid);
             int iid=getItemIdFromUI(uiid);
             SparseVector sv=sm.row(uiid);
-            if(sv.getCount()>0) {
-                dataTable.put(uid, iid, sv.mean());
-                colMap.put(iid,uid);
-            }
+            if(sv.getCount()>0)
+                data.add(uid, iid, sv.mean());
         }
 
-        return new librec.data.SparseMatrix(numUsers(), numItems(), dataTable, colMap);
+        return data.build(numUsers(), numItems(), SparseMatrix.Policy.LAST);
     }
 
     public int getRatingCountByItem(SparseMatrix sm, int itemid)
@@ -1266,24 +1831,12 @@ public class DataDAO {
 
     public double getUserContextAvg(SparseMatrix sm, int userId, int contextId){
         Collection<Integer> uiids=uRatedList.get(userId);
-        String sctx=idCtx.get(contextId);
-        String[] conditions = sctx.split(",");
+        int[] conditions = getConditions(contextId);
         double[] sums=new double[conditions.length];
         double[] counters=new double[conditions.length];
 
-        for(Integer ui:uiids){
-            Collection<Integer> ctx=sm.getColumns(ui);
-            for(Integer c:ctx){
-                for(int i=0;i<conditions.length;++i)
-                {
-                    Collection<Integer> ccs=condContextsList.get(Integer.valueOf(conditions[i]));
-                    if(ccs.contains(c)) {
-                        sums[i] += sm.get(ui,c);
-                        counters[i] += 1.0;
-                    }
-                }
-            }
-        }
+        for(Integer ui:uiids)
+            addConditionRatings(sm, ui, conditions, sums, counters);
         double avg=0;
         double counter=0;
         for(int i=0;i<sums.length;++i)
@@ -1302,24 +1855,12 @@ public class DataDAO {
 
     public double getItemContextAvg(SparseMatrix sm, int itemId, int contextId){
         Collection<Integer> uiids=iRatedList.get(itemId);
-        String sctx=idCtx.get(contextId);
-        String[] conditions = sctx.split(",");
+        int[] conditions = getConditions(contextId);
         double[] sums=new double[conditions.length];
         double[] counters=new double[conditions.length];
 
-        for(Integer ui:uiids){
-            Collection<Integer> ctx=sm.getColumns(ui);
-            for(Integer c:ctx){
-                for(int i=0;i<conditions.length;++i)
-                {
-                    Collection<Integer> ccs=condContextsList.get(Integer.valueOf(conditions[i]));
-                    if(ccs.contains(c)) {
-                        sums[i] += sm.get(ui, c);
-                        counters[i] += 1.0;
-                    }
-                }
-            }
-        }
+        for(Integer ui:uiids)
+            addConditionRatings(sm, ui, conditions, sums, counters);
         double avg=0;
         double counter=0;
         for(int i=0;i<sums.length;++i)
@@ -1336,23 +1877,57 @@ public class DataDAO {
             return 0;
     }
 
+    /**
+     * add the (non-zero) ratings of a user-item pair to the sums and counters of each given condition
+     */
+    private void addConditionRatings(SparseMatrix sm, int ui, int[] conditions, double[] sums, double[] counters) {
+        if (ui >= sm.numRows())
+            return;
+
+        int[] rowPtr = sm.getRowPointers();
+        int[] colInd = sm.getColumnIndices();
+        double[] rowData = sm.getData();
+        for (int idx = rowPtr[ui]; idx < rowPtr[ui + 1]; idx++) {
+            if (rowData[idx] == 0)
+                continue;
+            int[] conds = getConditions(colInd[idx]);
+            for (int i = 0; i < conditions.length; ++i) {
+                for (int cond : conds) {
+                    if (cond == conditions[i]) {
+                        sums[i] += rowData[idx];
+                        counters[i] += 1.0;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
     public double getContextAvg(SparseMatrix sm, int contextId)
     {
         // aggregate average ratings by each context dimension
-        String sctx=idCtx.get(contextId);
-        String[] conditions=sctx.split(",");
+        int[] conditions=getConditions(contextId);
         double[] sums=new double[conditions.length];
         double[] counters=new double[conditions.length];
 
+        int[] colPtr = sm.getColumnPointers();
+        double[] colData = sm.getColumnData();
         for(int i=0;i<conditions.length;++i)
         {
-            int cond=Integer.valueOf(conditions[i]);
-            Collection<Integer> ctx=condContextsList.get(cond);
-            for(Integer c:ctx){
-                SparseVector sv=sm.column(c);
-                if(sv.size()!=0) {
-                    sums[i] += sv.sum();
-                    counters[i] += sv.size();
+            for(int c:getContexts(conditions[i])){
+                if(c >= sm.numColumns())
+                    continue;
+                double sum = 0;
+                int size = 0;
+                for (int idx = colPtr[c]; idx < colPtr[c + 1]; idx++) {
+                    if (colData[idx] != 0) {
+                        sum += colData[idx];
+                        size++;
+                    }
+                }
+                if(size!=0) {
+                    sums[i] += sum;
+                    counters[i] += size;
                 }
             }
         }
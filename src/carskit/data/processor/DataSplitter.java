@@ -24,7 +24,6 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Table;
 
 import carskit.data.structure.SparseMatrix;
-import librec.data.SparseVector;
 
 import happy.coding.io.FileIO;
 import happy.coding.io.Lists;
@@ -42,8 +41,10 @@ public class DataSplitter {
     // [row-id, col-id, rate]
     private SparseMatrix rateMatrix;
 
-    // [row-id, col-id, fold-id]
-    private SparseMatrix assignMatrix;
+    // fold id of each entry, aligned with the CSR value array of rateMatrix
+    private int[] folds;
+    // number of non-zero entries in each fold, indexed from 1
+    private int[] foldSizes;
 
     // number of folds
     private int numFold;
@@ -69,28 +70,59 @@ public class DataSplitter {
         if (k > numFold || k < 1)
             return null;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        SparseMatrix[] data = split(folds, k, foldSizes[k]);
+        debugInfo(data[0], data[1], k);
 
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
-
-            SparseVector items = rateMatrix.row(u);
+        return data;
+    }
 
-            for (int j : items.getIndex()) {
-                if (assignMatrix.get(u, j) == k)
-                    trainMatrix.set(u, j, 0.0); // keep test data and remove train data
-                else
-                    testMatrix.set(u, j, 0.0); // keep train data and remove test data
+    /**
+     * Split the non-zero ratings into a train and a test matrix in a single pass over the CSR arrays of rateMatrix.
+     *
+     * @param assign
+     *            assignment of each entry, aligned with the CSR value array
+     * @param test
+     *            the assignment of test entries; all the others are train entries
+     * @param numTest
+     *            number of non-zero test entries
+     * @return Rating matrices {train data, test data}
+     */
+    private SparseMatrix[] split(int[] assign, int test, int numTest) {
+        int numRows = rateMatrix.numRows(), numCols = rateMatrix.numColumns();
+        int[] rowPtr = rateMatrix.getRowPointers();
+        int[] colInd = rateMatrix.getColumnIndices();
+        double[] rowData = rateMatrix.getData();
+
+        int numTrain = 0;
+        for (double rate : rowData)
+            if (rate != 0)
+                numTrain++;
+        numTrain -= numTest;
+
+        int[] trainPtr = new int[numRows + 1], testPtr = new int[numRows + 1];
+        int[] trainInd = new int[numTrain], testInd = new int[numTest];
+        double[] trainData = new double[numTrain], testData = new double[numTest];
+
+        int nTrain = 0, nTest = 0;
+        for (int u = 0; u < numRows; u++) {
+            for (int idx = rowPtr[u], end = rowPtr[u + 1]; idx < end; idx++) {
+                double rate = rowData[idx];
+                if (rate == 0)
+                    continue; // zero entries are removed from both matrices
+                if (assign[idx] == test) {
+                    testInd[nTest] = colInd[idx];
+                    testData[nTest++] = rate;
+                } else {
+                    trainInd[nTrain] = colInd[idx];
+                    trainData[nTrain++] = rate;
+                }
             }
+            trainPtr[u + 1] = nTrain;
+            testPtr[u + 1] = nTest;
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
-
-        debugInfo(trainMatrix, testMatrix, k);
-
-        return new SparseMatrix[] { trainMatrix, testMatrix };
+        return new SparseMatrix[] { new SparseMatrix(numRows, numCols, trainPtr, trainInd, trainData),
+                new SparseMatrix(numRows, numCols, testPtr, testInd, testData) };
     }
 
     /**
@@ -102,8 +134,6 @@ public class DataSplitter {
     private void splitFolds(int kfold) {
         assert kfold > 0;
 
-        assignMatrix = new SparseMatrix(rateMatrix);
-
         int numRates = rateMatrix.getData().length;
         numFold = kfold > numRates ? numRates : kfold;
 
@@ -119,17 +149,14 @@ public class DataSplitter {
 
         Sortor.quickSort(rdm, fold, 0, numRates - 1, true);
 
-        int[] row_ptr = rateMatrix.getRowPointers();
-        int[] col_idx = rateMatrix.getColumnIndices();
-
-        int f = 0;
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
-            for (int idx = row_ptr[u], end = row_ptr[u + 1]; idx < end; idx++) {
-                int j = col_idx[idx];
-                // if randomly put an int 1-5 to entry (u, j), we cannot make sure equal size for each fold
-                assignMatrix.set(u, j, fold[f++]);
-            }
-        }
+        // entries are in CSR order, hence fold[idx] is the fold of the idx-th entry;
+        // if randomly put an int 1-5 to entry (u, j), we cannot make sure equal size for each fold
+        folds = fold;
+        foldSizes = new int[numFold + 1];
+        double[] data = rateMatrix.getData();
+        for (int idx = 0; idx < numRates; idx++)
+            if (data[idx] != 0)
+                foldSizes[folds[idx]]++;
     }
 
     /**
@@ -142,25 +169,19 @@ public class DataSplitter {
 
         assert (ratio > 0 && ratio < 1);
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
-
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
-
-            SparseVector uv = rateMatrix.row(u);
-            for (int j : uv.getIndex()) {
-
-                double rdm = Math.random();
-                if (rdm < ratio)
-                    testMatrix.set(u, j, 0.0);
-                else
-                    trainMatrix.set(u, j, 0.0);
+        // 1 for test entries and 0 for train entries, drawn for the non-zero entries in CSR order
+        double[] data = rateMatrix.getData();
+        int[] assign = new int[data.length];
+        int numTest = 0;
+        for (int idx = 0; idx < data.length; idx++) {
+            if (data[idx] != 0 && Math.random() >= ratio) {
+                assign[idx] = 1;
+                numTest++;
             }
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
+        SparseMatrix[] matrices = split(assign, 1, numTest);
+        SparseMatrix trainMatrix = matrices[0], testMatrix = matrices[1];
 
         debugInfo(trainMatrix, testMatrix, -1);
 
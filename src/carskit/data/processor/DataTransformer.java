@@ -31,8 +31,16 @@ import happy.coding.io.net.EMailer;
 import happy.coding.system.Dates;
 import happy.coding.system.Systems;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.*;
 
 import librec.data.SparseMatrix;
@@ -45,6 +53,15 @@ public class DataTransformer implements Runnable {
     protected int flag_train, flag_test;
     protected String dataPath_train, dataPath_test;
     protected String outputfolder;
+    // number of threads to parse the rating file
+    protected int numThreads = 1;
+    // memory budget in bytes of transforming a loose rating file
+    protected long memoryBudget = 256L << 20;
+    // approximate ratio of the memory held by parsed records to the size of the raw text
+    private static final int RECORD_MEMORY_FACTOR = 8;
+    // size of the read and write buffers of a spilled run, and the maximum number of runs merged at a time
+    private static final int RUN_BUFFER = 1 << 16;
+    private static final int MAX_FAN_IN = 128;
 
     public void setParameters(int f_train, String path_train, int f_test, String path_test, String folder) {
         this.flag_train = f_train;
@@ -54,6 +71,14 @@ public class DataTransformer implements Runnable {
         this.outputfolder = folder;
     }
 
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
     private Multimap<String, String> getConditions()throws Exception{
         //Multimap<String, String> conditions=LinkedHashMultimap.create();
         Logs.info("flags - train: "+flag_train+", test: "+flag_test);
@@ -147,7 +172,7 @@ public class DataTransformer implements Runnable {
         return header;
     }
 
-    public String TransformationFromBinaryToBinary(String dataPath, boolean isTestSet, Multimap<String, String> conditions) throws Exception {
+    public String TransformationFromBinaryToBinary(String dataPath, final boolean isTestSet, Multimap<String, String> conditions) throws Exception {
         // this method is only applied when the users manuall supply both train and test sets
         // it is because the format in train and test sets may not be consistent
         BufferedReader br = FileIO.getReader(dataPath);
@@ -164,24 +189,28 @@ public class DataTransformer implements Runnable {
         HashMap<String, HashMap<String, String>> newlines = new HashMap<>();
         if(conditions==null)
             conditions = LinkedHashMultimap.create(); // key=dim, value=cond, keep the order when we adding to it
-        while ((line = br.readLine()) != null) {
-            String[] strs = line.split(",", -1);
-            HashMap<String, String> ratingcontext = new HashMap<>();
-            for (int i = 3; i < header.length; ++i) {
-                int cond = Integer.parseInt(strs[i].trim().toLowerCase());
-                if(cond==0)
-                    continue;
-                else {
-                    String dimcond=header[i];
-                    String rs[]=dimcond.split(":",-1);
-                    ratingcontext.put(rs[0].trim().toLowerCase(), rs[1].trim().toLowerCase());
-                    if (!isTestSet)
-                        conditions.put(rs[0].trim().toLowerCase(), rs[1].trim().toLowerCase());
+        final String[] fheader = header;
+        readLines(dataPath, br, new LineHandler() {
+
+            @Override
+            public void handle(String line, Map<String, HashMap<String, String>> newlines, Multimap<String, String> conditions) {
+                String[] strs = line.split(",", -1);
+                HashMap<String, String> ratingcontext = new HashMap<>();
+                for (int i = 3; i < fheader.length; ++i) {
+                    int cond = Integer.parseInt(strs[i].trim().toLowerCase());
+                    if(cond==0)
+                        continue;
+                    else {
+                        String dimcond=fheader[i];
+                        String rs[]=dimcond.split(":",-1);
+                        ratingcontext.put(rs[0].trim().toLowerCase(), rs[1].trim().toLowerCase());
+                        if (!isTestSet)
+                            conditions.put(rs[0].trim().toLowerCase(), rs[1].trim().toLowerCase());
+                    }
                 }
+                newlines.put(line, ratingcontext); // the whole line is key
             }
-            newlines.put(line, ratingcontext); // the whole line is key
-        }
-        br.close();
+        }, newlines, conditions);
 
         String filename=(isTestSet)?"test.csv":"train.csv";
 
@@ -192,35 +221,135 @@ public class DataTransformer implements Runnable {
         return "Data transformaton completed (from Compact to Binary format). See " + outputfolder;
     }
 
-    public String TransformationFromLooseToBinary(String dataPath, boolean isTestSet,Multimap<String, String> conditions) throws Exception {
-        BufferedReader br = FileIO.getReader(dataPath);
-        String line = br.readLine(); // 1st line;
-        HashMap<String, HashMap<String, String>> newlines = new HashMap<>();
-        if(conditions==null)
-            conditions = LinkedHashMultimap.create(); // key=dim, value=cond, keep the order when we adding to it
-        while ((line = br.readLine()) != null) {
-            String[] strs = line.split(",", -1);
-            String key = strs[0].trim().toLowerCase() + "," + strs[1].trim().toLowerCase() + "," + strs[2].trim().toLowerCase(); // key = user,item,rating
-            String cond = strs[4].trim().toLowerCase();
-            if (cond.equals(""))
-                cond = "na";
-            if(!isTestSet)
-                conditions.put(strs[3].trim().toLowerCase(), cond);
-            if (newlines.containsKey(key)) {
-                HashMap<String, String> ratingcontext = newlines.get(key);
-                ratingcontext.put(strs[3].trim().toLowerCase(), cond);
-
-            } else {
-                HashMap<String, String> ratingcontext = new HashMap();
-                ratingcontext.put(strs[3].trim().toLowerCase(), cond);
-                newlines.put(key, ratingcontext);
+    public String TransformationFromLooseToBinary(String dataPath, final boolean isTestSet,Multimap<String, String> conditions) throws Exception {
+        // a rating is spread over multiple lines (one line per dimension) which are not necessarily adjacent; the lines
+        // are grouped by sorting them by key = user,item,rating in bounded runs which are then merged, so that only a
+        // chunk of the file is held in memory at a time
+        File file = new File(dataPath);
+        long chunkSize = Math.max(1L << 20, memoryBudget / (RECORD_MEMORY_FACTOR * Math.max(1, numThreads)));
+        int numChunks = (int) Math.max(numThreads, (file.length() + chunkSize - 1) / chunkSize);
+
+        // the spilled runs are registered before they are written, so that they are deleted whatever fails
+        final File tmpDir = new File(outputfolder);
+        final List<File> spills = Collections.synchronizedList(new ArrayList<File>());
+        String filename=(isTestSet)?"test.csv":"train.csv";
+        try {
+            List<LooseRun> runs = new LineChunks(dataPath, numChunks, true).parse(numThreads, new LineChunks.Parser<LooseRun>() {
+
+                @Override
+                public LooseRun parse(String[] lines) throws Exception {
+                    LooseRun run = new LooseRun();
+                    List<String[]> records = new ArrayList<>(lines.length);
+                    for (String line : lines) {
+                        String[] strs = line.split(",", -1);
+                        String key = strs[0].trim().toLowerCase() + "," + strs[1].trim().toLowerCase() + "," + strs[2].trim().toLowerCase(); // key = user,item,rating
+                        String dim = strs[3].trim().toLowerCase();
+                        String cond = strs[4].trim().toLowerCase();
+                        if (cond.equals(""))
+                            cond = "na";
+                        if(!isTestSet)
+                            run.conditions.put(dim, cond);
+                        records.add(new String[]{key, dim, cond});
+                    }
+
+                    // a stable sort: lines of the same key stay in file order
+                    Collections.sort(records, new Comparator<String[]>() {
+                        @Override
+                        public int compare(String[] a, String[] b) {
+                            return a[0].compareTo(b[0]);
+                        }
+                    });
+
+                    run.file = newRunFile(tmpDir, spills);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.file), RUN_BUFFER));
+                    try {
+                        for (String[] record : records)
+                            LooseRun.write(out, record);
+                    } finally {
+                        out.close();
+                    }
+                    return run;
+                }
+            });
+
+            if(conditions==null)
+                conditions = LinkedHashMultimap.create(); // key=dim, value=cond, keep the order when we adding to it
+            List<File> files = new ArrayList<>(runs.size());
+            for (LooseRun run : runs) {
+                for (Map.Entry<String, String> en : run.conditions.entries())
+                    conditions.put(en.getKey(), en.getValue());
+                files.add(run.file);
             }
-        }
-        br.close();
 
-        String filename=(isTestSet)?"test.csv":"train.csv";
+            // the runs are merged by at most fanIn at a time, which bounds the open files and their read buffers; a
+            // pass merges groups of consecutive runs, so that records of the same key stay in file order
+            int fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, memoryBudget / (2 * RUN_BUFFER)));
+            while (files.size() > fanIn) {
+                List<File> merged = new ArrayList<>((files.size() + fanIn - 1) / fanIn);
+                for (int from = 0; from < files.size(); from += fanIn) {
+                    List<File> group = files.subList(from, Math.min(files.size(), from + fanIn));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+
+                    File mergedRun = newRunFile(tmpDir, spills);
+                    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRun), RUN_BUFFER));
+                    try {
+                        mergeRuns(group, new RecordHandler() {
 
-        this.PublishNewRatingFiles(outputfolder, conditions, newlines, true, filename);
+                            @Override
+                            public void handle(String[] record) throws Exception {
+                                LooseRun.write(out, record);
+                            }
+                        });
+                    } finally {
+                        out.close();
+                    }
+                    for (File run : group)
+                        run.delete();
+                    merged.add(mergedRun);
+                }
+                files = merged;
+            }
+
+            String header = this.getHeader(conditions);
+            Logs.info(header);
+            final BufferedWriter bw = FileIO.getWriter(outputfolder + filename);
+            bw.write(header + "\n");
+
+            // the last pass groups the records of a key into a rating; the last condition of a dimension wins as before
+            final Multimap<String, String> conds = conditions;
+            try {
+                RecordHandler grouper = new RecordHandler() {
+
+                    String key = null;
+                    HashMap<String, String> ratingcontext = null;
+
+                    @Override
+                    public void handle(String[] record) throws Exception {
+                        if (record == null || !record[0].equals(key)) {
+                            if (key != null)
+                                bw.write(toBinaryRecord(key, ratingcontext, conds, true) + "\n");
+                            if (record == null)
+                                return;
+                            key = record[0];
+                            ratingcontext = new HashMap<>();
+                        }
+                        ratingcontext.put(record[1], record[2]);
+                    }
+                };
+                mergeRuns(files, grouper);
+                grouper.handle(null);
+            } finally {
+                bw.close();
+            }
+        } finally {
+            synchronized (spills) {
+                for (File spill : spills)
+                    spill.delete();
+            }
+        }
 
         if (FileIO.exist(outputfolder + filename))
             return "Data transformaton completed (from Loose to Binary format). See new rating file: " + outputfolder + filename;
@@ -228,7 +357,86 @@ public class DataTransformer implements Runnable {
             return "Data transformation failed. See output folder: " + outputfolder;
     }
 
-    public String TransformationFromCompactToBinary(String dataPath, boolean isTestSet, Multimap<String, String> conditions) throws Exception {
+    /**
+     * Create a temporary file of a run, which is registered in {@code spills} before anything is written to it
+     */
+    private static File newRunFile(File tmpDir, List<File> spills) throws Exception {
+        File file = File.createTempFile("loose", ".run", tmpDir);
+        spills.add(file);
+        return file;
+    }
+
+    /**
+     * k-way merge of sorted runs; records of equal keys are handled in order of the runs
+     */
+    private static void mergeRuns(List<File> files, RecordHandler handler) throws Exception {
+        PriorityQueue<LooseRun> queue = new PriorityQueue<>(Math.max(1, files.size()), new Comparator<LooseRun>() {
+            @Override
+            public int compare(LooseRun a, LooseRun b) {
+                int cmp = a.record[0].compareTo(b.record[0]);
+                return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+            }
+        });
+
+        List<LooseRun> runs = new ArrayList<>(files.size());
+        try {
+            for (int k = 0; k < files.size(); k++) {
+                LooseRun run = new LooseRun();
+                run.file = files.get(k);
+                run.index = k;
+                runs.add(run);
+                run.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), RUN_BUFFER));
+                if (run.next())
+                    queue.add(run);
+            }
+
+            while (!queue.isEmpty()) {
+                LooseRun run = queue.poll();
+                handler.handle(run.record);
+                if (run.next())
+                    queue.add(run);
+            }
+        } finally {
+            for (LooseRun run : runs)
+                if (run.in != null)
+                    run.in.close();
+        }
+    }
+
+    /**
+     * handler of the merged loose records {key, dim, cond}
+     */
+    private interface RecordHandler {
+        void handle(String[] record) throws Exception;
+    }
+
+    /**
+     * a sorted run of loose records {key, dim, cond}, spilled to a temporary file
+     */
+    private static class LooseRun {
+        Multimap<String, String> conditions = LinkedHashMultimap.create();
+        File file;
+        int index;
+        DataInputStream in;
+        String[] record;
+
+        boolean next() throws Exception {
+            try {
+                record = new String[]{in.readUTF(), in.readUTF(), in.readUTF()};
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        static void write(DataOutputStream out, String[] record) throws Exception {
+            out.writeUTF(record[0]);
+            out.writeUTF(record[1]);
+            out.writeUTF(record[2]);
+        }
+    }
+
+    public String TransformationFromCompactToBinary(String dataPath, final boolean isTestSet, Multimap<String, String> conditions) throws Exception {
         BufferedReader br = FileIO.getReader(dataPath);
         String line = br.readLine(); // 1st line;
         String[] header = line.split(",", -1);
@@ -239,20 +447,24 @@ public class DataTransformer implements Runnable {
         HashMap<String, HashMap<String, String>> newlines = new HashMap<>();
         if(conditions==null)
             conditions = LinkedHashMultimap.create(); // key=dim, value=cond, keep the order when we adding to it
-        while ((line = br.readLine()) != null) {
-            String[] strs = line.split(",", -1);
-            HashMap<String, String> ratingcontext = new HashMap<>();
-            for (int i = 3; i < 3 + dimscount; ++i) {
-                String cond = strs[i].trim().toLowerCase();
-                if (cond.equals(""))
-                    cond = "na";
-                ratingcontext.put(dims[i - 3], cond);
-                if(!isTestSet)
-                    conditions.put(dims[i - 3], cond);
+        final String[] fdims = dims;
+        readLines(dataPath, br, new LineHandler() {
+
+            @Override
+            public void handle(String line, Map<String, HashMap<String, String>> newlines, Multimap<String, String> conditions) {
+                String[] strs = line.split(",", -1);
+                HashMap<String, String> ratingcontext = new HashMap<>();
+                for (int i = 3; i < 3 + fdims.length; ++i) {
+                    String cond = strs[i].trim().toLowerCase();
+                    if (cond.equals(""))
+                        cond = "na";
+                    ratingcontext.put(fdims[i - 3], cond);
+                    if(!isTestSet)
+                        conditions.put(fdims[i - 3], cond);
+                }
+                newlines.put(line, ratingcontext); // the whole line is key
             }
-            newlines.put(line, ratingcontext); // the whole line is key
-        }
-        br.close();
+        }, newlines, conditions);
 
         String filename=(isTestSet)?"test.csv":"train.csv";
 
@@ -263,66 +475,126 @@ public class DataTransformer implements Runnable {
         return "Data transformaton completed (from Compact to Binary format). See " + outputfolder;
     }
 
-    private void PublishNewRatingFiles(String outputfolder, Multimap<String, String> conditions, HashMap<String, HashMap<String, String>> newlines, boolean isLoose, String filename) throws Exception {
+    /**
+     * handler of a rating record, which adds the record to {@code newlines} and its conditions to {@code conditions}
+     */
+    private interface LineHandler {
+        void handle(String line, Map<String, HashMap<String, String>> newlines, Multimap<String, String> conditions);
+    }
 
-        String header = this.getHeader(conditions);
-        Logs.info(header);
+    /**
+     * Read the rating records after the header line. With multiple threads, chunks of the file are handled into local
+     * maps which are merged in file order, so that the results are the same as handling the lines one by one.
+     */
+    private void readLines(String dataPath, BufferedReader br, final LineHandler handler,
+                           HashMap<String, HashMap<String, String>> newlines, Multimap<String, String> conditions) throws Exception {
+        if (numThreads <= 1) {
+            String line;
+            while ((line = br.readLine()) != null)
+                handler.handle(line, newlines, conditions);
+            br.close();
+            return;
+        }
+        br.close();
 
-        BufferedWriter bw = FileIO.getWriter(outputfolder + filename);
-        bw.write(header + "\n");
-        bw.flush();
+        List<RecordChunk> chunks = new LineChunks(dataPath, numThreads, true).parse(numThreads, new LineChunks.Parser<RecordChunk>() {
 
-        // start rewrite rating records
-        for (String key : newlines.keySet()) {
-            HashMap<String, String> ratingcontext = newlines.get(key);
-            StringBuilder conditionBuilder = new StringBuilder();
-            for (String dim : conditions.keySet()) {
-                boolean isNA = false;
-                boolean isCompleted = false;
-                Collection<String> conds = conditions.get(dim);
-
-                String dimCondition = ratingcontext.get(dim);
-                if (dimCondition == null) {// 1st NA situation: because there is no such dim in this rating profile
-                    isNA = true;
-                } else if (dimCondition.equals("na")) // 2nd NA situation: it is already tagged with NA in this dim
-                {
-                    isNA = true;
-                }
+            @Override
+            public RecordChunk parse(String[] lines) throws Exception {
+                RecordChunk chunk = new RecordChunk();
+                for (String line : lines)
+                    handler.handle(line, chunk.newlines, chunk.conditions);
+                return chunk;
+            }
+        });
+
+        for (RecordChunk chunk : chunks) {
+            for (Map.Entry<String, HashMap<String, String>> en : chunk.newlines.entrySet()) {
+                HashMap<String, String> ratingcontext = newlines.get(en.getKey());
+                if (ratingcontext == null)
+                    newlines.put(en.getKey(), en.getValue());
+                else
+                    ratingcontext.putAll(en.getValue());
+            }
+            for (Map.Entry<String, String> en : chunk.conditions.entries())
+                conditions.put(en.getKey(), en.getValue());
+        }
+    }
+
+    /**
+     * rating records and conditions of a chunk, in order of first appearance
+     */
+    private static class RecordChunk {
+        LinkedHashMap<String, HashMap<String, String>> newlines = new LinkedHashMap<>();
+        Multimap<String, String> conditions = LinkedHashMultimap.create();
+    }
+
+    /**
+     * @return a rating record in binary format, i.e., user,item,rating followed by a 0/1 flag per condition
+     */
+    private String toBinaryRecord(String key, HashMap<String, String> ratingcontext, Multimap<String, String> conditions, boolean isLoose) {
+        StringBuilder conditionBuilder = new StringBuilder();
+        for (String dim : conditions.keySet()) {
+            boolean isNA = false;
+            boolean isCompleted = false;
+            Collection<String> conds = conditions.get(dim);
+
+            String dimCondition = ratingcontext.get(dim);
+            if (dimCondition == null) {// 1st NA situation: because there is no such dim in this rating profile
+                isNA = true;
+            } else if (dimCondition.equals("na")) // 2nd NA situation: it is already tagged with NA in this dim
+            {
+                isNA = true;
+            }
 
-                for (String cond : conds) {
-                    if (conditionBuilder.length() > 0) conditionBuilder.append(",");
-                    if (isLoose) {
-                        if (isNA) {
-                            if (cond.equals("na")) {
+            for (String cond : conds) {
+                if (conditionBuilder.length() > 0) conditionBuilder.append(",");
+                if (isLoose) {
+                    if (isNA) {
+                        if (cond.equals("na")) {
+                            conditionBuilder.append("1");
+                            isCompleted = true;
+                        } else
+                            conditionBuilder.append("0");
+                    } else {
+                        if (isCompleted)
+                            conditionBuilder.append("0");
+                        else {
+                            if (cond.equals(dimCondition)) {
                                 conditionBuilder.append("1");
-                                isCompleted = true;
+                                isCompleted = true; // have found one condition for this dimension, all others are 0
                             } else
                                 conditionBuilder.append("0");
-                        } else {
-                            if (isCompleted)
-                                conditionBuilder.append("0");
-                            else {
-                                if (cond.equals(dimCondition)) {
-                                    conditionBuilder.append("1");
-                                    isCompleted = true; // have found one condition for this dimension, all others are 0
-                                } else
-                                    conditionBuilder.append("0");
-                            }
                         }
-                    } else {
-                        if (dimCondition.equals(cond))
-                            conditionBuilder.append("1");
-                        else
-                            conditionBuilder.append("0");
                     }
+                } else {
+                    if (dimCondition.equals(cond))
+                        conditionBuilder.append("1");
+                    else
+                        conditionBuilder.append("0");
                 }
-
             }
-            String[] skey = key.split(",", -1); // when original format is compact, the key is whole line.
-            if (skey.length > 3)
-                key = skey[0].trim().toLowerCase() + "," + skey[1].trim().toLowerCase() + "," + skey[2].trim().toLowerCase();
 
-            bw.write(key + "," + conditionBuilder.toString() + "\n");
+        }
+        String[] skey = key.split(",", -1); // when original format is compact, the key is whole line.
+        if (skey.length > 3)
+            key = skey[0].trim().toLowerCase() + "," + skey[1].trim().toLowerCase() + "," + skey[2].trim().toLowerCase();
+
+        return key + "," + conditionBuilder.toString();
+    }
+
+    private void PublishNewRatingFiles(String outputfolder, Multimap<String, String> conditions, HashMap<String, HashMap<String, String>> newlines, boolean isLoose, String filename) throws Exception {
+
+        String header = this.getHeader(conditions);
+        Logs.info(header);
+
+        BufferedWriter bw = FileIO.getWriter(outputfolder + filename);
+        bw.write(header + "\n");
+        bw.flush();
+
+        // start rewrite rating records
+        for (String key : newlines.keySet()) {
+            bw.write(this.toBinaryRecord(key, newlines.get(key), conditions, isLoose) + "\n");
             bw.flush();
         }
         bw.close();
@@ -0,0 +1,187 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.data.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A text data file split into byte ranges (chunks) which are aligned to line boundaries. Chunks can be parsed by
+ * separate threads, and the partial results are returned in file order, so that they can be merged exactly as if the
+ * file was read line by line.
+ *
+ */
+public class LineChunks {
+
+    // maximum bytes of a chunk, so that a chunk can always be decoded as a single string
+    private static final long MAX_CHUNK_SIZE = 1L << 26;
+
+    private final File file;
+    // chunk k covers bytes [offsets[k], offsets[k+1])
+    private final long[] offsets;
+
+    /**
+     * parser of the lines in a chunk
+     */
+    public interface Parser<T> {
+        T parse(String[] lines) throws Exception;
+    }
+
+    /**
+     * @param path
+     *            path to data file
+     * @param numChunks
+     *            preferred number of chunks; more chunks will be used for a large file
+     * @param skipHeader
+     *            whether the 1st line is a header which belongs to none of the chunks
+     */
+    public LineChunks(String path, int numChunks, boolean skipHeader) throws IOException {
+        file = new File(path);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            long start = skipHeader ? nextLine(raf, 0) : 0;
+
+            numChunks = (int) Math.max(numChunks, (length - start + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+            numChunks = Math.max(numChunks, 1);
+
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(start);
+            for (int k = 1; k < numChunks; k++) {
+                long bound = nextLine(raf, start + (length - start) * k / numChunks - 1);
+                if (bound > bounds.get(bounds.size() - 1) && bound < length)
+                    bounds.add(bound);
+            }
+            bounds.add(Math.max(start, length));
+
+            offsets = new long[bounds.size()];
+            for (int k = 0; k < offsets.length; k++)
+                offsets[k] = bounds.get(k);
+        }
+    }
+
+    /**
+     * @return the offset right after the first line break at or after {@code pos}, or the file length if none
+     */
+    private static long nextLine(RandomAccessFile raf, long pos) throws IOException {
+        byte[] buf = new byte[8192];
+        long length = raf.length();
+        pos = Math.max(pos, 0);
+        while (pos < length) {
+            raf.seek(pos);
+            int n = raf.read(buf, 0, (int) Math.min(buf.length, length - pos));
+            for (int i = 0; i < n; i++)
+                if (buf[i] == '\n')
+                    return pos + i + 1;
+            pos += n;
+        }
+        return length;
+    }
+
+    /**
+     * @return number of chunks
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Read the lines of a chunk. Line breaks are the same as {@code BufferedReader.readLine}, i.e., "\n" or "\r\n".
+     *
+     * @param k
+     *            index of chunk
+     * @return lines of the chunk in file order
+     */
+    public String[] lines(int k) throws IOException {
+        byte[] bytes = new byte[(int) (offsets[k + 1] - offsets[k])];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offsets[k]);
+            raf.readFully(bytes);
+        }
+        // FileIO.getReader decodes with the default charset as well
+        String text = new String(bytes, Charset.defaultCharset());
+
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            int next = end + 1;
+            if (end < 0)
+                end = next = text.length();
+            if (end > start && text.charAt(end - 1) == '\r')
+                end--;
+            lines.add(text.substring(start, end));
+            start = next;
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Parse all chunks by a number of threads.
+     *
+     * @param numThreads
+     *            number of threads
+     * @param parser
+     *            parser of a chunk; it is called concurrently, hence it should not change any shared state
+     * @return the partial result of each chunk, in file order
+     */
+    public <T> List<T> parse(int numThreads, final Parser<T> parser) throws Exception {
+        final Object[] results = new Object[size()];
+        final Exception[] errors = new Exception[1];
+        final AtomicInteger next = new AtomicInteger();
+
+        Thread[] ts = new Thread[Math.max(1, Math.min(numThreads, size()))];
+        for (int t = 0; t < ts.length; t++) {
+            ts[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    int k;
+                    while ((k = next.getAndIncrement()) < results.length) {
+                        try {
+                            results[k] = parser.parse(lines(k));
+                        } catch (Exception e) {
+                            synchronized (errors) {
+                                if (errors[0] == null)
+                                    errors[0] = e;
+                            }
+                            next.set(results.length);
+                        }
+                    }
+                }
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+
+        if (errors[0] != null)
+            throw errors[0];
+
+        @SuppressWarnings("unchecked")
+        List<T> list = (List<T>) Arrays.asList(results);
+        return list;
+    }
+}
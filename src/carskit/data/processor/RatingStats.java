@@ -0,0 +1,476 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.data.processor;
+
+import carskit.data.structure.SparseMatrix;
+import carskit.data.structure.UserItemIndex;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Full statistics of a rating data set (option -fullstat), collected in primitive arrays while the data file is read:
+ * rating counts, sums, sums of squares and histograms over the rating levels per user, item and context condition, and
+ * rating counts, sums and sums of squares per (user, item), (user, condition) and (item, condition) pair.
+ *
+ */
+public class RatingStats {
+
+    // rating levels in order of appearance
+    private double[] levels = new double[8];
+    private int numLevels;
+
+    private final Entities users = new Entities(16);
+    private final Entities items = new Entities(16);
+    private final Entities conds;
+
+    private final Pairs userItems = new Pairs();
+    private final Pairs userConds = new Pairs();
+    private final Pairs itemConds = new Pairs();
+
+    // level of the rating which is added last, shared by its conditions
+    private int lastLevel;
+
+    /**
+     * @param numConditions
+     *            number of context conditions
+     */
+    public RatingStats(int numConditions) {
+        conds = new Entities(numConditions);
+    }
+
+    /**
+     * add a rating of (user, item)
+     */
+    public void add(int user, int item, double rate) {
+        lastLevel = level(rate);
+        users.add(user, lastLevel, rate);
+        items.add(item, lastLevel, rate);
+        userItems.add(user, item, rate);
+    }
+
+    /**
+     * add a rating of (user, item) in a context condition; it follows {@link #add(int, int, double)} of the rating
+     */
+    public void addCondition(int user, int item, int cond, double rate) {
+        conds.add(cond, lastLevel, rate);
+        userConds.add(user, cond, rate);
+        itemConds.add(item, cond, rate);
+    }
+
+    /**
+     * @return index of a rating level, which is added if it is new; there are only a few levels
+     */
+    private int level(double rate) {
+        for (int l = 0; l < numLevels; l++)
+            if (levels[l] == rate)
+                return l;
+        if (numLevels == levels.length)
+            levels = Arrays.copyOf(levels, numLevels << 1);
+        levels[numLevels] = rate;
+        return numLevels++;
+    }
+
+    /**
+     * @return ratings per user
+     */
+    public Entities getUsers() {
+        return users;
+    }
+
+    /**
+     * @return ratings per item
+     */
+    public Entities getItems() {
+        return items;
+    }
+
+    /**
+     * @return ratings per context condition
+     */
+    public Entities getConditions() {
+        return conds;
+    }
+
+    /**
+     * @return ratings per (user, item) pair
+     */
+    public Pairs getUserItemPairs() {
+        return userItems;
+    }
+
+    /**
+     * @return ratings per (user, condition) pair
+     */
+    public Pairs getUserConditionPairs() {
+        return userConds;
+    }
+
+    /**
+     * @return ratings per (item, condition) pair
+     */
+    public Pairs getItemConditionPairs() {
+        return itemConds;
+    }
+
+    /**
+     * @return mean of integer values
+     */
+    public static double mean(int[] values) {
+        long sum = 0;
+        for (int x : values)
+            sum += x;
+        return (double) sum / values.length;
+    }
+
+    /**
+     * @return standard deviation of integer values, i.e., the square root of their population variance
+     */
+    public static double sd(int[] values) {
+        double mean = mean(values), var = 0;
+        for (int x : values)
+            var += (x - mean) * (x - mean);
+        return Math.sqrt(var / values.length);
+    }
+
+    /**
+     * @return median of non-negative integer values, from a histogram of the values rather than by sorting them
+     */
+    public static double median(int[] values) {
+        int n = values.length;
+        if (n == 0)
+            return Double.NaN;
+        int max = 0;
+        for (int x : values)
+            max = Math.max(max, x);
+        int[] hist = new int[max + 1];
+        for (int x : values)
+            hist[x]++;
+
+        int lo = n % 2 == 0 ? n / 2 - 1 : n / 2, hi = n / 2;
+        int cum = 0, loValue = -1;
+        for (int x = 0; x <= max; x++) {
+            cum += hist[x];
+            if (loValue < 0 && lo < cum)
+                loValue = x;
+            if (hi < cum)
+                return (loValue + x) / 2.0;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Rating counts, sums, sums of squares and histograms over the rating levels of the entities (users, items or
+     * conditions), indexed by their inner ids.
+     */
+    public class Entities {
+
+        private int[] counts;
+        private double[] sums, squares;
+        // {level, counts of the ratings of each entity at this level}
+        private int[][] levelCounts = new int[0][];
+        private int size;
+
+        Entities(int capacity) {
+            capacity = Math.max(1, capacity);
+            counts = new int[capacity];
+            sums = new double[capacity];
+            squares = new double[capacity];
+        }
+
+        void add(int id, int level, double rate) {
+            if (id >= counts.length) {
+                int capacity = Math.max(id + 1, counts.length << 1);
+                counts = Arrays.copyOf(counts, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+                squares = Arrays.copyOf(squares, capacity);
+            }
+            if (id >= size)
+                size = id + 1;
+            counts[id]++;
+            sums[id] += rate;
+            squares[id] += rate * rate;
+
+            if (level >= levelCounts.length)
+                levelCounts = Arrays.copyOf(levelCounts, level + 1);
+            int[] hist = levelCounts[level];
+            if (hist == null || id >= hist.length)
+                levelCounts[level] = hist = hist == null ? new int[counts.length] : Arrays.copyOf(hist, counts.length);
+            hist[id]++;
+        }
+
+        /**
+         * @return rating counts of the entities which have been rated, in order of their ids
+         */
+        public int[] getCounts() {
+            int n = 0;
+            for (int id = 0; id < size; id++)
+                if (counts[id] > 0)
+                    n++;
+            int[] cs = new int[n];
+            n = 0;
+            for (int id = 0; id < size; id++)
+                if (counts[id] > 0)
+                    cs[n++] = counts[id];
+            return cs;
+        }
+
+        public int getCount(int id) {
+            return id < size ? counts[id] : 0;
+        }
+
+        public double getSum(int id) {
+            return id < size ? sums[id] : 0;
+        }
+
+        /**
+         * @return average rating of an entity
+         */
+        public double getMean(int id) {
+            return getSum(id) / getCount(id);
+        }
+
+        /**
+         * @return standard deviation (population) of the ratings of an entity
+         */
+        public double getSd(int id) {
+            int n = getCount(id);
+            if (n == 0)
+                return Double.NaN;
+            double mean = sums[id] / n;
+            return Math.sqrt(Math.max(0, squares[id] / n - mean * mean));
+        }
+
+        /**
+         * @return median rating of an entity, from its histogram over the rating levels
+         */
+        public double getMedian(int id) {
+            int n = getCount(id);
+            if (n == 0)
+                return Double.NaN;
+
+            // the levels in ascending order of their values
+            Integer[] order = new Integer[numLevels];
+            for (int l = 0; l < numLevels; l++)
+                order[l] = l;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(levels[a], levels[b]);
+                }
+            });
+
+            int lo = n % 2 == 0 ? n / 2 - 1 : n / 2, hi = n / 2;
+            int cum = 0;
+            double loValue = Double.NaN;
+            for (int l : order) {
+                int[] hist = l < levelCounts.length ? levelCounts[l] : null;
+                cum += hist != null && id < hist.length ? hist[id] : 0;
+                if (Double.isNaN(loValue) && lo < cum)
+                    loValue = levels[l];
+                if (hi < cum)
+                    return (loValue + levels[l]) / 2.0;
+            }
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Rating counts, sums and sums of squares of (row, column) pairs, in the order in which the pairs are added.
+     */
+    public static class Pairs {
+
+        private final UserItemIndex index = new UserItemIndex();
+        private int[] rows = new int[16], cols = new int[16], counts = new int[16];
+        private double[] sums = new double[16], squares = new double[16];
+        private int size;
+
+        void add(int row, int col, double rate) {
+            int p = index.get(row, col);
+            if (p < 0) {
+                if (size == rows.length) {
+                    int capacity = size + (size >> 1);
+                    rows = Arrays.copyOf(rows, capacity);
+                    cols = Arrays.copyOf(cols, capacity);
+                    counts = Arrays.copyOf(counts, capacity);
+                    sums = Arrays.copyOf(sums, capacity);
+                    squares = Arrays.copyOf(squares, capacity);
+                }
+                p = size++;
+                index.put(row, col, p);
+                rows[p] = row;
+                cols[p] = col;
+            }
+            sums[p] += rate;
+            squares[p] += rate * rate;
+            counts[p]++;
+        }
+
+        /**
+         * @return number of pairs
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return number of pairs which are rated more than once
+         */
+        public int numRepeated() {
+            int n = 0;
+            for (int p = 0; p < size; p++)
+                if (counts[p] > 1)
+                    n++;
+            return n;
+        }
+
+        /**
+         * @return matrix of the average rating of each pair
+         */
+        public SparseMatrix toMatrix(int numRows, int numColumns) {
+            double[] avgs = new double[size];
+            for (int p = 0; p < size; p++)
+                avgs[p] = sums[p] / counts[p];
+            return SparseMatrix.fromTriplets(numRows, numColumns, rows, cols, avgs, size);
+        }
+
+        /**
+         * @return rating counts of the pairs, in the order in which the pairs are added
+         */
+        public int[] getCounts() {
+            return Arrays.copyOf(counts, size);
+        }
+
+        /**
+         * @return standard deviation (population) of the ratings of a pair, or NaN if it is not rated
+         */
+        public double getSd(int row, int col) {
+            int p = index.get(row, col);
+            if (p < 0)
+                return Double.NaN;
+            double mean = sums[p] / counts[p];
+            return Math.sqrt(Math.max(0, squares[p] / counts[p] - mean * mean));
+        }
+
+        /**
+         * @return mean and standard deviation (population) of the average ratings of the pairs
+         */
+        public double[] getAverageMoments() {
+            double sum = 0, sumSquares = 0;
+            for (int p = 0; p < size; p++) {
+                double avg = sums[p] / counts[p];
+                sum += avg;
+                sumSquares += avg * avg;
+            }
+            double mean = sum / size;
+            return new double[] { mean, Math.sqrt(Math.max(0, sumSquares / size - mean * mean)) };
+        }
+    }
+
+    /**
+     * Histogram of data over a set of levels, i.e., the sorted distinct values of the data. The median and mode are
+     * the same as those of {@code happy.coding.math.Stats}, without boxing the data.
+     */
+    public static class Histogram {
+
+        private final double[] data;
+        private final double[] levels;
+        private final int[] counts;
+
+        /**
+         * @param data
+         *            data values
+         * @param levels
+         *            sorted distinct values, which contain all the data values
+         */
+        public Histogram(double[] data, double[] levels) {
+            this.data = data;
+            this.levels = levels;
+            counts = new int[levels.length];
+            for (double x : data)
+                counts[Arrays.binarySearch(levels, x)]++;
+        }
+
+        /**
+         * @return sorted distinct values of data
+         */
+        public static double[] levels(double[] data) {
+            double[] ds = data.clone();
+            Arrays.sort(ds);
+            int n = 0;
+            for (int k = 0; k < ds.length; k++)
+                if (n == 0 || Double.compare(ds[k], ds[n - 1]) != 0)
+                    ds[n++] = ds[k];
+            return Arrays.copyOf(ds, n);
+        }
+
+        /**
+         * @return median of data, i.e., the average of the two middle values if the size of data is even
+         */
+        public double median() {
+            int n = data.length;
+            if (n == 0)
+                return Double.NaN;
+            if (n % 2 == 0)
+                return (value(n / 2 - 1) + value(n / 2)) / 2.0;
+            return value((n + 1) / 2 - 1);
+        }
+
+        /**
+         * @return the k-th smallest value of data, starting from 0
+         */
+        private double value(int k) {
+            int cum = 0;
+            for (int l = 0; l < levels.length; l++) {
+                cum += counts[l];
+                if (k < cum)
+                    return levels[l];
+            }
+            return Double.NaN;
+        }
+
+        /**
+         * @return the most frequent value of data; among equally frequent values, the one which reaches that
+         *         frequency first in data order
+         */
+        public double mode() {
+            int max = 0, numMax = 0, level = -1;
+            for (int l = 0; l < counts.length; l++) {
+                if (counts[l] > max) {
+                    max = counts[l];
+                    numMax = 1;
+                    level = l;
+                } else if (counts[l] == max)
+                    numMax++;
+            }
+            if (level < 0)
+                return Double.NaN;
+            if (numMax == 1)
+                return levels[level];
+
+            int[] seen = new int[levels.length];
+            for (double x : data) {
+                int l = Arrays.binarySearch(levels, x);
+                if (++seen[l] == max)
+                    return x;
+            }
+            return levels[level];
+        }
+    }
+}
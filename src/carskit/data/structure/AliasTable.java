@@ -0,0 +1,103 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.data.structure;
+
+import java.util.Random;
+
+/**
+ * Table of a discrete distribution by the alias method (Vose), which draws an index with probability proportional to
+ * its weight in constant time: a slot is picked uniformly, and then either the slot itself or its alias by one biased
+ * coin. The table is built once in linear time, and is read-only afterwards, so that it can be shared by threads which
+ * draw with their own random generators.
+ *
+ */
+public class AliasTable {
+
+    // probability of keeping a slot rather than taking its alias
+    private final double[] probs;
+    private final int[] aliases;
+
+    /**
+     * @param weights
+     *            non-negative weights of the indices, not all zero
+     */
+    public AliasTable(double[] weights) {
+        int n = weights.length;
+        probs = new double[n];
+        aliases = new int[n];
+
+        double sum = 0;
+        for (double w : weights)
+            sum += w;
+        if (n == 0 || !(sum > 0))
+            throw new IllegalArgumentException("weights of an alias table have to sum up to a positive value");
+
+        // scaled weights, with mean 1; the slots below and above 1 are kept in two stacks
+        double[] scaled = new double[n];
+        int[] small = new int[n], large = new int[n];
+        int numSmall = 0, numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1)
+                small[numSmall++] = i;
+            else
+                large[numLarge++] = i;
+        }
+
+        // fill each small slot up to 1 by a large one, which becomes its alias
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall], l = large[--numLarge];
+            probs[s] = scaled[s];
+            aliases[s] = l;
+
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if (scaled[l] < 1)
+                small[numSmall++] = l;
+            else
+                large[numLarge++] = l;
+        }
+
+        // the rest are full, up to rounding errors
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            probs[l] = 1;
+            aliases[l] = l;
+        }
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            probs[s] = 1;
+            aliases[s] = s;
+        }
+    }
+
+    /**
+     * @return an index drawn with probability proportional to its weight
+     */
+    public int sample(Random rnd) {
+        int k = rnd.nextInt(probs.length);
+        return rnd.nextDouble() < probs[k] ? k : aliases[k];
+    }
+
+    /**
+     * @return number of indices
+     */
+    public int size() {
+        return probs.length;
+    }
+}
@@ -18,19 +18,544 @@
 
 package carskit.data.structure;
 
+import librec.data.DenseVector;
+import librec.data.SVD;
+import librec.data.SparseVector;
+import librec.util.Randoms;
+
 /**
+ * Dense matrix stored in one flat array in row-major order, either in single precision ({@code float}) or in double
+ * precision ({@code double}). Entry (i, j) is at position {@code i * stride + j}, so that a row is a contiguous run
+ * of the array, which the row kernels ({@link #rowDot}, {@link #rowAxpy}, {@link #rowScale} and the gradient step
+ * {@link #rowSgd}) scan in one loop.
+ *
+ * <p>
+ * The matrix can be used wherever a {@code librec.data.DenseMatrix} is expected: all the methods which access the
+ * two-dimensional array of the super class are overridden, and the ones which build a new matrix work on a
+ * double-precision copy (see {@link #toDenseMatrix()}) and return a flat matrix. The methods of a plain
+ * {@code librec.data.DenseMatrix} which read the arrays of their arguments (e.g., {@code add}, {@code mult} and the
+ * static products) need such a copy of a flat argument.
+ * </p>
+ *
  * Created by yzheng on 7/31/15.
  */
 public class DenseMatrix extends librec.data.DenseMatrix {
+
+    // distance between the starts of two consecutive rows
+    private final int stride;
+
+    // values in row-major order; exactly one of them is not null
+    private float[] floats;
+    private double[] doubles;
+
+    /**
+     * Construct a double-precision matrix of zeros.
+     */
     public DenseMatrix(int numRows, int numColumns) {
-        super(numRows, numColumns);
+        this(numRows, numColumns, false);
+    }
+
+    /**
+     * Construct a matrix of zeros.
+     *
+     * @param singlePrecision
+     *            whether to store the values as {@code float} rather than {@code double}, which halves the memory
+     */
+    public DenseMatrix(int numRows, int numColumns, boolean singlePrecision) {
+        super(null, numRows, numColumns);
+
+        long size = (long) numRows * numColumns;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many entries for a dense matrix: " + numRows + " x " + numColumns);
+
+        stride = numColumns;
+        if (singlePrecision)
+            floats = new float[(int) size];
+        else
+            doubles = new double[(int) size];
     }
 
     public DenseMatrix(double[][] array) {
-        super(array);
+        this(array.length, array[0].length, false);
+
+        for (int i = 0; i < numRows; i++)
+            System.arraycopy(array[i], 0, doubles, i * stride, numColumns);
     }
 
+    /**
+     * Construct a copy of a matrix, in the same precision if it is a flat matrix, and in double precision otherwise.
+     */
     public DenseMatrix(librec.data.DenseMatrix mat) {
-        super(mat);
+        this(mat.numRows(), mat.numColumns(), mat instanceof DenseMatrix && ((DenseMatrix) mat).isSinglePrecision());
+
+        if (mat instanceof DenseMatrix) {
+            DenseMatrix m = (DenseMatrix) mat;
+            if (floats != null)
+                System.arraycopy(m.floats, 0, floats, 0, floats.length);
+            else
+                System.arraycopy(m.doubles, 0, doubles, 0, doubles.length);
+        } else {
+            for (int i = 0; i < numRows; i++)
+                for (int j = 0; j < numColumns; j++)
+                    doubles[i * stride + j] = mat.get(i, j);
+        }
+    }
+
+    /**
+     * @return whether the values are stored as {@code float}
+     */
+    public boolean isSinglePrecision() {
+        return floats != null;
+    }
+
+    /**
+     * @return a double-precision {@code librec.data.DenseMatrix} with the same values
+     */
+    public librec.data.DenseMatrix toDenseMatrix() {
+        double[][] array = new double[numRows][numColumns];
+        for (int i = 0; i < numRows; i++) {
+            int offset = i * stride;
+            for (int j = 0; j < numColumns; j++)
+                array[i][j] = floats != null ? floats[offset + j] : doubles[offset + j];
+        }
+        return new librec.data.DenseMatrix(array, numRows, numColumns);
+    }
+
+    /**
+     * @return a matrix whose arrays can be read by the methods of {@code librec.data.DenseMatrix}
+     */
+    private static librec.data.DenseMatrix plain(librec.data.DenseMatrix mat) {
+        return mat instanceof DenseMatrix ? ((DenseMatrix) mat).toDenseMatrix() : mat;
+    }
+
+    /**
+     * @return inner product of row {@code u} of this matrix and row {@code j} of matrix {@code m}
+     */
+    public double rowDot(int u, DenseMatrix m, int j) {
+        assert numColumns == m.numColumns;
+
+        int a = u * stride, b = j * m.stride;
+        double sum = 0;
+        if (floats != null && m.floats != null) {
+            for (int k = 0; k < numColumns; k++)
+                sum += (double) floats[a + k] * m.floats[b + k];
+        } else if (doubles != null && m.doubles != null) {
+            for (int k = 0; k < numColumns; k++)
+                sum += doubles[a + k] * m.doubles[b + k];
+        } else {
+            for (int k = 0; k < numColumns; k++)
+                sum += value(a + k) * m.value(b + k);
+        }
+        return sum;
+    }
+
+    /**
+     * row {@code u} of this matrix += {@code alpha} * row {@code j} of matrix {@code m}
+     */
+    public void rowAxpy(int u, double alpha, DenseMatrix m, int j) {
+        assert numColumns == m.numColumns;
+
+        int a = u * stride, b = j * m.stride;
+        if (floats != null && m.floats != null) {
+            for (int k = 0; k < numColumns; k++)
+                floats[a + k] += alpha * m.floats[b + k];
+        } else if (doubles != null && m.doubles != null) {
+            for (int k = 0; k < numColumns; k++)
+                doubles[a + k] += alpha * m.doubles[b + k];
+        } else {
+            for (int k = 0; k < numColumns; k++)
+                increase(a + k, alpha * m.value(b + k));
+        }
+    }
+
+    /**
+     * row {@code u} of this matrix += {@code alpha} * {@code x}
+     */
+    public void rowAxpy(int u, double alpha, double[] x) {
+        assert numColumns == x.length;
+
+        int a = u * stride;
+        if (floats != null) {
+            for (int k = 0; k < numColumns; k++)
+                floats[a + k] += alpha * x[k];
+        } else {
+            for (int k = 0; k < numColumns; k++)
+                doubles[a + k] += alpha * x[k];
+        }
+    }
+
+    /**
+     * row {@code u} of this matrix *= {@code alpha}
+     */
+    public void rowScale(int u, double alpha) {
+        int a = u * stride;
+        if (floats != null) {
+            for (int k = 0; k < numColumns; k++)
+                floats[a + k] *= alpha;
+        } else {
+            for (int k = 0; k < numColumns; k++)
+                doubles[a + k] *= alpha;
+        }
+    }
+
+    /**
+     * Inner product of row {@code u} of matrix {@code m} and row {@code j} of matrix {@code n}, by the row kernel if
+     * both are flat matrices, and by {@code librec.data.DenseMatrix.rowMult} otherwise.
+     */
+    public static double rowMult(librec.data.DenseMatrix m, int u, librec.data.DenseMatrix n, int j) {
+        if (m instanceof DenseMatrix && n instanceof DenseMatrix)
+            return ((DenseMatrix) m).rowDot(u, (DenseMatrix) n, j);
+        return librec.data.DenseMatrix.rowMult(m, u, n, j);
+    }
+
+    /**
+     * One step of stochastic gradient descent on the factors of a rating: with {@code p} = row {@code u} of matrix
+     * {@code m} and {@code q} = row {@code j} of matrix {@code n},
+     * 
+     * <pre>
+     * p += lRate * (err * q - regU * p)
+     * q += lRate * (err * p - regJ * q)
+     * </pre>
+     * 
+     * where both updates read the values before the step. The two rows are updated in one pass, column by column in
+     * the same order of operations as the loops of {@code get}/{@code add} which it replaces, so that the results in
+     * double precision are the same. The rows must not be the same row of the same matrix.
+     * 
+     * @return regularization term of the loss: {@code regU * |p|^2 + regJ * |q|^2}, before the step
+     */
+    public static double rowSgd(librec.data.DenseMatrix m, int u, librec.data.DenseMatrix n, int j, double err,
+            double lRate, double regU, double regJ) {
+        return rowSgd(m, u, n, j, err, 1, lRate, regU, regJ);
+    }
+
+    /**
+     * Same as {@link #rowSgd(librec.data.DenseMatrix, int, librec.data.DenseMatrix, int, double, double, double,
+     * double)}, with the error terms weighted by {@code weight}, i.e., {@code err * q * weight} and
+     * {@code err * p * weight} (e.g., by the similarity of contexts).
+     */
+    public static double rowSgd(librec.data.DenseMatrix m, int u, librec.data.DenseMatrix n, int j, double err,
+            double weight, double lRate, double regU, double regJ) {
+        assert m.numColumns() == n.numColumns();
+
+        int numColumns = m.numColumns();
+        double loss = 0;
+        if (m instanceof DenseMatrix && n instanceof DenseMatrix) {
+            DenseMatrix mf = (DenseMatrix) m, nf = (DenseMatrix) n;
+            int a = u * mf.stride, b = j * nf.stride;
+            if (mf.doubles != null && nf.doubles != null) {
+                double[] ps = mf.doubles, qs = nf.doubles;
+                for (int k = 0; k < numColumns; k++) {
+                    double puf = ps[a + k], qjf = qs[b + k];
+                    ps[a + k] += lRate * (err * qjf * weight - regU * puf);
+                    qs[b + k] += lRate * (err * puf * weight - regJ * qjf);
+                    loss += regU * puf * puf + regJ * qjf * qjf;
+                }
+            } else if (mf.floats != null && nf.floats != null) {
+                float[] ps = mf.floats, qs = nf.floats;
+                for (int k = 0; k < numColumns; k++) {
+                    double puf = ps[a + k], qjf = qs[b + k];
+                    ps[a + k] += lRate * (err * qjf * weight - regU * puf);
+                    qs[b + k] += lRate * (err * puf * weight - regJ * qjf);
+                    loss += regU * puf * puf + regJ * qjf * qjf;
+                }
+            } else {
+                for (int k = 0; k < numColumns; k++) {
+                    double puf = mf.value(a + k), qjf = nf.value(b + k);
+                    mf.increase(a + k, lRate * (err * qjf * weight - regU * puf));
+                    nf.increase(b + k, lRate * (err * puf * weight - regJ * qjf));
+                    loss += regU * puf * puf + regJ * qjf * qjf;
+                }
+            }
+        } else {
+            for (int k = 0; k < numColumns; k++) {
+                double puf = m.get(u, k), qjf = n.get(j, k);
+                m.add(u, k, lRate * (err * qjf * weight - regU * puf));
+                n.add(j, k, lRate * (err * puf * weight - regJ * qjf));
+                loss += regU * puf * puf + regJ * qjf * qjf;
+            }
+        }
+        return loss;
+    }
+
+    /**
+     * row {@code u} of matrix {@code m} += {@code alpha} * {@code x}, by the row kernel if {@code m} is a flat matrix
+     */
+    public static void rowAxpy(librec.data.DenseMatrix m, int u, double alpha, double[] x) {
+        if (m instanceof DenseMatrix) {
+            ((DenseMatrix) m).rowAxpy(u, alpha, x);
+        } else {
+            for (int k = 0; k < x.length; k++)
+                m.add(u, k, alpha * x[k]);
+        }
+    }
+
+    /**
+     * @return row {@code u} of matrix {@code m} as an array
+     */
+    public static double[] rowOf(librec.data.DenseMatrix m, int u) {
+        double[] row = new double[m.numColumns()];
+        if (m instanceof DenseMatrix) {
+            DenseMatrix flat = (DenseMatrix) m;
+            for (int k = 0, a = u * flat.stride; k < row.length; k++)
+                row[k] = flat.value(a + k);
+        } else {
+            for (int k = 0; k < row.length; k++)
+                row[k] = m.get(u, k);
+        }
+        return row;
+    }
+
+    /**
+     * Product of matrix {@code m} and vector {@code x}: {@code out[j]} = inner product of row {@code j} of matrix
+     * {@code m} and {@code x}, for each row {@code j < out.length}. The rows are scanned in one pass by the row kernel
+     * if {@code m} is a flat matrix; each inner product is summed in the same order as by {@link #rowMult}.
+     */
+    public static void rowMults(librec.data.DenseMatrix m, double[] x, double[] out) {
+        assert m.numColumns() == x.length && out.length <= m.numRows();
+
+        int numColumns = x.length;
+        if (m instanceof DenseMatrix) {
+            DenseMatrix flat = (DenseMatrix) m;
+            if (flat.floats != null) {
+                float[] floats = flat.floats;
+                for (int j = 0, b = 0; j < out.length; j++, b += flat.stride) {
+                    double sum = 0;
+                    for (int k = 0; k < numColumns; k++)
+                        sum += x[k] * floats[b + k];
+                    out[j] = sum;
+                }
+            } else {
+                double[] doubles = flat.doubles;
+                for (int j = 0, b = 0; j < out.length; j++, b += flat.stride) {
+                    double sum = 0;
+                    for (int k = 0; k < numColumns; k++)
+                        sum += x[k] * doubles[b + k];
+                    out[j] = sum;
+                }
+            }
+        } else {
+            for (int j = 0; j < out.length; j++) {
+                double sum = 0;
+                for (int k = 0; k < numColumns; k++)
+                    sum += x[k] * m.get(j, k);
+                out[j] = sum;
+            }
+        }
+    }
+
+    private double value(int idx) {
+        return floats != null ? floats[idx] : doubles[idx];
+    }
+
+    private void store(int idx, double val) {
+        if (floats != null)
+            floats[idx] = (float) val;
+        else
+            doubles[idx] = val;
+    }
+
+    private void increase(int idx, double val) {
+        if (floats != null)
+            floats[idx] += val;
+        else
+            doubles[idx] += val;
+    }
+
+    @Override
+    public DenseMatrix clone() {
+        return new DenseMatrix(this);
+    }
+
+    @Override
+    public void init(double mean, double sigma) {
+        for (int idx = 0, size = numRows * stride; idx < size; idx++)
+            store(idx, Randoms.gaussian(mean, sigma));
+    }
+
+    @Override
+    public void init(double range) {
+        for (int idx = 0, size = numRows * stride; idx < size; idx++)
+            store(idx, Randoms.uniform(0, range));
+    }
+
+    @Override
+    public DenseVector row(int rowId, boolean deep) {
+        // a vector has no offset, so that a row can be shared only if it is the whole array
+        if (!deep && doubles != null && numRows == 1)
+            return new DenseVector(doubles, false);
+
+        double[] vals = new double[numColumns];
+        int offset = rowId * stride;
+        if (doubles != null)
+            System.arraycopy(doubles, offset, vals, 0, numColumns);
+        else
+            for (int j = 0; j < numColumns; j++)
+                vals[j] = floats[offset + j];
+        return new DenseVector(vals, false);
+    }
+
+    @Override
+    public DenseVector column(int column) {
+        DenseVector vec = new DenseVector(numRows);
+        for (int i = 0; i < numRows; i++)
+            vec.set(i, value(i * stride + column));
+        return vec;
+    }
+
+    @Override
+    public double columnMean(int column) {
+        double sum = 0.0;
+        for (int i = 0; i < numRows; i++)
+            sum += value(i * stride + column);
+        return sum / numRows;
+    }
+
+    @Override
+    public double norm() {
+        double res = 0;
+        for (int idx = 0, size = numRows * stride; idx < size; idx++) {
+            double val = value(idx);
+            res += val * val;
+        }
+        return Math.sqrt(res);
+    }
+
+    @Override
+    public double get(int row, int column) {
+        int idx = row * stride + column;
+        return floats != null ? floats[idx] : doubles[idx];
+    }
+
+    @Override
+    public void set(int row, int column, double val) {
+        store(row * stride + column, val);
+    }
+
+    @Override
+    public void setAll(double val) {
+        for (int idx = 0, size = numRows * stride; idx < size; idx++)
+            store(idx, val);
+    }
+
+    @Override
+    public double sumOfRow(int row) {
+        double res = 0;
+        for (int j = 0, offset = row * stride; j < numColumns; j++)
+            res += value(offset + j);
+        return res;
+    }
+
+    @Override
+    public double sumOfColumn(int col) {
+        double res = 0;
+        for (int i = 0; i < numRows; i++)
+            res += value(i * stride + col);
+        return res;
+    }
+
+    @Override
+    public double sum() {
+        double res = 0;
+        for (int idx = 0, size = numRows * stride; idx < size; idx++)
+            res += value(idx);
+        return res;
+    }
+
+    @Override
+    public void add(int row, int column, double val) {
+        increase(row * stride + column, val);
+    }
+
+    @Override
+    public void setRow(int row, double val) {
+        for (int j = 0, offset = row * stride; j < numColumns; j++)
+            store(offset + j, val);
+    }
+
+    @Override
+    public void setRow(int row, DenseVector vals) {
+        for (int j = 0, offset = row * stride; j < numColumns; j++)
+            store(offset + j, vals.get(j));
+    }
+
+    /* methods which build a new matrix work on a double-precision copy, and return a flat matrix again */
+
+    @Override
+    public DenseMatrix scale(double val) {
+        return new DenseMatrix(toDenseMatrix().scale(val));
+    }
+
+    @Override
+    public DenseMatrix add(librec.data.DenseMatrix mat) {
+        return new DenseMatrix(toDenseMatrix().add(plain(mat)));
+    }
+
+    @Override
+    public DenseMatrix add(double val) {
+        return new DenseMatrix(toDenseMatrix().add(val));
+    }
+
+    @Override
+    public DenseMatrix minus(librec.data.DenseMatrix mat) {
+        return new DenseMatrix(toDenseMatrix().minus(plain(mat)));
+    }
+
+    @Override
+    public DenseMatrix minus(double val) {
+        return new DenseMatrix(toDenseMatrix().minus(val));
+    }
+
+    @Override
+    public DenseMatrix mult(librec.data.DenseMatrix mat) {
+        return new DenseMatrix(toDenseMatrix().mult(plain(mat)));
+    }
+
+    @Override
+    public DenseMatrix mult(librec.data.SparseMatrix mat) {
+        return new DenseMatrix(toDenseMatrix().mult(mat));
+    }
+
+    @Override
+    public DenseVector mult(SparseVector vec) {
+        return toDenseMatrix().mult(vec);
+    }
+
+    @Override
+    public DenseMatrix transpose() {
+        DenseMatrix mat = new DenseMatrix(numColumns, numRows, isSinglePrecision());
+        for (int i = 0; i < numRows; i++)
+            for (int j = 0; j < numColumns; j++)
+                mat.store(j * mat.stride + i, value(i * stride + j));
+        return mat;
+    }
+
+    @Override
+    public DenseMatrix cholesky() {
+        librec.data.DenseMatrix mat = toDenseMatrix().cholesky();
+        return mat == null ? null : new DenseMatrix(mat);
+    }
+
+    /**
+     * @deprecated use {@link #inv()} instead, as the super class does
+     */
+    @Deprecated
+    @Override
+    public DenseMatrix inverse() {
+        return inv();
+    }
+
+    @Override
+    public DenseMatrix inv() {
+        return new DenseMatrix(toDenseMatrix().inv());
+    }
+
+    @Override
+    public SVD svd() {
+        return toDenseMatrix().svd();
+    }
+
+    @Override
+    public String toString() {
+        return toDenseMatrix().toString();
     }
 }
@@ -0,0 +1,214 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.data.structure;
+
+import java.util.Arrays;
+
+/**
+ * Nearest neighbors of each user (or item), sorted by similarity in descending order, held in primitive arrays of
+ * the compressed row storage. Neighbors of the same similarity are sorted by their ids in ascending order. If the
+ * index is built with a capacity K, only the K most similar neighbors of each row are kept, i.e., O(n * K) memory
+ * instead of a full similarity matrix.
+ *
+ */
+public class NeighborIndex {
+
+    private final int[] rowPtr;
+    private final int[] ids;
+    private final double[] sims;
+
+    private NeighborIndex(int[] rowPtr, int[] ids, double[] sims) {
+        this.rowPtr = rowPtr;
+        this.ids = ids;
+        this.sims = sims;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int numRows() {
+        return rowPtr.length - 1;
+    }
+
+    /**
+     * @return number of neighbors of a row
+     */
+    public int size(int row) {
+        return rowPtr[row + 1] - rowPtr[row];
+    }
+
+    /**
+     * @return the k-th most similar neighbor of a row, starting from 0
+     */
+    public int neighbor(int row, int k) {
+        return ids[rowPtr[row] + k];
+    }
+
+    /**
+     * @return similarity of the k-th most similar neighbor of a row, starting from 0
+     */
+    public double similarity(int row, int k) {
+        return sims[rowPtr[row] + k];
+    }
+
+    /**
+     * @return neighbors of a row, from the most similar to the least similar one
+     */
+    public int[] neighbors(int row) {
+        return Arrays.copyOfRange(ids, rowPtr[row], rowPtr[row + 1]);
+    }
+
+    /**
+     * Builder of a neighbor index from (row, neighbor, similarity) entries. A row with a capacity keeps its best
+     * entries in a bounded heap, whose root is the worst of them, so that a better entry replaces the root.
+     */
+    public static class Builder {
+
+        private final int capacity;
+        private final int[][] rowIds;
+        private final double[][] rowSims;
+        private final int[] sizes;
+
+        /**
+         * @param numRows
+         *            number of rows
+         * @param capacity
+         *            maximum number of neighbors kept per row; all of them are kept if it is not positive
+         */
+        public Builder(int numRows, int capacity) {
+            this.capacity = capacity;
+            rowIds = new int[numRows][];
+            rowSims = new double[numRows][];
+            sizes = new int[numRows];
+        }
+
+        /**
+         * add a neighbor of a row
+         */
+        public void add(int row, int neighbor, double sim) {
+            int[] hs = rowIds[row];
+            double[] ss = rowSims[row];
+            int size = sizes[row];
+
+            if (hs == null) {
+                int n = capacity > 0 ? Math.min(capacity, 16) : 16;
+                hs = rowIds[row] = new int[n];
+                ss = rowSims[row] = new double[n];
+            }
+
+            if (capacity > 0 && size == capacity) {
+                // replace the worst neighbor if the new one is better
+                if (!worse(ss[0], hs[0], sim, neighbor))
+                    return;
+                hs[0] = neighbor;
+                ss[0] = sim;
+                siftDown(hs, ss, 0, size);
+                return;
+            }
+
+            if (size == hs.length) {
+                int n = capacity > 0 ? Math.min(capacity, size << 1) : size << 1;
+                hs = rowIds[row] = Arrays.copyOf(hs, n);
+                ss = rowSims[row] = Arrays.copyOf(ss, n);
+            }
+            hs[size] = neighbor;
+            ss[size] = sim;
+            sizes[row] = size + 1;
+            if (capacity > 0)
+                siftUp(hs, ss, size);
+        }
+
+        /**
+         * @return the neighbor index, whose rows are sorted by similarity in descending order
+         */
+        public NeighborIndex build() {
+            int numRows = sizes.length;
+            int[] rowPtr = new int[numRows + 1];
+            for (int u = 0; u < numRows; u++)
+                rowPtr[u + 1] = rowPtr[u] + sizes[u];
+
+            int[] ids = new int[rowPtr[numRows]];
+            double[] sims = new double[rowPtr[numRows]];
+            for (int u = 0; u < numRows; u++) {
+                int[] hs = rowIds[u];
+                double[] ss = rowSims[u];
+                int size = sizes[u];
+
+                // heap sort: the worst neighbor moves to the end of the row, one at a time
+                if (capacity <= 0)
+                    for (int k = size / 2 - 1; k >= 0; k--)
+                        siftDown(hs, ss, k, size);
+                for (int n = size; n > 0; n--) {
+                    int pos = rowPtr[u] + n - 1;
+                    ids[pos] = hs[0];
+                    sims[pos] = ss[0];
+                    hs[0] = hs[n - 1];
+                    ss[0] = ss[n - 1];
+                    siftDown(hs, ss, 0, n - 1);
+                }
+                rowIds[u] = null;
+                rowSims[u] = null;
+            }
+
+            return new NeighborIndex(rowPtr, ids, sims);
+        }
+
+        /**
+         * @return whether neighbor (s1, id1) is worse than (s2, id2), i.e., less similar, or equally similar with a
+         *         larger id
+         */
+        private static boolean worse(double s1, int id1, double s2, int id2) {
+            int cmp = Double.compare(s1, s2);
+            return cmp < 0 || (cmp == 0 && id1 > id2);
+        }
+
+        private static void siftUp(int[] hs, double[] ss, int k) {
+            int h = hs[k];
+            double s = ss[k];
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (!worse(s, h, ss[parent], hs[parent]))
+                    break;
+                hs[k] = hs[parent];
+                ss[k] = ss[parent];
+                k = parent;
+            }
+            hs[k] = h;
+            ss[k] = s;
+        }
+
+        private static void siftDown(int[] hs, double[] ss, int k, int size) {
+            int h = hs[k];
+            double s = ss[k];
+            int half = size >>> 1;
+            while (k < half) {
+                int child = 2 * k + 1, right = child + 1;
+                if (right < size && worse(ss[right], hs[right], ss[child], hs[child]))
+                    child = right;
+                if (!worse(ss[child], hs[child], s, h))
+                    break;
+                hs[k] = hs[child];
+                ss[k] = ss[child];
+                k = child;
+            }
+            hs[k] = h;
+            ss[k] = s;
+        }
+    }
+}
@@ -45,6 +45,238 @@ public class SparseMatrix extends librec.data.SparseMatrix {
         super(mat);
     }
 
+    /**
+     * Construct a sparse matrix directly from its compressed row storage (CRS); the compressed column storage (CCS)
+     * is derived by a counting pass over the columns, so that no boxed {@code Table} is needed in between.
+     *
+     * @param rows
+     *            number of rows
+     * @param cols
+     *            number of columns
+     * @param rowPtr
+     *            row pointers of length {@code rows + 1}
+     * @param colInd
+     *            column indices, sorted within each row
+     * @param rowData
+     *            values aligned with {@code colInd}
+     */
+    public SparseMatrix(int rows, int cols, int[] rowPtr, int[] colInd, double[] rowData) {
+        super(rows, cols, HashBasedTable.<Integer, Integer, Double>create());
+
+        this.rowPtr = rowPtr;
+        this.colInd = colInd;
+        this.rowData = rowData;
+
+        int nnz = rowPtr[rows];
+        colPtr = new int[cols + 1];
+        rowInd = new int[nnz];
+        colData = new double[nnz];
+
+        for (int idx = 0; idx < nnz; idx++)
+            colPtr[colInd[idx] + 1]++;
+        for (int j = 0; j < cols; j++)
+            colPtr[j + 1] += colPtr[j];
+
+        // rows are visited in ascending order, hence row indices are sorted within each column
+        int[] next = Arrays.copyOf(colPtr, cols);
+        for (int u = 0; u < rows; u++) {
+            for (int idx = rowPtr[u], end = rowPtr[u + 1]; idx < end; idx++) {
+                int pos = next[colInd[idx]]++;
+                rowInd[pos] = u;
+                colData[pos] = rowData[idx];
+            }
+        }
+    }
+
+    /**
+     * Policy to merge the entries of the same cell
+     */
+    public enum Policy {
+        /** sum of the entries */
+        SUM,
+        /** average of the entries */
+        MEAN,
+        /** the entry added last, which is the same as what {@code Table.put} does */
+        LAST
+    }
+
+    /**
+     * Build a sparse matrix from coordinate (COO) triplets held in primitive arrays. If the same cell occurs more
+     * than once, the later entry wins, which is the same as what {@code Table.put} does.
+     *
+     * @param rows
+     *            number of rows
+     * @param cols
+     *            number of columns
+     * @param rowIds
+     *            row index of each entry
+     * @param colIds
+     *            column index of each entry
+     * @param vals
+     *            value of each entry
+     * @param size
+     *            number of valid entries in the arrays
+     * @return a sparse matrix
+     */
+    public static SparseMatrix fromTriplets(int rows, int cols, int[] rowIds, int[] colIds, double[] vals, int size) {
+        return compress(rows, cols, rowIds, colIds, vals, size, Policy.LAST, 0);
+    }
+
+    /**
+     * Sort the triplets by row and column, merge the entries of each cell, and build the compressed storages. Entries
+     * of a cell are merged in the order in which they are given.
+     *
+     * @param shrinkage
+     *            added to the count of entries when they are averaged (policy MEAN)
+     */
+    private static SparseMatrix compress(int rows, int cols, int[] rowIds, int[] colIds, double[] vals, int size,
+            Policy policy, double shrinkage) {
+
+        // bucket entries by row; a counting sort is stable, so the file order is kept within each row
+        int[] rowPtr = new int[rows + 1];
+        for (int k = 0; k < size; k++)
+            rowPtr[rowIds[k] + 1]++;
+        int maxRowSize = 0;
+        for (int u = 0; u < rows; u++) {
+            maxRowSize = Math.max(maxRowSize, rowPtr[u + 1]);
+            rowPtr[u + 1] += rowPtr[u];
+        }
+
+        int[] order = new int[size];
+        int[] next = Arrays.copyOf(rowPtr, rows);
+        for (int k = 0; k < size; k++)
+            order[next[rowIds[k]]++] = k;
+        next = null;
+
+        // sort each row by (column, position) and merge the entries of each column
+        int[] colInd = new int[size];
+        double[] rowData = new double[size];
+        long[] keys = new long[maxRowSize];
+        int nnz = 0;
+        for (int u = 0; u < rows; u++) {
+            int start = rowPtr[u], end = rowPtr[u + 1], len = end - start;
+            for (int t = 0; t < len; t++) {
+                int k = order[start + t];
+                keys[t] = ((long) colIds[k] << 32) | k;
+            }
+            Arrays.sort(keys, 0, len);
+
+            rowPtr[u] = nnz;
+            for (int t = 0; t < len; ) {
+                int col = (int) (keys[t] >>> 32);
+                double val = vals[(int) keys[t]];
+                int count = 1;
+                for (t++; t < len && (int) (keys[t] >>> 32) == col; t++, count++) {
+                    double v = vals[(int) keys[t]];
+                    val = policy == Policy.LAST ? v : val + v;
+                }
+                if (policy == Policy.MEAN)
+                    val /= shrinkage + count;
+                colInd[nnz] = col;
+                rowData[nnz] = val;
+                nnz++;
+            }
+        }
+        rowPtr[rows] = nnz;
+
+        if (nnz < size) {
+            colInd = Arrays.copyOf(colInd, nnz);
+            rowData = Arrays.copyOf(rowData, nnz);
+        }
+
+        return new SparseMatrix(rows, cols, rowPtr, colInd, rowData);
+    }
+
+    /**
+     * Builder of a sparse matrix from a stream of (row, column, value) entries, which are kept in primitive arrays
+     * until the compressed storages are built, instead of boxed {@code Table} cells.
+     */
+    public static class Builder {
+
+        private int[] rowIds, colIds;
+        private double[] vals;
+        private int size;
+
+        public Builder() {
+            this(16);
+        }
+
+        /**
+         * @param capacity
+         *            expected number of entries
+         */
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 16);
+            rowIds = new int[capacity];
+            colIds = new int[capacity];
+            vals = new double[capacity];
+        }
+
+        /**
+         * add an entry; entries of the same cell are merged when the matrix is built
+         */
+        public Builder add(int row, int col, double val) {
+            if (size == rowIds.length) {
+                int capacity = size + (size >> 1);
+                rowIds = Arrays.copyOf(rowIds, capacity);
+                colIds = Arrays.copyOf(colIds, capacity);
+                vals = Arrays.copyOf(vals, capacity);
+            }
+            rowIds[size] = row;
+            colIds[size] = col;
+            vals[size] = val;
+            size++;
+            return this;
+        }
+
+        /**
+         * @return number of entries added so far
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param rows
+         *            number of rows, larger than any row index added
+         * @param cols
+         *            number of columns, larger than any column index added
+         * @param policy
+         *            how the entries of the same cell are merged
+         * @return a sparse matrix of the entries
+         */
+        public SparseMatrix build(int rows, int cols, Policy policy) {
+            return compress(rows, cols, rowIds, colIds, vals, size, policy, 0);
+        }
+
+        /**
+         * @return a sparse matrix of the shrunk average of each cell, i.e., sum / (shrinkage + count) of its entries
+         */
+        public SparseMatrix buildMean(int rows, int cols, double shrinkage) {
+            return compress(rows, cols, rowIds, colIds, vals, size, Policy.MEAN, shrinkage);
+        }
+    }
+
+    /**
+     * @return column pointers of the compressed column storage (CCS)
+     */
+    public int[] getColumnPointers() {
+        return colPtr;
+    }
+
+    /**
+     * @return row indices of the compressed column storage (CCS)
+     */
+    public int[] getRowIndices() {
+        return rowInd;
+    }
+
+    /**
+     * @return values of the compressed column storage (CCS), aligned with {@code getRowIndices()}
+     */
+    public double[] getColumnData() {
+        return colData;
+    }
 
     public double getGlobalAvg()
     {
@@ -0,0 +1,182 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.data.structure;
+
+import java.util.Arrays;
+
+/**
+ * Selector of the top-K items by their scores, held in a bounded heap of primitive arrays whose root is the worst of
+ * the kept items, so that a better item replaces the root. The items are ranked by score in descending order, and
+ * items of the same score by the order in which they are offered, i.e., the same ranking as a stable sort of all the
+ * items. A selector is reused for many lists (see {@link #clear()}); it allocates nothing per item.
+ *
+ */
+public class TopKSelector {
+
+    private final int capacity;
+
+    // heap of the kept items: ids, scores and the sequence numbers in which they are offered
+    private int[] ids;
+    private double[] scores;
+    private int[] seqs;
+    private int size, numOffered;
+
+    // whether the items are sorted by rank, rather than in a heap
+    private boolean sorted;
+
+    /**
+     * @param capacity
+     *            maximum number of items kept; all of them are kept if it is not positive
+     */
+    public TopKSelector(int capacity) {
+        this.capacity = capacity;
+
+        int n = capacity > 0 ? capacity : 16;
+        ids = new int[n];
+        scores = new double[n];
+        seqs = new int[n];
+    }
+
+    /**
+     * remove all the items, to select from a new list
+     */
+    public void clear() {
+        size = 0;
+        numOffered = 0;
+        sorted = false;
+    }
+
+    /**
+     * offer an item with its score; items have to be offered before {@link #sort()} is called
+     */
+    public void offer(int id, double score) {
+        assert !sorted;
+        int seq = numOffered++;
+
+        if (capacity > 0 && size == capacity) {
+            // replace the worst item if the new one is better; an item of the same score comes later, so it is worse
+            if (Double.compare(score, scores[0]) <= 0)
+                return;
+            ids[0] = id;
+            scores[0] = score;
+            seqs[0] = seq;
+            siftDown(0, size);
+            return;
+        }
+
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size << 1);
+            scores = Arrays.copyOf(scores, size << 1);
+            seqs = Arrays.copyOf(seqs, size << 1);
+        }
+        ids[size] = id;
+        scores[size] = score;
+        seqs[size] = seq;
+        size++;
+        if (capacity > 0)
+            siftUp(size - 1);
+    }
+
+    /**
+     * Sort the kept items by rank, from the best one, so that they can be read by {@link #id(int)} and
+     * {@link #score(int)}.
+     *
+     * @return number of items kept
+     */
+    public int sort() {
+        if (sorted)
+            return size;
+
+        // heap sort: the worst item moves to the end, one at a time, so that the best one ends up in front
+        if (capacity <= 0)
+            for (int k = size / 2 - 1; k >= 0; k--)
+                siftDown(k, size);
+        for (int n = size; n > 1; n--) {
+            swap(0, n - 1);
+            siftDown(0, n - 1);
+        }
+        sorted = true;
+        return size;
+    }
+
+    /**
+     * @return number of items kept
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return id of the item of rank r (starting from 0) after {@link #sort()}
+     */
+    public int id(int r) {
+        return ids[r];
+    }
+
+    /**
+     * @return score of the item of rank r (starting from 0) after {@link #sort()}
+     */
+    public double score(int r) {
+        return scores[r];
+    }
+
+    /**
+     * @return whether item k of the heap is worse than item l, i.e., of a lower score, or of the same score and
+     *         offered later
+     */
+    private boolean worse(int k, int l) {
+        int cmp = Double.compare(scores[k], scores[l]);
+        return cmp < 0 || (cmp == 0 && seqs[k] > seqs[l]);
+    }
+
+    private void swap(int k, int l) {
+        int id = ids[k];
+        ids[k] = ids[l];
+        ids[l] = id;
+        double score = scores[k];
+        scores[k] = scores[l];
+        scores[l] = score;
+        int seq = seqs[k];
+        seqs[k] = seqs[l];
+        seqs[l] = seq;
+    }
+
+    private void siftUp(int k) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (!worse(k, parent))
+                break;
+            swap(k, parent);
+            k = parent;
+        }
+    }
+
+    private void siftDown(int k, int size) {
+        int half = size >>> 1;
+        while (k < half) {
+            int child = 2 * k + 1, right = child + 1;
+            if (right < size && worse(right, child))
+                child = right;
+            if (!worse(child, k))
+                break;
+            swap(k, child);
+            k = child;
+        }
+    }
+}
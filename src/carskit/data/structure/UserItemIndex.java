@@ -0,0 +1,126 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.data.structure;
+
+import java.util.Arrays;
+
+/**
+ * An index of {(user, item), user-item id} based on an open-addressing hash table of primitive keys, so that a
+ * user-item id can be looked up without creating a "u,i" string.
+ *
+ */
+public class UserItemIndex {
+
+    private static final long EMPTY = -1L;
+
+    // (user << 32 | item) keys and ids, probed linearly
+    private long[] keys;
+    private int[] ids;
+    private int size;
+
+    public UserItemIndex() {
+        this(16);
+    }
+
+    /**
+     * @param capacity
+     *            expected number of user-item pairs
+     */
+    public UserItemIndex(int capacity) {
+        int n = 16;
+        while (n < capacity * 2)
+            n <<= 1;
+        keys = new long[n];
+        ids = new int[n];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @return the user-item id of (u, i), or -1 if there is no such pair
+     */
+    public int get(int u, int i) {
+        long key = key(u, i);
+        int mask = keys.length - 1;
+        for (int pos = hash(key) & mask; ; pos = (pos + 1) & mask) {
+            long k = keys[pos];
+            if (k == key)
+                return ids[pos];
+            if (k == EMPTY)
+                return -1;
+        }
+    }
+
+    /**
+     * add or replace the user-item id of (u, i)
+     */
+    public void put(int u, int i, int id) {
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length << 1);
+
+        long key = key(u, i);
+        int mask = keys.length - 1;
+        int pos = hash(key) & mask;
+        while (keys[pos] != EMPTY && keys[pos] != key)
+            pos = (pos + 1) & mask;
+        if (keys[pos] == EMPTY)
+            size++;
+        keys[pos] = key;
+        ids[pos] = id;
+    }
+
+    /**
+     * @return number of user-item pairs
+     */
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldIds = ids;
+        keys = new long[capacity];
+        ids = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+
+        int mask = capacity - 1;
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldKeys[k] == EMPTY)
+                continue;
+            int pos = hash(oldKeys[k]) & mask;
+            while (keys[pos] != EMPTY)
+                pos = (pos + 1) & mask;
+            keys[pos] = oldKeys[k];
+            ids[pos] = oldIds[k];
+        }
+    }
+
+    private static long key(int u, int i) {
+        return ((long) u << 32) | (i & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        // finalizer of murmur3 to spread the bits of both ids
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -1,11 +1,19 @@
 package carskit.eval;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import happy.coding.math.Maths;
+
 public class Measures extends happy.coding.math.Measures {
+
+    // positions of the measures in the results of rankingAt()
+    public static final int PREC = 0, RECALL = 1, AUC = 2, AP = 3, RR = 4, NDCG = 5;
+    public static final int NUM_RANKING_MEASURES = 6;
+
     public Measures(){
         super();
     }
@@ -65,4 +73,73 @@ public class Measures extends happy.coding.math.Measures {
 
         return rr_at_n;
     }
+
+    /**
+     * Compute all the ranking measures (PREC, RECALL, AUC, AP, RR and NDCG) of a ranked list at several cutoffs, in a
+     * single pass over the list. The values are the same as those of PrecAt, RecallAt, AUCAt, APAt, RRAt and nDCGAt,
+     * without any boxing or sub-lists.
+     *
+     * @param rankedItems
+     *            ranked items, from position 0 to numRanked - 1
+     * @param numRanked
+     *            number of ranked items
+     * @param correctItems
+     *            bitset of the correct items, i.e., the ground truth
+     * @param numCorrect
+     *            number of correct items
+     * @param numDropped
+     *            number of candidate items which are not ranked, used by AUC
+     * @param cutoffs
+     *            cutoffs of the measures, in any order
+     * @param out
+     *            results: measure m at cutoffs[k] is put at out[from + m * cutoffs.length + k]
+     * @param from
+     *            position of the first result in out
+     */
+    public static void rankingAt(int[] rankedItems, int numRanked, BitSet correctItems, int numCorrect,
+            int numDropped, int[] cutoffs, double[] out, int from) {
+
+        int maxTop = 0;
+        for (int n : cutoffs)
+            maxTop = Math.max(maxTop, Math.min(n, numRanked));
+
+        double idcg = IDCG(numCorrect);
+
+        // measures of the items before position i: hits, sum of precisions at hits, dcg, reciprocal rank, and
+        // correctly ordered (hit, non-hit) pairs
+        int hits = 0, pairs = 0;
+        double sumPrecs = 0, dcg = 0, rr = 0;
+        for (int i = 0;; i++) {
+            for (int k = 0; k < cutoffs.length; k++) {
+                int n = cutoffs[k];
+                if (Math.max(0, Math.min(n, numRanked)) != i)
+                    continue;
+
+                out[from + PREC * cutoffs.length + k] = hits / (n + 0.0);
+                out[from + RECALL * cutoffs.length + k] = hits / (numCorrect + 0.0);
+                out[from + AP * cutoffs.length + k] = hits > 0 ? sumPrecs / numCorrect : 0;
+                out[from + RR * cutoffs.length + k] = rr;
+                out[from + NDCG * cutoffs.length + k] = dcg / idcg;
+
+                // pairs of a hit and a non-hit, where unranked items come after all the ranked ones
+                int numEvalPairs = (i + numDropped - hits) * hits;
+                if (numEvalPairs < 0)
+                    throw new IllegalArgumentException("num_eval_pairs cannot be less than 0");
+                int numMissed = numCorrect - hits;
+                out[from + AUC * cutoffs.length + k] = numEvalPairs == 0 ? 0.5
+                        : (pairs + hits * (numDropped - numMissed) + 0.0) / numEvalPairs;
+            }
+            if (i >= maxTop)
+                break;
+
+            if (correctItems.get(rankedItems[i])) {
+                hits++;
+                sumPrecs += hits / (i + 1.0);
+                dcg += 1 / Maths.log(i + 2, 2);
+                if (hits == 1)
+                    rr = 1 / (i + 1.0);
+            } else
+                pairs += hits;
+        }
+    }
 }
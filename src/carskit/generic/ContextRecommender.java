@@ -50,13 +50,11 @@ public abstract class ContextRecommender extends IterativeRecommender {
 
     }
 
-    protected List<Integer> getConditions(int ctx)
+    /**
+     * @return inner ids of the conditions of a context; the returned array is shared and should not be modified
+     */
+    protected int[] getConditions(int ctx)
     {
-        String context=rateDao.getContextId(ctx);
-        String[] cts = context.split(",");
-        List<Integer> conds = new ArrayList<>();
-        for(String ct:cts)
-            conds.add(Integer.valueOf(ct));
-        return conds;
+        return rateDao.getConditions(ctx);
     }
 }
@@ -0,0 +1,204 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.generic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execution service which shares a budget of cpu cores (option -cpu of evaluation.setup) between the evaluation
+ * folds and the parallel computations within an algorithm. Folds run on a fixed thread pool; algorithms run their
+ * parallel work on a shared fork/join pool, which only has the cores that are left over by the fold threads, so that
+ * the two levels of parallelism never use more threads than the budget.
+ *
+ */
+public class ExecutionService {
+
+    // the current service, shared by all recommenders
+    private static ExecutionService service;
+
+    private final int numCPUs;
+    private final int numFoldThreads;
+
+    // thread pool of folds
+    private final ExecutorService foldPool;
+    // fork/join pool for algorithms; null if no core is left over by the folds
+    private final ForkJoinPool taskPool;
+
+    /**
+     * task on an index of a parallel loop
+     */
+    public interface IndexTask {
+        void run(int index) throws Exception;
+    }
+
+    private ExecutionService(int numCPUs, int numFoldThreads) {
+        this.numCPUs = Math.max(1, numCPUs);
+        this.numFoldThreads = Math.max(1, Math.min(numFoldThreads, this.numCPUs));
+
+        final AtomicInteger count = new AtomicInteger();
+        foldPool = Executors.newFixedThreadPool(this.numFoldThreads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fold-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        int parallelism = this.numCPUs - this.numFoldThreads;
+        taskPool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Set up the service for a new evaluation; the previous service (if any) is shut down.
+     *
+     * @param numCPUs
+     *            number of cpu cores to use
+     * @param numFoldThreads
+     *            number of folds to run at the same time, which is capped by the cpu cores
+     * @return the new service
+     */
+    public static synchronized ExecutionService init(int numCPUs, int numFoldThreads) {
+        if (service != null)
+            service.shutdown();
+        service = new ExecutionService(numCPUs, numFoldThreads);
+        return service;
+    }
+
+    /**
+     * @return the current service; a service of all the cpu cores with a single fold thread is created if there is
+     *         none yet
+     */
+    public static synchronized ExecutionService get() {
+        if (service == null)
+            service = new ExecutionService(Runtime.getRuntime().availableProcessors(), 1);
+        return service;
+    }
+
+    /**
+     * @return number of cpu cores of the service
+     */
+    public int getNumCPUs() {
+        return numCPUs;
+    }
+
+    /**
+     * @return number of folds running at the same time
+     */
+    public int getNumFoldThreads() {
+        return numFoldThreads;
+    }
+
+    /**
+     * @return number of threads available to the parallel work of an algorithm, at least 1 (i.e., the calling
+     *         thread)
+     */
+    public int getParallelism() {
+        return taskPool == null ? 1 : taskPool.getParallelism();
+    }
+
+    /**
+     * @return the shared fork/join pool for the parallel work of algorithms, or null if all the cores are taken by
+     *         the folds, in which case the work should be done in the calling thread
+     */
+    public ForkJoinPool getTaskPool() {
+        return taskPool;
+    }
+
+    /**
+     * Run the folds on the fold pool, as many at the same time as the fold threads.
+     *
+     * @return futures of the folds, in order of the given tasks
+     */
+    public <T> List<Future<T>> submitFolds(List<? extends Callable<T>> folds) {
+        List<Future<T>> futures = new ArrayList<>(folds.size());
+        for (Callable<T> fold : folds)
+            futures.add(foldPool.submit(fold));
+        return futures;
+    }
+
+    /**
+     * Run {@code task.run(i)} for all {@code i} in [0, n) on the shared fork/join pool, or in the calling thread if
+     * there is no pool. Indices are taken in blocks of {@code grain} consecutive ones, in increasing order.
+     *
+     * @param n
+     *            number of indices
+     * @param grain
+     *            number of consecutive indices taken by a thread at a time
+     * @param task
+     *            task on an index; it is called concurrently for different indices
+     */
+    public void parallelFor(final int n, int grain, final IndexTask task) throws Exception {
+        final int block = Math.max(1, grain);
+        int numTasks = Math.min(getParallelism(), (n + block - 1) / block);
+
+        if (numTasks <= 1) {
+            for (int i = 0; i < n; i++)
+                task.run(i);
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>(numTasks);
+        for (int t = 0; t < numTasks; t++) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    int start;
+                    while ((start = next.getAndAdd(block)) < n) {
+                        for (int i = start, end = Math.min(n, start + block); i < end; i++)
+                            task.run(i);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        for (Future<Void> f : taskPool.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Shut down the thread pools; running work is completed.
+     */
+    public void shutdown() {
+        foldPool.shutdown();
+        if (taskPool != null)
+            taskPool.shutdown();
+    }
+}
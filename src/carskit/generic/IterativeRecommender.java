@@ -47,6 +47,8 @@ public abstract class IterativeRecommender extends Recommender {
     protected static boolean isBoldDriver;
     // decay of learning rate
     protected static float decay;
+    // whether to store model matrices in single precision
+    protected static boolean isSinglePrecision;
 
     // indicator of static field initialization
     public static boolean resetStatics = true;
@@ -100,6 +102,7 @@ public abstract class IterativeRecommender extends Recommender {
 
             numFactors = cf.getInt("num.factors", 10);
             numIters = cf.getInt("num.max.iter", 100);
+            isSinglePrecision = "float".equalsIgnoreCase(cf.getString("factor.precision", "double"));
         }
 
         // method-specific settings
@@ -124,7 +127,7 @@ public abstract class IterativeRecommender extends Recommender {
 
     @Override
     protected double predict(int u, int j) throws Exception {
-        return DenseMatrix.rowMult(P, u, Q, j);
+        return carskit.data.structure.DenseMatrix.rowMult(P, u, Q, j);
     }
 
     /**
@@ -232,8 +235,8 @@ public abstract class IterativeRecommender extends Recommender {
     protected void initModel() throws Exception {
 
         super.initModel();
-        P = new DenseMatrix(numUsers, numFactors);
-        Q = new DenseMatrix(numItems, numFactors);
+        P = createDenseMatrix(numUsers, numFactors);
+        Q = createDenseMatrix(numItems, numFactors);
 
         // initialize model
         if (initByNorm) {
@@ -246,6 +249,14 @@ public abstract class IterativeRecommender extends Recommender {
 
     }
 
+    /**
+     * @return a matrix of zeros for model parameters, stored in one flat array in the precision given by option
+     *         "factor.precision" (float or double)
+     */
+    protected carskit.data.structure.DenseMatrix createDenseMatrix(int numRows, int numColumns) {
+        return new carskit.data.structure.DenseMatrix(numRows, numColumns, isSinglePrecision);
+    }
+
     protected void saveModel() throws Exception {
         // make a folder
         String dirPath = FileIO.makeDirectory(workingPath, algoName);
@@ -0,0 +1,157 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.generic;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Locality-sensitive hashing of users (or items) by MinHash over the sets of indices they have rated, for
+ * approximate nearest neighbors (option similarity.knn=minhash). The signature of a vector is split into bands of
+ * rows; two vectors are candidate neighbors if all the rows of any band agree, i.e., with a probability which grows
+ * with the Jaccard index of their rated sets. Since every similarity measure is computed over the co-rated entries,
+ * vectors without co-ratings are never candidates; the candidates are re-ranked by the exact similarity.
+ *
+ */
+public class MinHashIndex {
+
+    // a Mersenne prime for the universal hash functions
+    private static final long PRIME = (1L << 31) - 1;
+
+    private final int numBands;
+    // band keys of each vector: keys[band][vector]
+    private final long[][] keys;
+    // bucket lists of each band: heads[band][slot] is the first vector, nexts[band][vector] the next one
+    private final int[][] heads;
+    private final int[][] nexts;
+    private final int mask;
+
+    /**
+     * @param idx
+     *            sorted indices of each vector
+     * @param numBands
+     *            number of bands of a signature
+     * @param numRows
+     *            number of hash values per band
+     * @param seed
+     *            seed of the hash functions
+     */
+    public MinHashIndex(int[][] idx, int numBands, int numRows, long seed) {
+        this.numBands = numBands;
+
+        int count = idx.length, numHashes = numBands * numRows;
+        Random random = new Random(seed);
+        long[] as = new long[numHashes], bs = new long[numHashes];
+        for (int h = 0; h < numHashes; h++) {
+            as[h] = 1 + random.nextInt((int) PRIME - 1);
+            bs[h] = random.nextInt((int) PRIME);
+        }
+
+        int numSlots = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        mask = numSlots - 1;
+        keys = new long[numBands][count];
+        heads = new int[numBands][numSlots];
+        nexts = new int[numBands][count];
+        for (int b = 0; b < numBands; b++)
+            Arrays.fill(heads[b], -1);
+
+        long[] mins = new long[numHashes];
+        for (int i = count - 1; i >= 0; i--) {
+            if (idx[i].length == 0)
+                continue;
+
+            // signature: minimum of each hash function over the rated indices
+            Arrays.fill(mins, Long.MAX_VALUE);
+            for (int k : idx[i])
+                for (int h = 0; h < numHashes; h++)
+                    mins[h] = Math.min(mins[h], (as[h] * k + bs[h]) % PRIME);
+
+            for (int b = 0; b < numBands; b++) {
+                long key = b;
+                for (int r = b * numRows, end = r + numRows; r < end; r++)
+                    key = key * 0x9E3779B97F4A7C15L + mins[r];
+                keys[b][i] = key;
+
+                // vectors are pushed in descending order, so that each list is in ascending order
+                int slot = slot(key);
+                nexts[b][i] = heads[b][slot];
+                heads[b][slot] = i;
+            }
+        }
+    }
+
+    private int slot(long key) {
+        key ^= key >>> 31;
+        key *= 0xBF58476D1CE4E5B9L;
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    /**
+     * @return a collector of candidates for one thread, which can be reused for any number of vectors
+     */
+    public Candidates candidates() {
+        return new Candidates(keys[0].length);
+    }
+
+    /**
+     * collector of the candidate neighbors of a vector
+     */
+    public class Candidates {
+        // vector (plus 1) for which each vector has been collected last
+        private final int[] marks;
+        // candidates found by the last call of collect
+        private final int[] found;
+        private int size;
+
+        Candidates(int count) {
+            marks = new int[count];
+            found = new int[count];
+        }
+
+        /**
+         * collect the candidates j &gt; i which share a band with vector i, in ascending order
+         *
+         * @param i
+         *            a vector with ratings, which hence is in the bucket lists
+         * @return number of candidates
+         */
+        public int collect(int i) {
+            size = 0;
+            for (int b = 0; b < numBands; b++) {
+                long key = keys[b][i];
+                // i is in the list of its own slot, which is in ascending order: the vectors j > i follow it
+                for (int j = nexts[b][i]; j >= 0; j = nexts[b][j]) {
+                    if (keys[b][j] == key && marks[j] != i + 1) {
+                        marks[j] = i + 1;
+                        found[size++] = j;
+                    }
+                }
+            }
+            Arrays.sort(found, 0, size);
+            return size;
+        }
+
+        /**
+         * @return the k-th candidate found by the last call of {@link #collect}
+         */
+        public int get(int k) {
+            return found[k];
+        }
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.generic;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writer of the lines of predictions to a file on a dedicated thread. Chunks of lines are handed over by a bounded
+ * queue, so that the threads which make the predictions only wait for the disk if the writer falls behind by more than
+ * the capacity of the queue. The file is written by a single buffered writer, which is opened only once; it is
+ * replaced if it exists.
+ *
+ */
+public class PredictionWriter {
+
+    // marker of the end of the chunks
+    private static final String END = new String();
+
+    private final BlockingQueue<CharSequence> chunks;
+    private final BufferedWriter out;
+    private final Thread thread;
+
+    // failure of the writer thread, if any
+    private volatile IOException error;
+
+    /**
+     * @param toFile
+     *            the output file
+     * @param capacity
+     *            maximum number of chunks waiting to be written
+     */
+    public PredictionWriter(String toFile, int capacity) throws IOException {
+        Path path = Paths.get(toFile);
+        out = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        chunks = new ArrayBlockingQueue<>(capacity);
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    CharSequence chunk;
+                    while ((chunk = chunks.take()) != END) {
+                        // after a failure, the chunks are only taken, so that no one waits for the queue
+                        if (error == null) {
+                            try {
+                                out.append(chunk);
+                            } catch (IOException e) {
+                                error = e;
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "writer-" + path.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Write a chunk of lines, each of which ends with a new line; it waits if the queue is full.
+     */
+    public void write(CharSequence chunk) throws Exception {
+        if (error != null)
+            throw error;
+        chunks.put(chunk);
+    }
+
+    /**
+     * Write out all the chunks in the queue, and close the file.
+     */
+    public void close() throws Exception {
+        chunks.put(END);
+        thread.join();
+        out.close();
+
+        if (error != null)
+            throw error;
+    }
+}
@@ -21,6 +21,7 @@ package carskit.generic;
 
 import com.google.common.collect.*;
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 import happy.coding.io.FileConfiger;
 import happy.coding.io.FileIO;
 import happy.coding.io.LineConfiger;
@@ -28,7 +29,6 @@ import happy.coding.io.Lists;
 import happy.coding.io.Logs;
 //import happy.coding.math.Measures;
 import happy.coding.math.Randoms;
-import happy.coding.math.Sims;
 import happy.coding.math.Stats;
 import happy.coding.system.Dates;
 import happy.coding.system.Debug;
@@ -38,7 +38,10 @@ import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.concurrent.TimeUnit;
 
 import carskit.data.processor.DataDAO;
+import carskit.data.structure.AliasTable;
+import carskit.data.structure.NeighborIndex;
 import carskit.data.structure.SparseMatrix;
+import carskit.data.structure.TopKSelector;
 import carskit.data.setting.*;
 import carskit.eval.Measures;
 import librec.data.SparseVector;
@@ -99,6 +102,13 @@ public abstract class Recommender implements Runnable{
 
     // number of recommended items
     protected static int numIgnore, numRecs;
+    // cutoffs of the ranking measures: 5, 10 and N (i.e., numRecs), followed by the extra ones of option -cutoffs
+    protected static int[] rankingCutoffs;
+    // number of negative items sampled per user-context pair to rank with the positive ones; all the items if not positive
+    protected static int numSamples;
+    // whether the negative items are sampled by their popularity, rather than uniformly; seed of the samples
+    protected static boolean isPopularitySampled;
+    protected static long sampleSeed;
 
     // a list of rating scales
     protected static List<Double> ratingScale;
@@ -118,6 +128,20 @@ public abstract class Recommender implements Runnable{
     protected static String similarityMeasure;
     // number of shrinkage
     protected static int similarityShrinkage;
+    // similarity measure, resolved from its name
+    protected static Similarity similarity;
+    // whether to compute the similarities of co-rated pairs only
+    protected static boolean isCoratedPairs;
+    // options of approximate nearest neighbors; null for the exact ones
+    protected static LineConfiger approxKnnOptions;
+    // whether to keep computed similarities in the working folder for later reuse
+    protected static boolean isSimilarityCached;
+    // number of pairs per block of the parallel similarity computation
+    private static final int CORR_BLOCK_PAIRS = 1 << 16;
+    // maximum number of users per block of the parallel ranking evaluation
+    private static final int RANK_BLOCK_USERS = 64;
+    // maximum number of test ratings per block of the parallel rating evaluation, and of blocks waiting to be written
+    private static final int RATE_BLOCK_TESTS = 1024, RATE_WRITER_CHUNKS = 16;
 
     /**
      * An indicator of initialization of static fields. This enables us to control when static fields are initialized,
@@ -158,6 +182,8 @@ public abstract class Recommender implements Runnable{
 
     // performance measures
     public Map<Measure, Double> measures;
+    // ranking measures at the extra cutoffs of option -cutoffs, e.g., Pre20, in the order in which they are printed
+    public Map<String, Double> cutoffMeasures;
     // global average of training rates
     protected double globalMean;
 
@@ -214,7 +240,11 @@ public abstract class Recommender implements Runnable{
             numRecs= rankOptions.getInt("-topN", -1);
             if(numRecs<0)
                 numRecs=10;
+            rankingCutoffs = getRankingCutoffs(rankOptions.getOptions("-cutoffs"));
             numIgnore = rankOptions.getInt("-ignore", -1);
+            numSamples = rankOptions.getInt("-sample", -1);
+            isPopularitySampled = rankOptions.getString("-sampler", "uniform").equalsIgnoreCase("popularity");
+            sampleSeed = rankOptions.getLong("-seed", 1L);
 
             LineConfiger evalOptions = cf.getParamOptions("evaluation.setup");
             view = evalOptions.getString("--test-view", "all");
@@ -244,6 +274,15 @@ public abstract class Recommender implements Runnable{
             knn = cf.getInt("num.neighbors", 20);
             similarityMeasure = cf.getString("similarity", "PCC");
             similarityShrinkage = cf.getInt("num.shrinkage", 30);
+            similarity = Similarity.of(similarityMeasure, (minRate + maxRate) / 2.0, similarityShrinkage);
+            isCoratedPairs = cf.getString("similarity.pairs", "all").equalsIgnoreCase("corated");
+            LineConfiger knnOptions = cf.contains("similarity.knn") ? cf.getParamOptions("similarity.knn") : null;
+            String knnMethod = knnOptions == null || knnOptions.getMainParam() == null ? "exact"
+                    : knnOptions.getMainParam();
+            if (!knnMethod.equalsIgnoreCase("exact") && !knnMethod.equalsIgnoreCase("minhash"))
+                throw new IllegalArgumentException("similarity.knn has to be exact or minhash: " + knnMethod);
+            approxKnnOptions = knnMethod.equalsIgnoreCase("minhash") ? knnOptions : null;
+            isSimilarityCached = cf.isOn("similarity.cache", false);
         }
 
 
@@ -274,6 +313,14 @@ public abstract class Recommender implements Runnable{
             corrs = new SymmMatrix(numItems);
     }
 
+    /**
+     * @return the execution service shared by all recommenders; its fork/join pool runs the parallel work within an
+     *         algorithm on the cpu cores which are not taken by the evaluation folds
+     */
+    protected static ExecutionService getExecutionService() {
+        return ExecutionService.get();
+    }
+
     protected LineConfiger getModelParams(String algoName) {
         return cf.contains(algoName) ? cf.getParamOptions(algoName) : null;
     }
@@ -343,8 +390,9 @@ public abstract class Recommender implements Runnable{
         // evaluation
         if (verbose)
             Logs.debug("{}{} evaluate test data ... ", algoName, foldInfo);
+        cutoffMeasures = null;
         measures = isRankingPred ? evalRankings() : evalRatings();
-        String measurements = getEvalInfo(measures);
+        String measurements = getEvalInfo(measures, cutoffMeasures);
         sw.stop();
         long testTime = sw.elapsed(TimeUnit.MILLISECONDS) - trainTime;
 
@@ -368,7 +416,7 @@ public abstract class Recommender implements Runnable{
 
 
     protected double correlation(SparseVector iv, SparseVector jv) {
-        return correlation(iv, jv, similarityMeasure);
+        return similarity.compute(iv, jv);
     }
 
     /**
@@ -383,58 +431,25 @@ public abstract class Recommender implements Runnable{
      * @return the correlation between vectors i and j; return NaN if the correlation is not computable.
      */
     protected double correlation(SparseVector iv, SparseVector jv, String method) {
-
-        // compute similarity
-        List<Double> is = new ArrayList<>();
-        List<Double> js = new ArrayList<>();
-
-        for (Integer idx : jv.getIndex()) {
-            if (iv.contains(idx)) {
-                is.add(iv.get(idx));
-                js.add(jv.get(idx));
-            }
-        }
-
-        double sim = 0;
-        switch (method.toLowerCase()) {
-            case "cos":
-                // for ratings along the overlappings
-                sim = Sims.cos(is, js);
-                break;
-            case "cos-binary":
-                // for ratings along all the vectors (including one-sided 0s)
-                sim = iv.inner(jv) / (Math.sqrt(iv.inner(iv)) * Math.sqrt(jv.inner(jv)));
-                break;
-            case "msd":
-                sim = Sims.msd(is, js);
-                break;
-            case "cpc":
-                sim = Sims.cpc(is, js, (minRate + maxRate) / 2.0);
-                break;
-            case "exjaccard":
-                sim = Sims.exJaccard(is, js);
-                break;
-            case "pcc":
-            default:
-                sim = Sims.pcc(is, js);
-                break;
-        }
-
-        // shrink to account for vector size
-        if (!Double.isNaN(sim)) {
-            int n = is.size();
-            int shrinkage = cf.getInt("num.shrinkage");
-            if (shrinkage > 0)
-                sim *= n / (n + shrinkage + 0.0);
-        }
-
-        return sim;
+        if (method.equals(similarityMeasure))
+            return similarity.compute(iv, jv);
+        return Similarity.of(method, (minRate + maxRate) / 2.0, similarityShrinkage).compute(iv, jv);
     }
 
     /**
      * @return the evaluation information of a recommend
      */
     public static String getEvalInfo(Map<Measure, Double> measures) {
+        return getEvalInfo(measures, null);
+    }
+
+    /**
+     * @param cutoffMeasures
+     *            ranking measures at the extra cutoffs of option -cutoffs, which are appended by their names; may be
+     *            null
+     * @return the evaluation information of a recommend
+     */
+    public static String getEvalInfo(Map<Measure, Double> measures, Map<String, Double> cutoffMeasures) {
         String evalInfo = null;
         if (isRankingPred) {
             if(numRecs!=10){
@@ -484,6 +499,11 @@ public abstract class Recommender implements Runnable{
                             measures.get(Measure.MRR5), measures.get(Measure.MRR10));
             }
 
+            if (cutoffMeasures != null) {
+                for (Map.Entry<String, Double> en : cutoffMeasures.entrySet())
+                    evalInfo += String.format(", %s: %.6f", en.getKey(), en.getValue());
+            }
+
         } else {
             evalInfo = String.format("MAE: %.6f, RMSE: %.6f, NAME: %.6f, rMAE: %.6f, rRMSE: %.6f, MPE: %.6f", measures.get(Measure.MAE),
                     measures.get(Measure.RMSE), measures.get(Measure.NMAE), measures.get(Measure.rMAE),
@@ -503,74 +523,144 @@ public abstract class Recommender implements Runnable{
      */
     protected Map<Measure, Double> evalRatings() throws Exception {
 
-        List<String> preds = null;
-        String toFile = null;
-        if (isResultsOut) {
-            preds = new ArrayList<String>(1500);
-            preds.add("userId\titemId\tcontexts\trating\tprediction"); // optional: file header
-            toFile = workingPath + algoName + "-rating-predictions" + foldInfo + ".txt"; // the output-file name
-            FileIO.deleteFile(toFile); // delete possibly old files
+        // test ratings, in order of the test matrix
+        final int numTests = testMatrix.getData().length;
+        final int[] uis = new int[numTests], ctxs = new int[numTests];
+        final double[] rates = new double[numTests];
+        int n = 0;
+        for (MatrixEntry me : testMatrix) {
+            uis[n] = me.row();
+            ctxs[n] = me.column();
+            rates[n++] = me.get();
         }
 
-        double sum_maes = 0, sum_mses = 0, sum_r_maes = 0, sum_r_rmses = 0, sum_perps = 0;
-        int numCount = 0, numPEs = 0;
-
-        for (MatrixEntry me : testMatrix) {
-            double rate = me.get();
+        return evalRatings("userId\titemId\tcontexts\trating\tprediction", numTests, false, new RatingTest() {
 
-            int ui = me.row();
-            int ctx = me.column();
-            int u=rateDao.getUserIdFromUI(ui);
-            int j=rateDao.getItemIdFromUI(ui);
+            @Override
+            public void evaluate(int k, RatingBlock block) throws Exception {
+                double rate = rates[k];
 
-            if(isUserSplitting)
-                u = userIdMapper.contains(u,ctx) ? userIdMapper.get(u,ctx) : u;
-            if(isItemSplitting)
-                j = itemIdMapper.contains(j,ctx) ? itemIdMapper.get(j,ctx) : j;
+                int ui = uis[k];
+                int ctx = ctxs[k];
+                int u=rateDao.getUserIdFromUI(ui);
+                int j=rateDao.getItemIdFromUI(ui);
 
-            double pred = predict(u,j, ctx, true);
-            if (Double.isNaN(pred))
-                continue;
+                if(isUserSplitting)
+                    u = userIdMapper.contains(u,ctx) ? userIdMapper.get(u,ctx) : u;
+                if(isItemSplitting)
+                    j = itemIdMapper.contains(j,ctx) ? itemIdMapper.get(j,ctx) : j;
 
-            // perplexity: for some graphic model
-            double perp = perplexity(u, j, pred);
-            sum_perps += perp;
+                double pred = predict(u,j, ctx, true);
+                if (Double.isNaN(pred))
+                    return;
 
-            // rounding prediction to the closest rating level
-            double rPred = Math.round(pred / minRate) * minRate;
+                // perplexity: for some graphic model
+                block.add(rate, pred, perplexity(u, j, pred));
 
-            double err = Math.abs(rate - pred); // absolute predictive error
-            double r_err = Math.abs(rate - rPred);
+                // output predictions
+                if (block.lines != null) {
+                    // restore back to the original user/item id
+                    block.lines.append(rateDao.getUserId(u)).append('\t').append(rateDao.getItemId(j)).append('\t')
+                            .append(rateDao.getContextSituationFromInnerId(ctx)).append('\t').append(rate).append('\t')
+                            .append((float) pred).append('\n');
+                }
+            }
+        });
+    }
 
-            sum_maes += err;
-            sum_mses += err * err;
+    /**
+     * test rating which is predicted by {@link Recommender#evalRatings(String, int, boolean, RatingTest)}
+     */
+    protected interface RatingTest {
 
-            sum_r_maes += r_err;
-            sum_r_rmses += r_err * r_err;
+        /**
+         * Predict test rating k, and add it (and its output line) to a block of predictions, unless it cannot be
+         * predicted. It is called concurrently for different test ratings.
+         */
+        void evaluate(int k, RatingBlock block) throws Exception;
+    }
 
-            numCount++;
+    /**
+     * Evaluate the rating predictions of test ratings 0, ..., numTests - 1. Blocks of consecutive test ratings are
+     * predicted on the fork/join pool of the execution service, unless the model is not {@link #isThreadSafe()}. The
+     * errors of the blocks are summed up one by one in order of the test ratings, so that the results are exactly those
+     * of a sequential evaluation, and their output lines are passed in the same order to a {@link PredictionWriter}.
+     *
+     * @param header
+     *            header line of the output file
+     * @param numTests
+     *            number of test ratings
+     * @param isPECounted
+     *            whether to count the prediction errors of rounded predictions, i.e., the zero-one loss
+     * @param test
+     *            prediction of a test rating
+     * @return the evaluation results of rating predictions
+     */
+    protected Map<Measure, Double> evalRatings(String header, final int numTests, boolean isPECounted,
+            final RatingTest test) throws Exception {
 
-            // output predictions
-            if (isResultsOut) {
-                // restore back to the original user/item id
-                preds.add(rateDao.getUserId(u) + "\t" + rateDao.getItemId(j) + "\t" + rateDao.getContextSituationFromInnerId(ctx) + "\t" + rate + "\t" + (float) pred);
-                if (preds.size() >= 1000) {
-                    FileIO.writeList(toFile, preds, true);
-                    preds.clear();
+        String toFile = null;
+        final PredictionWriter writer;
+        if (isResultsOut) {
+            toFile = workingPath + algoName + "-rating-predictions" + foldInfo + ".txt"; // the output-file name
+            writer = new PredictionWriter(toFile, RATE_WRITER_CHUNKS); // replace possibly old files
+            writer.write(header + "\n"); // optional: file header
+        } else
+            writer = null;
+
+        final RatingErrors errors = new RatingErrors(isPECounted);
+
+        // blocks of consecutive test ratings: a few blocks per thread to balance the load
+        ExecutionService service = getExecutionService();
+        int parallelism = isThreadSafe() ? service.getParallelism() : 1;
+        final int blockTests = Math.max(1, Math.min(RATE_BLOCK_TESTS, numTests / (4 * parallelism)));
+        final int numBlocks = (numTests + blockTests - 1) / blockTests;
+
+        final RatingBlock[] done = new RatingBlock[numBlocks];
+        final int[] merged = { 0 };
+
+        ExecutionService.IndexTask task = new ExecutionService.IndexTask() {
+
+            @Override
+            public void run(int b) throws Exception {
+                RatingBlock block = new RatingBlock(writer != null);
+                for (int k = b * blockTests, end = Math.min(numTests, k + blockTests); k < end; k++)
+                    test.evaluate(k, block);
+
+                // the errors are summed up, and the predictions written, block by block in order of the test ratings
+                synchronized (done) {
+                    done[b] = block;
+                    while (merged[0] < numBlocks && done[merged[0]] != null) {
+                        RatingBlock next = done[merged[0]];
+                        next.drainTo(errors);
+                        if (writer != null && next.lines.length() > 0)
+                            writer.write(next.lines);
+                        done[merged[0]++] = null;
+                    }
                 }
             }
+        };
+
+        try {
+            if (parallelism > 1)
+                service.parallelFor(numBlocks, 1, task);
+            else
+                for (int b = 0; b < numBlocks; b++)
+                    task.run(b);
+        } finally {
+            if (writer != null)
+                writer.close();
         }
 
-        if (isResultsOut && preds.size() > 0) {
-            FileIO.writeList(toFile, preds, true);
+        if (writer != null)
             Logs.debug("{}{} has writeen rating predictions to {}", algoName, foldInfo, toFile);
-        }
 
-        double mae = sum_maes / numCount;
-        double rmse = Math.sqrt(sum_mses / numCount);
+        int numCount = errors.numCount;
+        double mae = errors.sum_maes / numCount;
+        double rmse = Math.sqrt(errors.sum_mses / numCount);
 
-        double r_mae = sum_r_maes / numCount;
-        double r_rmse = Math.sqrt(sum_r_rmses / numCount);
+        double r_mae = errors.sum_r_maes / numCount;
+        double r_rmse = Math.sqrt(errors.sum_r_rmses / numCount);
 
         Map<Measure, Double> measures = new HashMap<>();
         measures.put(Measure.MAE, mae);
@@ -583,11 +673,11 @@ public abstract class Recommender implements Runnable{
         measures.put(Measure.rRMSE, r_rmse);
 
         // measure zero-one loss
-        measures.put(Measure.MPE, (numPEs + 0.0) / numCount);
+        measures.put(Measure.MPE, (errors.numPEs + 0.0) / numCount);
 
         // perplexity
-        if (sum_perps > 0) {
-            measures.put(Measure.Perplexity, Math.exp(sum_perps / numCount));
+        if (errors.sum_perps > 0) {
+            measures.put(Measure.Perplexity, Math.exp(errors.sum_perps / numCount));
         }
 
         return measures;
@@ -620,9 +710,7 @@ public abstract class Recommender implements Runnable{
 
     protected librec.data.SparseMatrix createTraditionalSparseMatrixBySplitting()
     {
-        Table<Integer, Integer, Double> newtable = HashBasedTable.create();
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
-        HashMultimap<String, Double> records=HashMultimap.create();
+        SparseMatrix.Builder records = new SparseMatrix.Builder(trainMatrix.size());
         int maxUser=-1, maxItem=-1;
 
         for(MatrixEntry me:this.trainMatrix){
@@ -635,25 +723,19 @@ public abstract class Recommender implements Runnable{
                 u = userIdMapper.contains(u,ctx) ? userIdMapper.get(u,ctx) : u;
             if(isItemSplitting)
                 j = itemIdMapper.contains(j,ctx) ? itemIdMapper.get(j,ctx) : j;
-            records.put(u + "," + j, me.get());
+            records.add(u, j, me.get());
             if(u>maxUser) maxUser=u;
             if(j>maxItem) maxItem=j;
         }
 
-        for(String key:records.keySet()){
-            String[] ids=key.split(",");
-            int u=Integer.valueOf(ids[0]);
-            int j=Integer.valueOf(ids[1]);
-            newtable.put(u, j, Stats.mean(records.get(key)));
-            colMap.put(j, u);
-        }
         maxUser++;
         maxItem++;
         this.numUsers= (numUsers<maxUser)? maxUser: numUsers;
         this.numItems= (numItems<maxItem)? maxItem: numItems;
 
         //Logs.debug("Fold["+fold+"]: numUsers = "+numUsers + ", numItems = "+numItems);
-        librec.data.SparseMatrix sm=new librec.data.SparseMatrix(numUsers, numItems, newtable, colMap);
+        // average the ratings of each (split) user-item pair
+        librec.data.SparseMatrix sm=records.build(numUsers, numItems, SparseMatrix.Policy.MEAN);
         Logs.info("Density of transformed 2D rating matrix ============================== "+(sm.getData().length+0.0)/(sm.numRows()*sm.numColumns()));
         return sm;
     }
@@ -665,53 +747,45 @@ public abstract class Recommender implements Runnable{
     }
 
     /**
+     * The test users are evaluated in blocks of consecutive users on the fork/join pool of the execution service,
+     * unless the model is not {@link #isThreadSafe()}. Each block keeps the measures of its users in a primitive array;
+     * the blocks are summed up one by one in order of the users, so that the results are exactly those of a sequential
+     * evaluation.
+     * <p>
+     * With option {@code -sample n} of item.ranking, the positive items of a user in a context are ranked only against
+     * n negative items, drawn without replacement from the candidate items by an {@link AliasTable}, either uniformly or
+     * by popularity ({@code -sampler popularity}); the sample is seeded by {@code -seed} and the user-context pair, so
+     * that it is the same for all the models and runs. Repeated draws are rejected only while the items which can still
+     * be drawn hold at least half of the weight, i.e., at most two draws per item are expected; the rest of the sample
+     * is then taken in one pass over the items, by the largest keys {@code log(r) / weight} (r uniform in (0, 1)),
+     * which draw without replacement by the weights as well.
+     *
      * @return the evaluation results of ranking predictions
      */
 
 
     protected Map<Measure, Double> evalRankings() throws Exception {
 
-        HashMap<Integer, HashMultimap<Integer, Integer>> uciList=rateDao.getUserCtxList(testMatrix, binThold); // retrieve positive user-items (rate>threshold) list from test set
-        HashMap<Integer, HashMultimap<Integer, Integer>> uciList_train=rateDao.getUserCtxList(trainMatrix);
-        int capacity = uciList.keySet().size();
-
-        // initialization capacity to speed up
-        List<Double> ds5 = new ArrayList<>(isDiverseUsed ? capacity : 0);
-        List<Double> ds10 = new ArrayList<>(isDiverseUsed ? capacity : 0);
-        List<Double> dsN = new ArrayList<>(isDiverseUsed ? capacity : 0);
-
-        List<Double> precs5 = new ArrayList<>(capacity);
-        List<Double> precs10 = new ArrayList<>(capacity);
-        List<Double> precsN = new ArrayList<>(capacity);
-        List<Double> recalls5 = new ArrayList<>(capacity);
-        List<Double> recalls10 = new ArrayList<>(capacity);
-        List<Double> recallsN = new ArrayList<>(capacity);
-        List<Double> aps5 = new ArrayList<>(capacity);
-        List<Double> aps10 = new ArrayList<>(capacity);
-        List<Double> apsN = new ArrayList<>(capacity);
-        List<Double> rrs5 = new ArrayList<>(capacity);
-        List<Double> rrs10 = new ArrayList<>(capacity);
-        List<Double> rrsN = new ArrayList<>(capacity);
-        List<Double> aucs5 = new ArrayList<>(capacity);
-        List<Double> aucs10 = new ArrayList<>(capacity);
-        List<Double> aucsN = new ArrayList<>(capacity);
-        List<Double> ndcgs5 = new ArrayList<>(capacity);
-        List<Double> ndcgs10 = new ArrayList<>(capacity);
-        List<Double> ndcgsN = new ArrayList<>(capacity);
+        final HashMap<Integer, HashMultimap<Integer, Integer>> uciList=rateDao.getUserCtxList(testMatrix, binThold); // retrieve positive user-items (rate>threshold) list from test set
+        final HashMap<Integer, HashMultimap<Integer, Integer>> uciList_train=rateDao.getUserCtxList(trainMatrix);
+        final int capacity = uciList.keySet().size();
 
         // candidate items for all users: here only training items
         // use HashSet instead of ArrayList to speedup removeAll() and contains() operations: HashSet: O(1); ArrayList: O(log n).
-        Set<Integer> candItems = rateDao.getItemList(trainMatrix);
+        final Set<Integer> candItems = rateDao.getItemList(trainMatrix);
 
-        List<String> preds = null;
-        String toFile = null;
-        int numTopNRanks = numRecs < 0 ? 10 : numRecs;
+        final List<String> preds;
+        final String toFile;
+        final int numTopNRanks = numRecs < 0 ? 10 : numRecs;
         if (isResultsOut) {
             preds = new ArrayList<String>(1500);
             preds.add("# userId: recommendations in (itemId, ranking score) pairs, where a correct recommendation is denoted by symbol *."); // optional: file header
             toFile = workingPath
                     + String.format("%s-top-%d-items%s.txt", algoName, numTopNRanks, foldInfo); // the output-file name
             FileIO.deleteFile(toFile); // delete possibly old files
+        } else {
+            preds = null;
+            toFile = null;
         }
 
         if (verbose)
@@ -734,197 +808,307 @@ public abstract class Recommender implements Runnable{
             }
         }
 
-        // for each test user
-        for (int u:uciList.keySet()) {
-            int uu=u;
-            Multimap<Integer, Integer> cis = uciList.get(u);
-
-            int c_capacity = cis.keySet().size();
-
-            List<Double> c_ds5 = new ArrayList<>(isDiverseUsed ? c_capacity : 0);
-            List<Double> c_ds10 = new ArrayList<>(isDiverseUsed ? c_capacity : 0);
-            List<Double> c_dsN = new ArrayList<>(isDiverseUsed ? c_capacity : 0);
-
-            List<Double> c_precs5 = new ArrayList<>(c_capacity);
-            List<Double> c_precs10 = new ArrayList<>(c_capacity);
-            List<Double> c_precsN = new ArrayList<>(c_capacity);
-            List<Double> c_recalls5 = new ArrayList<>(c_capacity);
-            List<Double> c_recalls10 = new ArrayList<>(c_capacity);
-            List<Double> c_recallsN = new ArrayList<>(c_capacity);
-            List<Double> c_aps5 = new ArrayList<>(c_capacity);
-            List<Double> c_aps10 = new ArrayList<>(c_capacity);
-            List<Double> c_apsN = new ArrayList<>(c_capacity);
-            List<Double> c_rrs5 = new ArrayList<>(c_capacity);
-            List<Double> c_rrs10 = new ArrayList<>(c_capacity);
-            List<Double> c_rrsN = new ArrayList<>(c_capacity);
-            List<Double> c_aucs5 = new ArrayList<>(c_capacity);
-            List<Double> c_aucs10 = new ArrayList<>(c_capacity);
-            List<Double> c_aucsN = new ArrayList<>(c_capacity);
-            List<Double> c_ndcgs5 = new ArrayList<>(c_capacity);
-            List<Double> c_ndcgs10 = new ArrayList<>(c_capacity);
-            List<Double> c_ndcgsN = new ArrayList<>(c_capacity);
-
-            HashMultimap<Integer, Integer> cList_train = (uciList_train.containsKey(u))?uciList_train.get(u):HashMultimap.<Integer, Integer>create();
-
-            // for each ctx
-            for (int c : cis.keySet()) {
-
-                if (verbose && ((u + 1) % 100 == 0))
-                    Logs.debug("{}{} evaluates progress: {} / {}", algoName, foldInfo, u + 1, capacity);
-
-                // number of candidate items for all users
-                int numCands = candItems.size();
-
-                // get positive items from test matrix
-                Collection<Integer> posItems = cis.get(c);
-                List<Integer> correctItems = new ArrayList<>();
-
-                // intersect with the candidate items
-                for (Integer j : posItems) {
-                    if (candItems.contains(j))
-                        correctItems.add(j);
+        // items from which the negative items are sampled, with their weights in an alias table, by item and in total
+        final int[] sampleItems;
+        final AliasTable sampler;
+        final double[] itemWeights;
+        double sumWeights = 0;
+        if (numSamples > 0) {
+            sampleItems = Ints.toArray(candItems);
+            Arrays.sort(sampleItems);
+            double[] weights = new double[sampleItems.length];
+            itemWeights = new double[rateDao.numItems()];
+            for (int i = 0; i < sampleItems.length; i++) {
+                weights[i] = isPopularitySampled ? rateDao.getRatingCountByItem(trainMatrix, sampleItems[i]) : 1;
+                itemWeights[sampleItems[i]] = weights[i];
+                sumWeights += weights[i];
+            }
+            sampler = new AliasTable(weights);
+        } else {
+            sampleItems = null;
+            sampler = null;
+            itemWeights = null;
+        }
+        final double totalWeight = sumWeights;
+
+        // test users, evaluated in blocks of consecutive users: a few blocks per thread to balance the load
+        final int[] users = Ints.toArray(uciList.keySet());
+        ExecutionService service = getExecutionService();
+        int parallelism = isThreadSafe() ? service.getParallelism() : 1;
+        final int blockUsers = Math.max(1, Math.min(RANK_BLOCK_USERS, capacity / (4 * parallelism)));
+        final int numBlocks = (capacity + blockUsers - 1) / blockUsers;
+        final boolean isUC = evalStrategy.equals("uc");
+
+        // sums and counts of the measures (except NaN ones) over all the rows of the blocks
+        final int rowLength = 3 + Measures.NUM_RANKING_MEASURES * rankingCutoffs.length;
+        final double[] sums = new double[rowLength];
+        final int[] counts = new int[rowLength];
+
+        final RankingBlock[] done = new RankingBlock[numBlocks];
+        final int[] merged = { 0 };
+
+        ExecutionService.IndexTask task = new ExecutionService.IndexTask() {
+
+            @Override
+            public void run(int b) throws Exception {
+                RankingBlock block = new RankingBlock(rowLength, isResultsOut);
+
+                // ranking scores of all items for a user in a context
+                double[] scores = new double[rateDao.numItems()];
+                // selector of the top-N items out of the scores
+                TopKSelector topN = new TopKSelector(numRecs);
+                // ranked items, and the correct ones among the candidate items
+                int[] ranked = new int[Math.max(numRecs, 16)];
+                BitSet correctItems = new BitSet(scores.length);
+
+                // measures of a (u, c) pair, and their sums and counts over the contexts of a user
+                double[] row = new double[rowLength];
+                double[] c_sums = new double[rowLength];
+                int[] c_counts = new int[rowLength];
+
+                // sampled candidate items and their scores, and the stamps of the items already drawn
+                int[] cands = null, stamps = null;
+                double[] candScores = null;
+                int stamp = 0;
+                Random rnd = null;
+                // selector of the rest of a sample by the largest keys
+                TopKSelector keys = null;
+                if (sampler != null) {
+                    cands = new int[16];
+                    candScores = new double[16];
+                    stamps = new int[scores.length];
+                    rnd = new Random();
                 }
 
-                if (correctItems.size() == 0)
-                    continue; // no testing data for user u
+                // for each test user
+                for (int k = b * blockUsers, end = Math.min(capacity, k + blockUsers); k < end; k++) {
+                    int u = users[k];
+                    Multimap<Integer, Integer> cis = uciList.get(u);
 
-                // remove rated items from candidate items
-                Set<Integer> ratedItems = (cList_train.containsKey(c))?cList_train.get(c):new HashSet<Integer>();
+                    Arrays.fill(c_sums, 0);
+                    Arrays.fill(c_counts, 0);
 
+                    HashMultimap<Integer, Integer> cList_train = (uciList_train.containsKey(u))?uciList_train.get(u):HashMultimap.<Integer, Integer>create();
 
+                    // for each ctx
+                    for (int c : cis.keySet()) {
 
-                // predict the ranking scores (unordered) of all candidate items
-                List<Map.Entry<Integer, Double>> itemScores = new ArrayList<>(Lists.initSize(candItems));
-                for (Integer j : candItems) {
-                    int jj=j;
-                    if (!ratedItems.contains(j)) {
+                        if (verbose && ((u + 1) % 100 == 0))
+                            Logs.debug("{}{} evaluates progress: {} / {}", algoName, foldInfo, u + 1, capacity);
 
-                        if(isUserSplitting)
-                            u = userIdMapper.contains(u,c) ? userIdMapper.get(u,c) : u;
-                        if(isItemSplitting)
-                            j = itemIdMapper.contains(j,c) ? itemIdMapper.get(j,c) : j;
+                        // number of candidate items for all users
+                        int numCands = candItems.size();
 
-                        final double rank = ranking(u, j, c);
-                        if (!Double.isNaN(rank)) {
-                            // add rating threshold as a filter
-                            if(rank>binThold)
-                                itemScores.add(new SimpleImmutableEntry<Integer, Double>(jj, rank));
-                        }
-                    } else {
-                        numCands--;
-                    }
-                }
-
-                if (itemScores.size() == 0)
-                    continue; // no recommendations available for user u
-
-                // order the ranking scores from highest to lowest: List to preserve orders
-                Lists.sortList(itemScores, true);
-                List<Map.Entry<Integer, Double>> recomd = (numRecs <= 0 || itemScores.size() <= numRecs) ? itemScores
-                        : itemScores.subList(0, numRecs);
+                        // get positive items from test matrix
+                        Collection<Integer> posItems = cis.get(c);
+                        correctItems.clear();
+                        int numCorrect = 0;
 
-                List<Integer> rankedItems = new ArrayList<>();
-                StringBuilder sb = new StringBuilder();
-                int count = 0;
-                for (Map.Entry<Integer, Double> kv : recomd) {
-                    Integer item = kv.getKey();
-                    rankedItems.add(item);
+                        // intersect with the candidate items
+                        for (Integer j : posItems) {
+                            if (candItems.contains(j)) {
+                                correctItems.set(j);
+                                numCorrect++;
+                            }
+                        }
 
-                    if (isResultsOut && count < numTopNRanks) {
-                        // restore back to the original item id
-                        sb.append("(").append(rateDao.getItemId(item));
+                        if (numCorrect == 0)
+                            continue; // no testing data for user u
+
+                        // remove rated items from candidate items
+                        Set<Integer> ratedItems = (cList_train.containsKey(c))?cList_train.get(c):new HashSet<Integer>();
+
+                        topN.clear();
+                        if (sampler == null) {
+                            // predict the ranking scores (unordered) of all candidate items
+                            scoreAll(u, c, scores);
+                            for (Integer j : candItems) {
+                                if (!ratedItems.contains(j)) {
+                                    final double rank = scores[j];
+                                    if (!Double.isNaN(rank)) {
+                                        // add rating threshold as a filter
+                                        if(rank>binThold)
+                                            topN.offer(j, rank);
+                                    }
+                                } else {
+                                    numCands--;
+                                }
+                            }
+                        } else {
+                            // candidates: the positive items which are not rated, and the sampled negative ones
+                            if (++stamp == 0) {
+                                Arrays.fill(stamps, 0);
+                                stamp = 1;
+                            }
+                            numCands = 0;
+                            int numNegatives = candItems.size() - numCorrect;
+                            // weight of the items which cannot be drawn: the correct items, and the rated or drawn ones
+                            double excluded = 0;
+                            for (int j = correctItems.nextSetBit(0); j >= 0; j = correctItems.nextSetBit(j + 1)) {
+                                excluded += itemWeights[j];
+                                if (ratedItems.contains(j))
+                                    continue;
+                                if (cands.length == numCands)
+                                    cands = Arrays.copyOf(cands, 2 * numCands);
+                                cands[numCands++] = j;
+                            }
+                            for (Integer j : ratedItems) {
+                                stamps[j] = stamp;
+                                if (candItems.contains(j) && !correctItems.get(j)) {
+                                    numNegatives--;
+                                    excluded += itemWeights[j];
+                                }
+                            }
+
+                            if (numSamples >= numNegatives) {
+                                // all the negative items are taken
+                                for (int j : sampleItems) {
+                                    if (stamps[j] != stamp && !correctItems.get(j)) {
+                                        if (cands.length == numCands)
+                                            cands = Arrays.copyOf(cands, 2 * numCands);
+                                        cands[numCands++] = j;
+                                    }
+                                }
+                            } else {
+                                // the same sample for a user in a context, whichever the thread or the model
+                                rnd.setSeed((sampleSeed * 31 + u) * 31 + c);
+                                int n = 0;
+                                while (n < numSamples && 2 * excluded <= totalWeight) {
+                                    int j = sampleItems[sampler.sample(rnd)];
+                                    if (stamps[j] == stamp || correctItems.get(j))
+                                        continue;
+                                    stamps[j] = stamp;
+                                    excluded += itemWeights[j];
+                                    if (cands.length == numCands)
+                                        cands = Arrays.copyOf(cands, 2 * numCands);
+                                    cands[numCands++] = j;
+                                    n++;
+                                }
+
+                                if (n < numSamples) {
+                                    // most of the weight is excluded: the rest by the largest keys of the others
+                                    if (keys == null)
+                                        keys = new TopKSelector(numSamples);
+                                    keys.clear();
+                                    for (int j : sampleItems) {
+                                        if (stamps[j] != stamp && !correctItems.get(j))
+                                            keys.offer(j, Math.log(1 - rnd.nextDouble()) / itemWeights[j]);
+                                    }
+                                    keys.sort();
+                                    for (int r = 0; n < numSamples; r++, n++) {
+                                        if (cands.length == numCands)
+                                            cands = Arrays.copyOf(cands, 2 * numCands);
+                                        cands[numCands++] = keys.id(r);
+                                    }
+                                }
+                            }
+
+                            // ties in order of the item ids
+                            Arrays.sort(cands, 0, numCands);
+                            if (candScores.length < numCands)
+                                candScores = new double[cands.length];
+                            scoreItems(u, c, cands, numCands, candScores);
+                            for (int i = 0; i < numCands; i++) {
+                                final double rank = candScores[i];
+                                if (!Double.isNaN(rank) && rank > binThold)
+                                    topN.offer(cands[i], rank);
+                            }
+                        }
 
-                        if (posItems.contains(item))
-                            sb.append("*"); // indicating correct recommendation
+                        // order the top-N ranking scores from highest to lowest, ties in the order of the candidate items
+                        int numRanked = topN.sort();
+                        if (numRanked == 0)
+                            continue; // no recommendations available for user u
+
+                        if (ranked.length < numRanked)
+                            ranked = new int[numRanked];
+                        int size = 0;
+                        StringBuilder sb = new StringBuilder();
+                        int count = 0;
+                        for (int r = 0; r < numRanked; r++) {
+                            int item = topN.id(r);
+                            ranked[size++] = item;
+
+                            if (isResultsOut && count < numTopNRanks) {
+                                // restore back to the original item id
+                                sb.append("(").append(rateDao.getItemId(item));
+
+                                if (correctItems.get(item))
+                                    sb.append("*"); // indicating correct recommendation
+
+                                sb.append(", ").append((float) topN.score(r)).append(")");
+
+                                if (++count >= numTopNRanks)
+                                    break;
+                                if (count < numTopNRanks)
+                                    sb.append(", ");
+                            }
+                        }
 
-                        sb.append(", ").append(kv.getValue().floatValue()).append(")");
+                        int numDropped = numCands - size;
+
+                        // all the measures at all the cutoffs, in one pass over the ranked items
+                        Measures.rankingAt(ranked, size, correctItems, numCorrect, numDropped, rankingCutoffs, row, 3);
+
+                        if (isDiverseUsed) {
+                            List<Integer> rankedItems = Ints.asList(ranked).subList(0, size);
+                            // the item correlations are shared by the threads
+                            synchronized (corrs) {
+                                row[0] = diverseAt(rankedItems, 5);
+                                row[1] = diverseAt(rankedItems, 10);
+                                row[2] = diverseAt(rankedItems, numRecs);
+                            }
+                        } else
+                            row[0] = row[1] = row[2] = Double.NaN;
+
+                        // ======== calcualte metrics based on two evaluation strategies ========
+                        if (isUC) {
+                            // strategy: uc, average over each unique uc pairs
+                            block.add(row);
+                        } else {
+                            // strategy: ucu, average over each unique uc pairs, then average over users
+                            accumulate(row, 0, c_sums, c_counts);
+                        }
 
-                        if (++count >= numTopNRanks)
-                            break;
-                        if (count < numTopNRanks)
-                            sb.append(", ");
-                    }
-                }
+                        // output predictions
+                        if (isResultsOut) {
+                            // restore back to the original user id
+                            block.preds.add(rateDao.getUserId(u) + ", " + rateDao.getContextSituationFromInnerId(c) + ": " + sb.toString());
+                        }
+                    } // end a context
 
-                int numDropped = numCands - rankedItems.size();
-
-
-                List<Integer> cutoffs = Arrays.asList(5, 10, numRecs);
-                Map<Integer, Double> precs = Measures.PrecAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> recalls = Measures.RecallAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> aucs = Measures.AUCAt(rankedItems, correctItems, numDropped,cutoffs);
-                Map<Integer, Double> aps = Measures.APAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> ndcgs = Measures.nDCGAt(rankedItems, correctItems, cutoffs);
-                Map<Integer, Double> rrs = Measures.RRAt(rankedItems, correctItems, cutoffs);
-
-                // ======== calcualte metrics based on two evaluation strategies ========
-                if (evalStrategy.equals("uc")) {
-                    // strategy: uc, average over each unique uc pairs
-                    precs5.add(precs.get(5));       precs10.add(precs.get(10));       precsN.add(precs.get(numRecs));
-                    recalls5.add(recalls.get(5));   recalls10.add(recalls.get(10));   recallsN.add(recalls.get(numRecs));
-                    aucs5.add(aucs.get(5));         aucs10.add(aucs.get(10));         aucsN.add(aucs.get(numRecs));
-                    aps5.add(aps.get(5));           aps10.add(aps.get(10));           apsN.add(aps.get(numRecs));
-                    rrs5.add(rrs.get(5));           rrs10.add(rrs.get(10));           rrsN.add(rrs.get(numRecs));
-                    ndcgs5.add(ndcgs.get(5));       ndcgs10.add(ndcgs.get(10));       ndcgsN.add(ndcgs.get(numRecs));
-
-                    if (isDiverseUsed) {
-                        ds5.add(diverseAt(rankedItems, 5));
-                        ds10.add(diverseAt(rankedItems, 10));
-                        dsN.add(diverseAt(rankedItems, numRecs));
-                    }
-                } else {
-                    // strategy: ucu, average over each unique uc pairs, then average over users
-                    c_precs5.add(precs.get(5));       c_precs10.add(precs.get(10));       c_precsN.add(precs.get(numRecs));
-                    c_recalls5.add(recalls.get(5));   c_recalls10.add(recalls.get(10));   c_recallsN.add(recalls.get(numRecs));
-                    c_aucs5.add(aucs.get(5));         c_aucs10.add(aucs.get(10));         c_aucsN.add(aucs.get(numRecs));
-                    c_aps5.add(aps.get(5));           c_aps10.add(aps.get(10));           c_apsN.add(aps.get(numRecs));
-                    c_rrs5.add(rrs.get(5));           c_rrs10.add(rrs.get(10));           c_rrsN.add(rrs.get(numRecs));
-                    c_ndcgs5.add(ndcgs.get(5));       c_ndcgs10.add(ndcgs.get(10));       c_ndcgsN.add(ndcgs.get(numRecs));
-
-                    if (isDiverseUsed) {
-                        c_ds5.add(diverseAt(rankedItems, 5));
-                        c_ds10.add(diverseAt(rankedItems, 10));
-                        c_dsN.add(diverseAt(rankedItems, numRecs));
+                    if (!isUC) {
+                        // calculate metrics for a specific user averaged by contexts
+                        for (int m = 0; m < row.length; m++)
+                            row[m] = c_sums[m] / c_counts[m];
+                        block.add(row);
                     }
-                }
-
-                // output predictions
-                if (isResultsOut) {
-                    // restore back to the original user id
-                    preds.add(rateDao.getUserId(uu) + ", " + rateDao.getContextSituationFromInnerId(c) + ": " + sb.toString());
-                    if (preds.size() >= 1000) {
-                        FileIO.writeList(toFile, preds, true);
-                        preds.clear();
+                } // end a user
+
+                // the measures are summed up, and the predictions written, block by block in order of the users
+                synchronized (done) {
+                    done[b] = block;
+                    while (merged[0] < numBlocks && done[merged[0]] != null) {
+                        RankingBlock next = done[merged[0]];
+                        next.drainTo(sums, counts);
+                        if (isResultsOut) {
+                            preds.addAll(next.preds);
+                            if (preds.size() >= 1000) {
+                                FileIO.writeList(toFile, preds, true);
+                                preds.clear();
+                            }
+                        }
+                        done[merged[0]++] = null;
                     }
                 }
-            } // end a context
-
-            if (!evalStrategy.equals("uc")) {
-                // calculate metrics for a specific user averaged by contexts
-                ds5.add(isDiverseUsed ? Stats.mean(c_ds5) : 0.0);
-                ds10.add(isDiverseUsed ? Stats.mean(c_ds10) : 0.0);
-                dsN.add(isDiverseUsed ? Stats.mean(c_dsN) : 0.0);
-                precs5.add(Stats.mean(c_precs5));
-                precs10.add(Stats.mean(c_precs10));
-                precsN.add(Stats.mean(c_precsN));
-                recalls5.add(Stats.mean(c_recalls5));
-                recalls10.add(Stats.mean(c_recalls10));
-                recallsN.add(Stats.mean(c_recallsN));
-                aucs5.add(Stats.mean(c_aucs5));
-                ndcgs5.add(Stats.mean(c_ndcgs5));
-                aps5.add(Stats.mean(c_aps5));
-                rrs5.add(Stats.mean(c_rrs5));
-                aucs10.add(Stats.mean(c_aucs10));
-                ndcgs10.add(Stats.mean(c_ndcgs10));
-                aps10.add(Stats.mean(c_aps10));
-                rrs10.add(Stats.mean(c_rrs10));
-                aucsN.add(Stats.mean(c_aucsN));
-                ndcgsN.add(Stats.mean(c_ndcgsN));
-                apsN.add(Stats.mean(c_apsN));
-                rrsN.add(Stats.mean(c_rrsN));
             }
-        } // end a user
+        };
 
+        if (parallelism > 1)
+            service.parallelFor(numBlocks, 1, task);
+        else
+            for (int b = 0; b < numBlocks; b++)
+                task.run(b);
 
         // write results out first
         if (isResultsOut && preds.size() > 0) {
@@ -933,39 +1117,40 @@ public abstract class Recommender implements Runnable{
         }
 
         // measure the performance
+        double[] means = new double[rowLength];
+        for (int m = 0; m < rowLength; m++)
+            means[m] = sums[m] / counts[m];
+
         Map<Measure, Double> measures = new HashMap<>();
-        measures.put(Measure.D5, isDiverseUsed ? Stats.mean(ds5) : 0.0);
-        measures.put(Measure.D10, isDiverseUsed ? Stats.mean(ds10) : 0.0);
-        measures.put(Measure.DN, isDiverseUsed ? Stats.mean(dsN) : 0.0);
-        measures.put(Measure.Pre5, Stats.mean(precs5));
-        measures.put(Measure.Pre10, Stats.mean(precs10));
-        measures.put(Measure.PreN, Stats.mean(precsN));
-        measures.put(Measure.Rec5, Stats.mean(recalls5));
-        measures.put(Measure.Rec10, Stats.mean(recalls10));
-        measures.put(Measure.RecN, Stats.mean(recallsN));
-        measures.put(Measure.AUC5, Stats.mean(aucs5));
-        measures.put(Measure.NDCG5, Stats.mean(ndcgs5));
-        measures.put(Measure.MAP5, Stats.mean(aps5));
-        measures.put(Measure.MRR5, Stats.mean(rrs5));
-        measures.put(Measure.AUC10, Stats.mean(aucs10));
-        measures.put(Measure.NDCG10, Stats.mean(ndcgs10));
-        measures.put(Measure.MAP10, Stats.mean(aps10));
-        measures.put(Measure.MRR10, Stats.mean(rrs10));
-        measures.put(Measure.AUCN, Stats.mean(aucsN));
-        measures.put(Measure.NDCGN, Stats.mean(ndcgsN));
-        measures.put(Measure.MAPN, Stats.mean(apsN));
-        measures.put(Measure.MRRN, Stats.mean(rrsN));
+        for (int m = 0; m < 3; m++)
+            measures.put(RANKING_MEASURES[m], means[m]);
+        for (int m = 0; m < Measures.NUM_RANKING_MEASURES; m++)
+            for (int k = 0; k < 3; k++)
+                measures.put(RANKING_MEASURES[3 + m * 3 + k], means[3 + m * rankingCutoffs.length + k]);
+        cutoffMeasures = getCutoffMeasures(means, 3);
+        if (!isDiverseUsed) {
+            measures.put(Measure.D5, 0.0);
+            measures.put(Measure.D10, 0.0);
+            measures.put(Measure.DN, 0.0);
+        }
 
         return measures;
     }
 
+    /**
+     * @return whether the ranking scores and predictions of the model can be computed by several threads at the same
+     *         time, so that the evaluation is parallel; models whose predictions change their own state return false
+     */
+    protected boolean isThreadSafe() {
+        return true;
+    }
+
     /**
      * determine whether the rating of a user-item (u, j) is used to predicted
      *
      */
     protected boolean isTestable(int u, int j) {
-        String uiid=u+","+j;
-        int rowid=rateDao.getUserItemId(uiid);
+        int rowid=rateDao.getUserItemId(u, j);
         switch (view) {
             case "cold-start":
                 return trainMatrix.rowSize(rowid) < 5 ? true : false;
@@ -1017,58 +1202,656 @@ public abstract class Recommender implements Runnable{
         return predict(u, j, c, false);
     }
 
+    /**
+     * Score all the items for user u in context c in one batch: {@code out[j]} is the ranking score of item j (NaN if
+     * it cannot be scored), for each item {@code j < out.length}. By default, each item is scored by
+     * {@link #ranking(int, int, int)} on its own; models which can score all the items at once, e.g., by one
+     * matrix-vector product, override it.
+     *
+     * @param u
+     *            user id, before splitting
+     * @param c
+     *            context id
+     * @param out
+     *            scores of the items, by their ids before splitting
+     */
+    public void scoreAll(int u, int c, double[] out) throws Exception {
+        u = splitUser(u, c);
+        for (int j = 0; j < out.length; j++)
+            out[j] = ranking(u, splitItem(j, c), c);
+    }
+
+    /**
+     * Score a list of items for user u in context c: {@code out[i]} is the ranking score of item {@code items[i]} (NaN
+     * if it cannot be scored), for each {@code i < n}. It is used to rank the sampled candidate items, which are few
+     * compared with all the items; by default, each item is scored by {@link #ranking(int, int, int)} on its own.
+     *
+     * @param u
+     *            user id, before splitting
+     * @param c
+     *            context id
+     * @param items
+     *            ids of the items, before splitting
+     * @param n
+     *            number of the items
+     * @param out
+     *            scores of the items, in the order of the list
+     */
+    public void scoreItems(int u, int c, int[] items, int n, double[] out) throws Exception {
+        u = splitUser(u, c);
+        for (int i = 0; i < n; i++)
+            out[i] = ranking(u, splitItem(items[i], c), c);
+    }
+
+    /**
+     * @return id of user u in context c, after user splitting
+     */
+    protected int splitUser(int u, int c) {
+        return isUserSplitting && userIdMapper.contains(u, c) ? userIdMapper.get(u, c) : u;
+    }
 
+    /**
+     * @return id of item j in context c, after item splitting
+     */
+    protected int splitItem(int j, int c) {
+        return isItemSplitting && itemIdMapper.contains(j, c) ? itemIdMapper.get(j, c) : j;
+    }
 
-    protected SymmMatrix buildCorrs(boolean isUser) {
+    /**
+     * Batch scores of a model are computed for all the items after item splitting; copy the score of each item in
+     * context c back to its id before splitting.
+     *
+     * @param scores
+     *            scores of the items after splitting
+     * @param out
+     *            scores of the items before splitting
+     */
+    protected void gatherSplitItems(int c, double[] scores, double[] out) {
+        for (int j = 0; j < out.length; j++)
+            out[j] = scores[splitItem(j, c)];
+    }
+
+
+
+    protected SymmMatrix buildCorrs(boolean isUser) throws Exception {
+        return buildCorrs(isUser, train);
+    }
+
+    protected SymmMatrix buildCorrs(boolean isUser, librec.data.SparseMatrix train) throws Exception {
         Logs.debug("Build {} similarity matrix ...", isUser ? "user" : "item");
 
         int count = isUser ? numUsers : numItems;
-        SymmMatrix corrs = new SymmMatrix(count);
+        final SymmMatrix corrs = new SymmMatrix(count);
 
-        for (int i = 0; i < count; i++) {
-            SparseVector iv = isUser ? train.row(i) : train.column(i);
-            if (iv.getCount() == 0)
-                continue;
-            // user/item itself exclusive
-            for (int j = i + 1; j < count; j++) {
-                SparseVector jv = isUser ? train.row(j) : train.column(j);
-                if(jv.getCount() == 0 )
-                    continue;
-                double sim = correlation(iv, jv);
+        int[][] idx = new int[count][];
+        double[][] vals = new double[count][];
+        extractVectors(isUser, train, idx, vals);
+        computeCachedCorrs(isUser, idx, vals, isUser ? train.numColumns() : train.numRows(), new CorrelationSink() {
 
-                if (!Double.isNaN(sim))
-                    corrs.set(i, j, sim);
+            @Override
+            public void accept(int i, int j, double sim) {
+                corrs.set(i, j, sim);
             }
-        }
+        });
 
         return corrs;
     }
 
-    protected SymmMatrix buildCorrs(boolean isUser, SparseMatrix train) {
-        Logs.debug("Build {} similarity matrix ...", isUser ? "user" : "item");
+    /**
+     * Build the nearest neighbors of each user or item, sorted by similarity in descending order. With option
+     * similarity.knn=minhash, the neighbors are approximate: only the candidates of a {@link MinHashIndex} are
+     * compared, and at most as many neighbors as option -n are kept.
+     *
+     * @param capacity
+     *            maximum number of neighbors kept per user or item; all of them are kept if it is not positive
+     */
+    protected NeighborIndex buildNeighbors(boolean isUser, int capacity) throws Exception {
+        return buildNeighbors(isUser, train, capacity);
+    }
+
+    protected NeighborIndex buildNeighbors(boolean isUser, librec.data.SparseMatrix train, int capacity)
+            throws Exception {
+        Logs.debug("Build {} neighbors ...", isUser ? "user" : "item");
 
         int count = isUser ? numUsers : numItems;
-        SymmMatrix corrs = new SymmMatrix(count);
+        int[][] idx = new int[count][];
+        double[][] vals = new double[count][];
+        extractVectors(isUser, train, idx, vals);
+
+        MinHashIndex lsh = null;
+        if (approxKnnOptions != null) {
+            int n = approxKnnOptions.getInt("-n", 100);
+            capacity = capacity > 0 ? Math.min(capacity, n) : n;
+            lsh = new MinHashIndex(idx, approxKnnOptions.getInt("-bands", 20), approxKnnOptions.getInt("-rows", 2),
+                    approxKnnOptions.getLong("-seed", 1L));
+        }
+
+        final NeighborIndex.Builder builder = new NeighborIndex.Builder(count, capacity);
+        CorrelationSink sink = new CorrelationSink() {
 
-        for (int i = 0; i < count; i++) {
-            SparseVector iv = isUser ? train.row(i) : train.column(i);
-            if (iv.getCount() == 0)
+            @Override
+            public void accept(int i, int j, double sim) {
+                builder.add(i, j, sim);
+                builder.add(j, i, sim);
+            }
+        };
+        int numIndices = isUser ? train.numColumns() : train.numRows();
+        if (lsh != null)
+            computeCorrs(idx, vals, numIndices, lsh, sink);
+        else
+            computeCachedCorrs(isUser, idx, vals, numIndices, sink);
+        NeighborIndex nns = builder.build();
+
+        if (lsh != null) {
+            int numSamples = approxKnnOptions.getInt("-recall", 100);
+            double recall = recall(idx, vals, nns, capacity, numSamples, approxKnnOptions.getLong("-seed", 1L));
+            Logs.info("MinHash {} neighbors{}: recall@{} = {} on {} samples", isUser ? "user" : "item", foldInfo,
+                    capacity, (float) recall, numSamples);
+        }
+
+        return nns;
+    }
+
+    /**
+     * @return recall of approximate neighbors, i.e., the fraction of the exact top-K neighbors of sampled rows which
+     *         are found
+     */
+    private double recall(int[][] idx, double[][] vals, NeighborIndex nns, int capacity, int numSamples, long seed) {
+        int count = idx.length, hits = 0, total = 0;
+        Random random = new Random(seed);
+        for (int s = 0; s < numSamples; s++) {
+            int i = random.nextInt(count);
+            if (idx[i].length == 0)
                 continue;
-            // user/item itself exclusive
-            for (int j = i + 1; j < count; j++) {
-                SparseVector jv = isUser ? train.row(j) : train.column(j);
-                if(jv.getCount() == 0 )
-                    continue;
-                double sim = correlation(iv, jv);
 
+            NeighborIndex.Builder exact = new NeighborIndex.Builder(1, capacity);
+            for (int j = 0; j < count; j++) {
+                if (j == i || idx[j].length == 0)
+                    continue;
+                double sim = similarity.compute(idx[i], vals[i], idx[j], vals[j]);
                 if (!Double.isNaN(sim))
-                    corrs.set(i, j, sim);
+                    exact.add(0, j, sim);
             }
+
+            int[] approx = nns.neighbors(i);
+            Arrays.sort(approx);
+            NeighborIndex top = exact.build();
+            for (int k = 0; k < top.size(0); k++)
+                if (Arrays.binarySearch(approx, top.neighbor(0, k)) >= 0)
+                    hits++;
+            total += top.size(0);
+        }
+        return total > 0 ? hits / (total + 0.0) : 1.0;
+    }
+
+    /**
+     * Compute the similarities of the vectors by {@link #computeCorrs}, or read them from the similarity cache in the
+     * working folder if they have been computed before (see {@link SimilarityCache}).
+     */
+    private void computeCachedCorrs(boolean isUser, int[][] idx, double[][] vals, int numIndices,
+            CorrelationSink sink) throws Exception {
+        if (!isSimilarityCached || workingPath == null) {
+            computeCorrs(idx, vals, numIndices, null, sink);
+            return;
         }
 
-        return corrs;
+        String setting = similarityMeasure.toLowerCase() + "," + similarityShrinkage + "," + (minRate + maxRate) / 2.0
+                + "," + (isUser ? "user" : "item") + "," + (isCoratedPairs ? "corated" : "all");
+        String key = SimilarityCache.key(idx, vals, setting);
+        String path = FileIO.makeDirectory(workingPath, "similarity") + key + ".bin";
+
+        try {
+            if (SimilarityCache.read(path, key, sink)) {
+                Logs.debug("{} similarities{} are loaded from {}", isUser ? "User" : "Item", foldInfo, path);
+                return;
+            }
+        } catch (java.io.IOException e) {
+            // e.g., a file cut short by a full disk or a copy: it is computed and written again
+            Logs.warn("Similarity cache {} cannot be read and will be rebuilt: {}", path, e.getMessage());
+            FileIO.deleteFile(path);
+        }
+
+        SimilarityCache.Writer writer = new SimilarityCache.Writer(path, key, sink);
+        try {
+            computeCorrs(idx, vals, numIndices, null, writer);
+        } catch (Exception e) {
+            writer.abort();
+            throw e;
+        }
+        writer.close();
+    }
+
+    /**
+     * take the indices and values of the row (user) or column (item) vectors of a rating matrix
+     */
+    private void extractVectors(boolean isUser, librec.data.SparseMatrix train, int[][] idx, double[][] vals) {
+        for (int i = 0; i < idx.length; i++) {
+            SparseVector v = isUser ? train.row(i) : train.column(i);
+            idx[i] = v.getIndex();
+            vals[i] = v.getData();
+        }
+    }
+
+    /**
+     * receiver of the similarities computed by {@link #computeCorrs}
+     */
+    interface CorrelationSink {
+        void accept(int i, int j, double sim);
+    }
+
+    /**
+     * Compute the similarities of all the pairs (i, j), i &lt; j, of users (or items) who have ratings, and pass the
+     * computable ones to a sink in order of i and then j, i.e., in the same order as a sequential double loop. With
+     * option similarity.pairs=corated, only the pairs with co-ratings are computed (see {@link CoratedPairs}); with a
+     * MinHash index, only the candidate pairs of the index are.
+     *
+     * <p>
+     * The upper triangle of the pairs is tiled into blocks of consecutive rows, which are computed on the fork/join
+     * pool of the execution service. Each block collects its similarities in primitive arrays; a completed block is
+     * passed to the sink, under a lock, as soon as all the blocks before it are, so that the sink needs no
+     * synchronization and only the blocks in progress are held in memory.
+     * </p>
+     */
+    private void computeCorrs(final int[][] idx, final double[][] vals, int numIndices, final MinHashIndex lsh,
+            final CorrelationSink sink) throws Exception {
+        final int count = idx.length;
+        final CoratedPairs corated = isCoratedPairs && lsh == null ? new CoratedPairs(idx, vals, numIndices) : null;
+
+        // rows per block: about CORR_BLOCK_PAIRS pairs, and a few blocks per thread to balance the triangle
+        ExecutionService service = getExecutionService();
+        int rows = Math.max(1, CORR_BLOCK_PAIRS / Math.max(1, count));
+        rows = Math.min(rows, Math.max(1, count / (4 * service.getParallelism())));
+        final int blockRows = rows;
+        final int numBlocks = (count + blockRows - 1) / blockRows;
+
+        final CorrelationBlock[] done = new CorrelationBlock[numBlocks];
+        final int[] merged = { 0 };
+
+        // the accumulators and collectors hold arrays of the size of count, hence one of each per worker thread
+        final ThreadLocal<CoratedPairs.Accumulator> accs = new ThreadLocal<CoratedPairs.Accumulator>() {
+
+            @Override
+            protected CoratedPairs.Accumulator initialValue() {
+                return corated != null ? corated.accumulator() : null;
+            }
+        };
+        final ThreadLocal<MinHashIndex.Candidates> collectors = new ThreadLocal<MinHashIndex.Candidates>() {
+
+            @Override
+            protected MinHashIndex.Candidates initialValue() {
+                return lsh != null ? lsh.candidates() : null;
+            }
+        };
+
+        service.parallelFor(numBlocks, 1, new ExecutionService.IndexTask() {
+
+            @Override
+            public void run(int b) {
+                CorrelationBlock block = new CorrelationBlock();
+                CoratedPairs.Accumulator acc = accs.get();
+                MinHashIndex.Candidates candidates = collectors.get();
+                for (int i = b * blockRows, end = Math.min(count, i + blockRows); i < end; i++) {
+                    if (idx[i].length == 0)
+                        continue;
+                    if (acc != null) {
+                        acc.computeRow(i, block);
+                        continue;
+                    }
+                    if (candidates != null) {
+                        for (int k = 0, size = candidates.collect(i); k < size; k++) {
+                            int j = candidates.get(k);
+                            double sim = similarity.compute(idx[i], vals[i], idx[j], vals[j]);
+
+                            if (!Double.isNaN(sim))
+                                block.add(i, j, sim);
+                        }
+                        continue;
+                    }
+                    // user/item itself exclusive
+                    for (int j = i + 1; j < count; j++) {
+                        if (idx[j].length == 0)
+                            continue;
+                        double sim = similarity.compute(idx[i], vals[i], idx[j], vals[j]);
+
+                        if (!Double.isNaN(sim))
+                            block.add(i, j, sim);
+                    }
+                }
+
+                synchronized (done) {
+                    done[b] = block;
+                    while (merged[0] < numBlocks && done[merged[0]] != null) {
+                        done[merged[0]].drainTo(sink);
+                        done[merged[0]++] = null;
+                    }
+                }
+            }
+        });
     }
 
+    /**
+     * Inverted index of the vectors for similarities of co-rated pairs only. For a vector i, the other vectors which
+     * share an index with it are found by the lists of the indices of i, and the co-rated values of each of them are
+     * gathered by a sparse accumulator, so that the cost scales with the co-ratings rather than with the pairs.
+     */
+    private class CoratedPairs {
+
+        private final int[][] idx;
+        private final double[][] vals;
+        // sums of squares of the values of each vector, used by cos-binary
+        private final double[] squares;
+        // vectors (in ascending order) and their values of each index
+        private final int[][] lists;
+        private final double[][] listVals;
+
+        CoratedPairs(int[][] idx, double[][] vals, int numIndices) {
+            this.idx = idx;
+            this.vals = vals;
+
+            int count = idx.length;
+            squares = new double[count];
+            int[] sizes = new int[numIndices];
+            for (int i = 0; i < count; i++) {
+                for (double x : vals[i])
+                    squares[i] += x * x;
+                for (int k : idx[i])
+                    sizes[k]++;
+            }
+
+            lists = new int[numIndices][];
+            listVals = new double[numIndices][];
+            for (int k = 0; k < numIndices; k++) {
+                lists[k] = new int[sizes[k]];
+                listVals[k] = new double[sizes[k]];
+                sizes[k] = 0;
+            }
+            for (int i = 0; i < count; i++) {
+                for (int a = 0; a < idx[i].length; a++) {
+                    int k = idx[i][a], p = sizes[k]++;
+                    lists[k][p] = i;
+                    listVals[k][p] = vals[i][a];
+                }
+            }
+        }
+
+        /**
+         * @return an accumulator for one thread, which is cleared after each row and hence can be reused for any number
+         *         of rows
+         */
+        Accumulator accumulator() {
+            return new Accumulator(idx.length);
+        }
+
+        /**
+         * sparse accumulator of the co-rated values of vector i with each vector j &gt; i
+         */
+        class Accumulator {
+            // number of co-ratings, and then the next position to fill, of each vector j
+            private final int[] counts;
+            // first position of the co-rated values of each vector j
+            private final int[] starts;
+            // vectors j with co-ratings
+            private final int[] touched;
+            // co-rated values of vector i and of the vectors j, grouped by j and in order of indices
+            private double[] xs = new double[16], ys = new double[16];
+
+            Accumulator(int count) {
+                counts = new int[count];
+                starts = new int[count];
+                touched = new int[count];
+            }
+
+            /**
+             * compute the similarities of vector i with the vectors j &gt; i which share an index with it
+             */
+            void computeRow(int i, CorrelationBlock block) {
+                int[] is = idx[i];
+                double[] iv = vals[i];
+
+                // count the co-ratings of each vector j
+                int numTouched = 0;
+                for (int k : is) {
+                    int[] list = lists[k];
+                    for (int p = Arrays.binarySearch(list, i) + 1; p < list.length; p++)
+                        if (counts[list[p]]++ == 0)
+                            touched[numTouched++] = list[p];
+                }
+                Arrays.sort(touched, 0, numTouched);
+
+                int total = 0;
+                for (int t = 0; t < numTouched; t++) {
+                    int j = touched[t];
+                    starts[j] = total;
+                    total += counts[j];
+                    counts[j] = starts[j];
+                }
+                if (total > xs.length) {
+                    xs = new double[Math.max(total, xs.length << 1)];
+                    ys = new double[xs.length];
+                }
+
+                // gather the co-rated values
+                for (int a = 0; a < is.length; a++) {
+                    int[] list = lists[is[a]];
+                    double[] listv = listVals[is[a]];
+                    for (int p = Arrays.binarySearch(list, i) + 1; p < list.length; p++) {
+                        int pos = counts[list[p]]++;
+                        xs[pos] = iv[a];
+                        ys[pos] = listv[p];
+                    }
+                }
+
+                for (int t = 0; t < numTouched; t++) {
+                    int j = touched[t];
+                    double sim = similarity.compute(xs, ys, starts[j], counts[j], squares[i], squares[j]);
+                    counts[j] = 0;
+
+                    if (!Double.isNaN(sim))
+                        block.add(i, j, sim);
+                }
+            }
+        }
+    }
+
+    /**
+     * similarities of the pairs of a block, in the order in which they are computed
+     */
+    private static class CorrelationBlock {
+        private int[] is = new int[16], js = new int[16];
+        private double[] sims = new double[16];
+        private int size;
+
+        void add(int i, int j, double sim) {
+            if (size == is.length) {
+                int capacity = size << 1;
+                is = Arrays.copyOf(is, capacity);
+                js = Arrays.copyOf(js, capacity);
+                sims = Arrays.copyOf(sims, capacity);
+            }
+            is[size] = i;
+            js[size] = j;
+            sims[size++] = sim;
+        }
+
+        void drainTo(CorrelationSink sink) {
+            for (int k = 0; k < size; k++)
+                sink.accept(is[k], js[k], sims[k]);
+        }
+    }
+
+
+    /**
+     * predicted test ratings of a block, and their output lines, in the order in which they are predicted
+     */
+    protected static class RatingBlock {
+        private double[] rates = new double[64], preds = new double[64], perps = new double[64];
+        private int size;
+
+        /**
+         * output lines of the predictions, each of which ends with a new line; null if they are not written out
+         */
+        public final StringBuilder lines;
+
+        RatingBlock(boolean isResultsOut) {
+            lines = isResultsOut ? new StringBuilder() : null;
+        }
+
+        /**
+         * add a test rating with its prediction and perplexity
+         */
+        public void add(double rate, double pred, double perp) {
+            if (size == rates.length) {
+                int capacity = size << 1;
+                rates = Arrays.copyOf(rates, capacity);
+                preds = Arrays.copyOf(preds, capacity);
+                perps = Arrays.copyOf(perps, capacity);
+            }
+            rates[size] = rate;
+            preds[size] = pred;
+            perps[size++] = perp;
+        }
+
+        void drainTo(RatingErrors errors) {
+            for (int k = 0; k < size; k++)
+                errors.add(rates[k], preds[k], perps[k]);
+        }
+    }
+
+    /**
+     * sums of the errors of rating predictions
+     */
+    private static class RatingErrors {
+        private final boolean isPECounted;
+        private double sum_maes, sum_mses, sum_r_maes, sum_r_rmses, sum_perps;
+        private int numCount, numPEs;
+
+        RatingErrors(boolean isPECounted) {
+            this.isPECounted = isPECounted;
+        }
+
+        void add(double rate, double pred, double perp) {
+            sum_perps += perp;
+
+            // rounding prediction to the closest rating level
+            double rPred = Math.round(pred / minRate) * minRate;
+
+            double err = Math.abs(rate - pred); // absolute predictive error
+            double r_err = Math.abs(rate - rPred);
+
+            sum_maes += err;
+            sum_mses += err * err;
+
+            sum_r_maes += r_err;
+            sum_r_rmses += r_err * r_err;
+
+            numCount++;
+
+            if (isPECounted && r_err > 1e-5)
+                numPEs++;
+        }
+    }
+
+    /**
+     * measures of ranking predictions at the cutoffs 5, 10 and N: diversity, and then the measures in the order of
+     * {@link Measures#rankingAt}, each at the three cutoffs
+     */
+    private static final Measure[] RANKING_MEASURES = { Measure.D5, Measure.D10, Measure.DN, Measure.Pre5,
+            Measure.Pre10, Measure.PreN, Measure.Rec5, Measure.Rec10, Measure.RecN, Measure.AUC5, Measure.AUC10,
+            Measure.AUCN, Measure.MAP5, Measure.MAP10, Measure.MAPN, Measure.MRR5, Measure.MRR10, Measure.MRRN,
+            Measure.NDCG5, Measure.NDCG10, Measure.NDCGN };
+
+    // names of the measures of Measures.rankingAt, in its order, and the order in which they are printed
+    private static final String[] RANKING_NAMES = { "Pre", "Rec", "AUC", "MAP", "MRR", "NDCG" };
+    private static final int[] RANKING_PRINTED = { Measures.PREC, Measures.RECALL, Measures.AUC, Measures.AP,
+            Measures.NDCG, Measures.RR };
+
+    /**
+     * @param options
+     *            values of option -cutoffs, each a cutoff or a comma-separated list of them; may be null
+     * @return cutoffs of the ranking measures: 5, 10 and N, followed by the other cutoffs of the option in their
+     *         order; cutoffs larger than N are dropped, since only the top-N items are ranked
+     */
+    private static int[] getRankingCutoffs(List<String> options) {
+        List<Integer> cutoffs = new ArrayList<>(Arrays.asList(5, 10, numRecs));
+        if (options != null) {
+            for (String option : options) {
+                for (String token : option.split(",")) {
+                    if (token.trim().isEmpty())
+                        continue;
+                    int n = Integer.parseInt(token.trim());
+                    if (n <= 0 || n > numRecs)
+                        Logs.warn("Cutoff {} of the ranking measures is dropped: it has to be between 1 and -topN {}",
+                                n, numRecs);
+                    else if (!cutoffs.contains(n))
+                        cutoffs.add(n);
+                }
+            }
+        }
+        return Ints.toArray(cutoffs);
+    }
+
+    /**
+     * @param means
+     *            means of the measures at all the cutoffs, in the order of {@link Measures#rankingAt}
+     * @param from
+     *            position of the first measure in means
+     * @return the measures at the extra cutoffs of option -cutoffs, named by the measure and the cutoff (e.g.,
+     *         Pre20), cutoff by cutoff; null if there are no extra cutoffs
+     */
+    protected static Map<String, Double> getCutoffMeasures(double[] means, int from) {
+        int numCutoffs = rankingCutoffs.length;
+        if (numCutoffs <= 3)
+            return null;
+
+        Map<String, Double> cutoffMeasures = new LinkedHashMap<>();
+        for (int k = 3; k < numCutoffs; k++)
+            for (int m : RANKING_PRINTED)
+                cutoffMeasures.put(RANKING_NAMES[m] + rankingCutoffs[k], means[from + m * numCutoffs + k]);
+        return cutoffMeasures;
+    }
+
+    /**
+     * add up the measures of a row, from position k of an array, to their sums and counts; NaN measures are skipped,
+     * as by {@link Stats#mean(Collection)}
+     */
+    protected static void accumulate(double[] x, int k, double[] sums, int[] counts) {
+        for (int m = 0; m < sums.length; m++) {
+            if (!Double.isNaN(x[k + m])) {
+                sums[m] += x[k + m];
+                counts[m]++;
+            }
+        }
+    }
+
+    /**
+     * rows of ranking measures of a block of users, i.e., one for each (u, c) pair or for each user, and their lines of
+     * predictions, in the order in which they are evaluated
+     */
+    private static class RankingBlock {
+        private double[] rows;
+        private int size;
+        private final List<String> preds;
+
+        RankingBlock(int rowLength, boolean isResultsOut) {
+            rows = new double[16 * rowLength];
+            preds = isResultsOut ? new ArrayList<String>() : null;
+        }
+
+        void add(double[] row) {
+            if (size + row.length > rows.length)
+                rows = Arrays.copyOf(rows, rows.length << 1);
+            System.arraycopy(row, 0, rows, size, row.length);
+            size += row.length;
+        }
+
+        /**
+         * add up the rows to the sums and counts of the measures, in order
+         */
+        void drainTo(double[] sums, int[] counts) {
+            for (int k = 0; k < size; k += sums.length)
+                accumulate(rows, k, sums, counts);
+        }
+    }
 
     /**
      * initilize recommender model
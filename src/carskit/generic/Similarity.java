@@ -0,0 +1,328 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.generic;
+
+import librec.data.SparseVector;
+
+/**
+ * Similarity measure between two sparse vectors, resolved once from its name (option similarity). A measure merges
+ * the sorted index arrays of the two vectors in one pass and accumulates its statistics of the co-rated entries in
+ * local variables, so that no memory is allocated per pair. The results are the same as those of
+ * {@code happy.coding.math.Sims} on the lists of co-rated values, shrunk by the number of co-rated entries. A measure
+ * can also be computed from the co-rated values gathered in advance, e.g., by an inverted index of the vectors.
+ *
+ */
+public abstract class Similarity {
+
+    // number of shrinkage; no shrinkage if it is not positive
+    protected final int shrinkage;
+
+    protected Similarity(int shrinkage) {
+        this.shrinkage = shrinkage;
+    }
+
+    /**
+     * @param method
+     *            name of the similarity measure: cos, cos-binary, msd, cpc, exjaccard or pcc (the default)
+     * @param median
+     *            median of the rating scale, used by cpc
+     * @param shrinkage
+     *            number of shrinkage
+     * @return the similarity measure
+     */
+    public static Similarity of(String method, final double median, int shrinkage) {
+        switch (method.toLowerCase()) {
+            case "cos":
+                // for ratings along the overlappings
+                return new Similarity(shrinkage) {
+
+                    @Override
+                    protected double compute(int[] is, double[] iv, int[] js, double[] jv) {
+                        int n = 0;
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int a = 0, b = 0; a < is.length && b < js.length;) {
+                            if (is[a] < js[b])
+                                a++;
+                            else if (is[a] > js[b])
+                                b++;
+                            else {
+                                double x = iv[a++], y = jv[b++];
+                                xy += x * y;
+                                xx += x * x;
+                                yy += y * y;
+                                n++;
+                            }
+                        }
+                        return n == 0 ? Double.NaN : shrink(xy / (Math.sqrt(xx) * Math.sqrt(yy)), n);
+                    }
+
+                    @Override
+                    protected double compute(double[] xs, double[] ys, int from, int to, double ii, double jj) {
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int k = from; k < to; k++) {
+                            double x = xs[k], y = ys[k];
+                            xy += x * y;
+                            xx += x * x;
+                            yy += y * y;
+                        }
+                        return to == from ? Double.NaN : shrink(xy / (Math.sqrt(xx) * Math.sqrt(yy)), to - from);
+                    }
+                };
+            case "cos-binary":
+                // for ratings along all the vectors (including one-sided 0s)
+                return new Similarity(shrinkage) {
+
+                    @Override
+                    protected double compute(int[] is, double[] iv, int[] js, double[] jv) {
+                        int n = 0;
+                        double xy = 0, xx = 0, yy = 0;
+                        for (double x : iv)
+                            xx += x * x;
+                        for (double y : jv)
+                            yy += y * y;
+                        for (int a = 0, b = 0; a < is.length && b < js.length;) {
+                            if (is[a] < js[b])
+                                a++;
+                            else if (is[a] > js[b])
+                                b++;
+                            else {
+                                xy += iv[a++] * jv[b++];
+                                n++;
+                            }
+                        }
+                        return shrink(xy / (Math.sqrt(xx) * Math.sqrt(yy)), n);
+                    }
+
+                    @Override
+                    protected double compute(double[] xs, double[] ys, int from, int to, double ii, double jj) {
+                        double xy = 0;
+                        for (int k = from; k < to; k++)
+                            xy += xs[k] * ys[k];
+                        return shrink(xy / (Math.sqrt(ii) * Math.sqrt(jj)), to - from);
+                    }
+                };
+            case "msd":
+                return new Similarity(shrinkage) {
+
+                    @Override
+                    protected double compute(int[] is, double[] iv, int[] js, double[] jv) {
+                        int n = 0;
+                        double sum = 0;
+                        for (int a = 0, b = 0; a < is.length && b < js.length;) {
+                            if (is[a] < js[b])
+                                a++;
+                            else if (is[a] > js[b])
+                                b++;
+                            else {
+                                double d = iv[a++] - jv[b++];
+                                sum += d * d;
+                                n++;
+                            }
+                        }
+                        double sim = n / sum;
+                        return shrink(Double.isInfinite(sim) ? 1.0 : sim, n);
+                    }
+
+                    @Override
+                    protected double compute(double[] xs, double[] ys, int from, int to, double ii, double jj) {
+                        double sum = 0;
+                        for (int k = from; k < to; k++) {
+                            double d = xs[k] - ys[k];
+                            sum += d * d;
+                        }
+                        double sim = (to - from) / sum;
+                        return shrink(Double.isInfinite(sim) ? 1.0 : sim, to - from);
+                    }
+                };
+            case "cpc":
+                return new Similarity(shrinkage) {
+
+                    @Override
+                    protected double compute(int[] is, double[] iv, int[] js, double[] jv) {
+                        int n = 0;
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int a = 0, b = 0; a < is.length && b < js.length;) {
+                            if (is[a] < js[b])
+                                a++;
+                            else if (is[a] > js[b])
+                                b++;
+                            else {
+                                double x = iv[a++] - median, y = jv[b++] - median;
+                                xy += x * y;
+                                xx += x * x;
+                                yy += y * y;
+                                n++;
+                            }
+                        }
+                        return n == 0 ? Double.NaN : shrink(xy / (Math.sqrt(xx) * Math.sqrt(yy)), n);
+                    }
+
+                    @Override
+                    protected double compute(double[] xs, double[] ys, int from, int to, double ii, double jj) {
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int k = from; k < to; k++) {
+                            double x = xs[k] - median, y = ys[k] - median;
+                            xy += x * y;
+                            xx += x * x;
+                            yy += y * y;
+                        }
+                        return to == from ? Double.NaN : shrink(xy / (Math.sqrt(xx) * Math.sqrt(yy)), to - from);
+                    }
+                };
+            case "exjaccard":
+                return new Similarity(shrinkage) {
+
+                    @Override
+                    protected double compute(int[] is, double[] iv, int[] js, double[] jv) {
+                        int n = 0;
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int a = 0, b = 0; a < is.length && b < js.length;) {
+                            if (is[a] < js[b])
+                                a++;
+                            else if (is[a] > js[b])
+                                b++;
+                            else {
+                                double x = iv[a++], y = jv[b++];
+                                xy += x * y;
+                                xx += x * x;
+                                yy += y * y;
+                                n++;
+                            }
+                        }
+                        return shrink(xy / (xx + yy - xy), n);
+                    }
+
+                    @Override
+                    protected double compute(double[] xs, double[] ys, int from, int to, double ii, double jj) {
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int k = from; k < to; k++) {
+                            double x = xs[k], y = ys[k];
+                            xy += x * y;
+                            xx += x * x;
+                            yy += y * y;
+                        }
+                        return shrink(xy / (xx + yy - xy), to - from);
+                    }
+                };
+            case "pcc":
+            default:
+                return new Similarity(shrinkage) {
+
+                    @Override
+                    protected double compute(int[] is, double[] iv, int[] js, double[] jv) {
+                        // the means are taken in a first pass, so that the second one sums centered values as
+                        // Sims.pcc does, rather than the cancellation-prone raw moments
+                        int n = 0;
+                        double sx = 0, sy = 0;
+                        for (int a = 0, b = 0; a < is.length && b < js.length;) {
+                            if (is[a] < js[b])
+                                a++;
+                            else if (is[a] > js[b])
+                                b++;
+                            else {
+                                sx += iv[a++];
+                                sy += jv[b++];
+                                n++;
+                            }
+                        }
+                        if (n < 2)
+                            return Double.NaN;
+
+                        double mx = sx / n, my = sy / n;
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int a = 0, b = 0; a < is.length && b < js.length;) {
+                            if (is[a] < js[b])
+                                a++;
+                            else if (is[a] > js[b])
+                                b++;
+                            else {
+                                double x = iv[a++] - mx, y = jv[b++] - my;
+                                xy += x * y;
+                                xx += x * x;
+                                yy += y * y;
+                            }
+                        }
+                        return shrink(xy / (Math.sqrt(xx) * Math.sqrt(yy)), n);
+                    }
+
+                    @Override
+                    protected double compute(double[] xs, double[] ys, int from, int to, double ii, double jj) {
+                        int n = to - from;
+                        if (n < 2)
+                            return Double.NaN;
+
+                        double sx = 0, sy = 0;
+                        for (int k = from; k < to; k++) {
+                            sx += xs[k];
+                            sy += ys[k];
+                        }
+                        double mx = sx / n, my = sy / n;
+                        double xy = 0, xx = 0, yy = 0;
+                        for (int k = from; k < to; k++) {
+                            double x = xs[k] - mx, y = ys[k] - my;
+                            xy += x * y;
+                            xx += x * x;
+                            yy += y * y;
+                        }
+                        return shrink(xy / (Math.sqrt(xx) * Math.sqrt(yy)), n);
+                    }
+                };
+        }
+    }
+
+    /**
+     * @return the similarity between two vectors; NaN if it is not computable
+     */
+    public double compute(SparseVector iv, SparseVector jv) {
+        return compute(iv.getIndex(), iv.getData(), jv.getIndex(), jv.getData());
+    }
+
+    /**
+     * Compute the similarity between two vectors, given by their indices in ascending order and the corresponding
+     * values.
+     *
+     * @return the similarity between the two vectors; NaN if it is not computable
+     */
+    protected abstract double compute(int[] is, double[] iv, int[] js, double[] jv);
+
+    /**
+     * Compute the similarity between two vectors, given by their co-rated values in order of indices.
+     *
+     * @param xs
+     *            co-rated values of the first vector, from position {@code from} (inclusive) to {@code to}
+     *            (exclusive)
+     * @param ys
+     *            co-rated values of the second vector, at the same positions
+     * @param ii
+     *            sum of squares of all the values of the first vector, used by cos-binary
+     * @param jj
+     *            sum of squares of all the values of the second vector, used by cos-binary
+     * @return the similarity between the two vectors; NaN if it is not computable
+     */
+    protected abstract double compute(double[] xs, double[] ys, int from, int to, double ii, double jj);
+
+    /**
+     * shrink a similarity to account for the number of co-rated entries
+     */
+    protected double shrink(double sim, int n) {
+        if (!Double.isNaN(sim) && shrinkage > 0)
+            sim *= n / (n + shrinkage + 0.0);
+        return sim;
+    }
+}
@@ -0,0 +1,297 @@
+// Copyright (C) 2015 Yong Zheng
+//
+// This file is part of CARSKit.
+//
+// CARSKit is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// CARSKit is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with CARSKit. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package carskit.generic;
+
+import happy.coding.io.Logs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Binary cache of computed similarities in the working folder (option similarity.cache), so that the same train
+ * matrix, measure and orientation are computed only once across folds, algorithms and runs. A cache file is named by
+ * the hash of all of them, and holds the computable pairs (i, j), i &lt; j, in the order in which they are computed:
+ * one record per user (item) i, i.e., i, the number of its pairs, the j's and the similarities. Cache files are
+ * mapped into memory when they are read, in segments of at most {@code SEGMENT} bytes, since a buffer cannot address
+ * more than 2GB.
+ *
+ */
+public class SimilarityCache {
+
+    // header of cache files; increase the version whenever the layout changes
+    private static final int CACHE_MAGIC = 0x53494D53; // "SIMS"
+    private static final int CACHE_VERSION = 1;
+
+    // maximum size of a mapped segment of a cache file
+    private static final long SEGMENT = 1L << 30;
+
+    /**
+     * @param idx
+     *            sorted indices of each vector
+     * @param vals
+     *            values of each vector
+     * @param setting
+     *            everything else which the similarities depend on, e.g., measure, shrinkage and orientation
+     * @return the key of the similarities of the vectors
+     */
+    public static String key(int[][] idx, double[][] vals, String setting) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(setting, StandardCharsets.UTF_8);
+        hasher.putInt(idx.length);
+        for (int i = 0; i < idx.length; i++) {
+            hasher.putInt(idx[i].length);
+            for (int k = 0; k < idx[i].length; k++) {
+                hasher.putInt(idx[i][k]);
+                hasher.putDouble(vals[i][k]);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Pass the similarities of a cache file to a sink, in the order in which they have been written. The file is
+     * checked to be complete before any similarity is passed on, since a sink cannot take them back.
+     *
+     * @return whether the cache file exists and is valid for the key
+     * @throws EOFException
+     *             if the cache file is truncated
+     */
+    public static boolean read(String path, String key, Recommender.CorrelationSink sink) throws Exception {
+        File file = new File(path);
+        if (!file.exists())
+            return false;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (!read(channel, key, null))
+                return false;
+            read(channel, key, sink);
+        }
+        return true;
+    }
+
+    /**
+     * Read the records of a cache file, and pass their similarities to a sink, or only skip them if it is null.
+     *
+     * @return whether the cache file is valid for the key
+     */
+    private static boolean read(FileChannel channel, String key, Recommender.CorrelationSink sink) throws IOException {
+        Segments segments = new Segments(channel);
+
+        ByteBuffer buf = segments.require(8);
+        if (buf.getInt() != CACHE_MAGIC || buf.getInt() != CACHE_VERSION)
+            return false;
+        int length = segments.require(4).getInt();
+        if (length < 0 || !key.equals(readString(segments.require(length), length)))
+            return false;
+
+        int[] js = new int[16];
+        double[] sims = new double[16];
+        for (int i = segments.require(4).getInt(); i >= 0; i = segments.require(4).getInt()) {
+            int n = segments.require(4).getInt();
+            if (n < 0)
+                throw new EOFException("Similarity cache is corrupt");
+            buf = segments.require(12L * n);
+            if (sink == null) {
+                buf.position(buf.position() + 12 * n);
+                continue;
+            }
+
+            if (n > js.length) {
+                js = new int[Math.max(n, js.length << 1)];
+                sims = new double[js.length];
+            }
+            buf.asIntBuffer().get(js, 0, n);
+            buf.position(buf.position() + 4 * n);
+            buf.asDoubleBuffer().get(sims, 0, n);
+            buf.position(buf.position() + 8 * n);
+
+            for (int k = 0; k < n; k++)
+                sink.accept(i, js[k], sims[k]);
+        }
+        return true;
+    }
+
+    private static String readString(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sequential reader of a file by mapped segments: a new segment is mapped from the current position whenever the
+     * current one has fewer bytes left than the next read needs, so that a record never spans two segments.
+     */
+    private static class Segments {
+        private final FileChannel channel;
+        private final long size;
+        // position in the file of the start of the current segment
+        private long base;
+        private MappedByteBuffer buf;
+
+        Segments(FileChannel channel) throws IOException {
+            this.channel = channel;
+            size = channel.size();
+        }
+
+        /**
+         * @return the current segment, with at least {@code bytes} bytes left from its position; null if the file has
+         *         fewer bytes left
+         */
+        ByteBuffer next(long bytes) throws IOException {
+            if (buf != null && buf.remaining() >= bytes)
+                return buf;
+
+            if (buf != null)
+                base += buf.position();
+            long length = Math.min(Math.max(SEGMENT, bytes), size - base);
+            if (length < bytes || length > Integer.MAX_VALUE)
+                return null;
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+            return buf;
+        }
+
+        /**
+         * @return the current segment, with at least {@code bytes} bytes left from its position
+         */
+        ByteBuffer require(long bytes) throws IOException {
+            ByteBuffer buf = next(bytes);
+            if (buf == null)
+                throw new EOFException("Similarity cache is truncated");
+            return buf;
+        }
+    }
+
+    /**
+     * Sink which writes the similarities to a cache file, and passes them on to another sink. The file is written to
+     * a temporary file first, and moved to its path by {@link #close()}, so that a cache file is always complete.
+     */
+    public static class Writer implements Recommender.CorrelationSink {
+
+        private final Recommender.CorrelationSink sink;
+        private final File file, tmp;
+        private DataOutputStream out;
+
+        // pairs of the current user (item)
+        private int row = -1, size;
+        private int[] js = new int[16];
+        private double[] sims = new double[16];
+
+        public Writer(String path, String key, Recommender.CorrelationSink sink) throws Exception {
+            this.sink = sink;
+            file = new File(path);
+
+            // a file which exists but cannot be read for the key is not replaced anyway (see close)
+            if (file.exists()) {
+                tmp = null;
+                return;
+            }
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public void accept(int i, int j, double sim) {
+            sink.accept(i, j, sim);
+            if (out == null)
+                return;
+
+            if (i != row)
+                flush();
+            row = i;
+            if (size == js.length) {
+                js = Arrays.copyOf(js, size << 1);
+                sims = Arrays.copyOf(sims, size << 1);
+            }
+            js[size] = j;
+            sims[size++] = sim;
+        }
+
+        private void flush() {
+            if (size == 0)
+                return;
+            try {
+                out.writeInt(row);
+                out.writeInt(size);
+                for (int k = 0; k < size; k++)
+                    out.writeInt(js[k]);
+                for (int k = 0; k < size; k++)
+                    out.writeDouble(sims[k]);
+            } catch (IOException e) {
+                Logs.warn("Cannot write similarity cache: " + e.getMessage());
+                abort();
+            }
+            size = 0;
+        }
+
+        /**
+         * discard the cache file, e.g., if the similarities cannot be computed
+         */
+        public void abort() {
+            if (out == null)
+                return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the temporary file is deleted anyway
+            }
+            out = null;
+            tmp.delete();
+        }
+
+        /**
+         * complete the cache file
+         */
+        public void close() throws Exception {
+            if (out == null)
+                return;
+            flush();
+            if (out == null)
+                return;
+
+            out.writeInt(-1);
+            out.close();
+            out = null;
+
+            // another run may have written the same similarities in the meantime
+            if (file.exists() || !tmp.renameTo(file))
+                tmp.delete();
+            else
+                Logs.debug("Similarity cache has been written to " + file.getPath());
+        }
+    }
+}
@@ -27,7 +27,6 @@ import librec.data.Configuration;
 import librec.data.MatrixEntry;
 import librec.data.SparseTensor;
 import librec.data.TensorEntry;
-import librec.util.FileIO;
 import librec.util.Logs;
 import librec.util.Strings;
 
@@ -84,83 +83,43 @@ public class TensorRecommender extends IterativeRecommender {
     }
     @Override
     protected Map<Measure, Double> evalRatings() throws Exception {
-        List<String> preds = null;
-        String toFile = null;
-        if (isResultsOut) {
-            preds = new ArrayList<String>(1500);
-            preds.add("# userId itemId rating prediction"); // optional: file header
-            toFile = workingPath + algoName + "-rating-predictions" + foldInfo + ".txt"; // the output-file name
-            FileIO.deleteFile(toFile); // delete possibly old files
-        }
 
-        double sum_maes = 0, sum_mses = 0, sum_r_maes = 0, sum_r_rmses = 0;
-        int numCount = 0, numPEs = 0;
+        // test ratings, in order of the test tensor
+        final int numTests = testTensor.size();
+        final int[][] keys = new int[numTests][];
+        final double[] rates = new double[numTests];
+        int n = 0;
         for (TensorEntry te : testTensor) {
-            double rate = te.get();
-
-            int u = te.key(userDimension);
-            int j = te.key(itemDimension);
-
-            if (!isTestable(u, j))
-                continue;
-
-            double pred = predict(te.keys(), true);
-            if (Double.isNaN(pred))
-                continue;
+            keys[n] = te.keys();
+            rates[n++] = te.get();
+        }
 
-            // rounding prediction to the closest rating level
-            double rPred = Math.round(pred / minRate) * minRate;
+        return evalRatings("# userId itemId rating prediction", numTests, true, new RatingTest() {
 
-            double err = Math.abs(rate - pred); // absolute predictive error
-            double r_err = Math.abs(rate - rPred);
+            @Override
+            public void evaluate(int k, RatingBlock block) throws Exception {
+                double rate = rates[k];
 
-            sum_maes += err;
-            sum_mses += err * err;
+                int u = keys[k][userDimension];
+                int j = keys[k][itemDimension];
 
-            sum_r_maes += r_err;
-            sum_r_rmses += r_err * r_err;
+                if (!isTestable(u, j))
+                    return;
 
-            numCount++;
+                double pred = predict(keys[k], true);
+                if (Double.isNaN(pred))
+                    return;
 
-            if (r_err > 1e-5)
-                numPEs++;
+                block.add(rate, pred, 0);
 
-            // output predictions
-            if (isResultsOut) {
-                // restore back to the original user/item id
-                preds.add(rateDao.getUserId(u) + " " + rateDao.getItemId(j) + " " + rate + " " + (float) pred);
-                if (preds.size() >= 1000) {
-                    FileIO.writeList(toFile, preds, true);
-                    preds.clear();
+                // output predictions
+                if (block.lines != null) {
+                    // restore back to the original user/item id
+                    block.lines.append(rateDao.getUserId(u)).append(' ').append(rateDao.getItemId(j)).append(' ')
+                            .append(rate).append(' ').append((float) pred).append('\n');
                 }
             }
-        }
-
-        if (isResultsOut && preds.size() > 0) {
-            FileIO.writeList(toFile, preds, true);
-            Logs.debug("{}{} has writeen rating predictions to {}", algoName, foldInfo, toFile);
-        }
-
-        double mae = sum_maes / numCount;
-        double rmse = Math.sqrt(sum_mses / numCount);
-
-        double r_mae = sum_r_maes / numCount;
-        double r_rmse = Math.sqrt(sum_r_rmses / numCount);
-
-        Map<Measure, Double> measures = new HashMap<>();
-        measures.put(Measure.MAE, mae);
-        // normalized MAE: useful for direct comparison among different data sets with distinct rating scales
-        measures.put(Measure.NMAE, mae / (maxRate - minRate));
-        measures.put(Measure.RMSE, rmse);
-
-        // MAE and RMSE after rounding predictions to the closest rating levels
-        measures.put(Measure.rMAE, r_mae);
-        measures.put(Measure.rRMSE, r_rmse);
-
-        // measure zero-one loss
-        measures.put(Measure.MPE, (numPEs + 0.0) / numCount);
-
-        return measures;
+        });
     }
 
     protected double predict(int[] keys, boolean bound) throws Exception {
@@ -44,13 +44,20 @@ import happy.coding.system.Dates;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import carskit.data.processor.*;
+import carskit.generic.ExecutionService;
 import carskit.generic.Recommender;
 import carskit.generic.IterativeRecommender;
 import carskit.generic.Recommender.Measure;
@@ -230,6 +237,33 @@ public class CARSKit {
         // data configuration
         ratingOptions = cf.getParamOptions("ratings.setup");
         int dataTransformation = ratingOptions.getInt("-datatransformation");
+
+        // rating threshold
+        binThold = ratingOptions.getFloat("-threshold");
+        // print full stat?
+        fullStat = (ratingOptions.getInt("-fullstat",-1) > 0)?true:false;
+
+        // parse the rating file in parallel, by the number of cpu cores specified in the evaluation setup
+        int numThreads = 1;
+        if(ratingOptions.getInt("-parallelload", -1) > 0)
+            numThreads = cf.getParamOptions("evaluation.setup").getInt("-cpu", Runtime.getRuntime().availableProcessors());
+
+        rateDao = new DataDAO(WorkingPath+"train.csv");
+        rateDao.setFullStat(fullStat);
+        rateDao.setNumThreads(numThreads);
+
+        // a binary snapshot of the loaded data is kept in the working folder, keyed by the content of the source file;
+        // full statistics are collected while parsing, hence they cannot be loaded from a snapshot, which is then
+        // neither read nor written
+        boolean snapshot = ratingOptions.getInt("-snapshot", 1) > 0 && !fullStat;
+        String snapshotPath = WorkingPath + "train.bin";
+        String snapshotKey = null;
+        rateMatrix = null;
+        if(snapshot) {
+            snapshotKey = DataDAO.hashFile(dataTransformation > 0 ? OriginalRatingDataPath : WorkingPath + "train.csv");
+            rateMatrix = rateDao.readSnapshot(snapshotPath, snapshotKey);
+        }
+
         if(dataTransformation>0) {
 
             // check whether the evaluation method is the way of train-test validation by manually supplying train and test sets
@@ -245,26 +279,28 @@ public class CARSKit {
                 testPath = evalOptions.getString("-f");
             }
 
-            DataTransformer transformer = new DataTransformer();
-            int flag_train = validateDataFormat(OriginalRatingDataPath);
-            int flag_test = -1;
-            if(testTransfer)
-                flag_test = validateDataFormat(testPath);
-            transformer.setParameters(flag_train, OriginalRatingDataPath, flag_test, testPath, WorkingPath);
-            Thread t = new Thread(transformer);
-            t.start();
-            t.join(); // for large data, the transformation and output to external file may take time!
+            // the training set is not needed if it has been loaded from the snapshot
+            if(rateMatrix == null || testTransfer) {
+                DataTransformer transformer = new DataTransformer();
+                transformer.setNumThreads(numThreads);
+                if(ratingOptions.contains("-membudget"))
+                    transformer.setMemoryBudget(ratingOptions.getLong("-membudget", 256) << 20);
+                int flag_train = validateDataFormat(OriginalRatingDataPath);
+                int flag_test = -1;
+                if (testTransfer)
+                    flag_test = validateDataFormat(testPath);
+                transformer.setParameters(flag_train, OriginalRatingDataPath, flag_test, testPath, WorkingPath);
+                Thread t = new Thread(transformer);
+                t.start();
+                t.join(); // for large data, the transformation and output to external file may take time!
+            }
         }
 
-        rateDao = new DataDAO(WorkingPath+"train.csv");
-
-        // rating threshold
-        binThold = ratingOptions.getFloat("-threshold");
-        // print full stat?
-        fullStat = (ratingOptions.getInt("-fullstat",-1) > 0)?true:false;
-        rateDao.setFullStat(fullStat);
-
-        rateMatrix = rateDao.readData(binThold);
+        if(rateMatrix == null) {
+            rateMatrix = rateDao.readData(binThold);
+            if(snapshotKey != null)
+                rateDao.writeSnapshot(snapshotPath, snapshotKey);
+        }
         rateDao.printSpecs();
 
         Recommender.rateMatrix = rateMatrix;
@@ -321,6 +357,10 @@ public class CARSKit {
 
         Recommender algo = null;
 
+        // a single run of an algorithm, which can use all the cpu cores but the current thread for parallel work
+        if (!evalOptions.getMainParam().equalsIgnoreCase("cv"))
+            ExecutionService.init(evalOptions.getInt("-cpu", Runtime.getRuntime().availableProcessors()), 1);
+
         DataSplitter ds = new DataSplitter(rateMatrix);
         SparseMatrix[] data = null;
 
@@ -335,7 +375,7 @@ public class CARSKit {
                 DataDAO testDao = new DataDAO(WorkingPath+"test.csv", rateDao.getUserIds(), rateDao.getItemIds(), rateDao.getContextIds(), rateDao.getUserItemIds(),
                         rateDao.getContextDimensionIds(), rateDao.getContextConditionIds(), rateDao.getURatedList(), rateDao.getIRatedList(),
                         rateDao.getDimConditionsList(), rateDao.getConditionDimensionMap(), rateDao.getConditionContextsList(), rateDao.getContextConditionsList(),
-                        rateDao.getUiUserIds(), rateDao.getUiItemIds());
+                        rateDao.getUiUserIds(), rateDao.getUiItemIds(), rateDao.getUserItemIndex());
 
                 SparseMatrix testData = testDao.readData(binThold);
                 data = new SparseMatrix[] { rateMatrix, testData};
@@ -353,20 +393,28 @@ public class CARSKit {
         algo = getRecommender(data, -1);
         algo.execute();
 
-        printEvalInfo(algo, algo.measures);
+        printEvalInfo(algo.algoName, algo.toString(), algo.measures, algo.cutoffMeasures);
     }
 
     /**
      * print out the evaluation information for a specific algorithm
+     *
+     * @param algoName
+     *            name of the algorithm
+     * @param algoInfo
+     *            configuration of the algorithm, i.e., {@code Recommender.toString()}
+     * @param cutoffMs
+     *            ranking measures at the extra cutoffs of option -cutoffs, or null
      */
-    private void printEvalInfo(Recommender algo, Map<Measure, Double> ms) throws Exception {
+    private void printEvalInfo(String algoName, String algoInfo, Map<Measure, Double> ms, Map<String, Double> cutoffMs)
+            throws Exception {
 
-        String result = Recommender.getEvalInfo(ms);
+        String result = Recommender.getEvalInfo(ms, cutoffMs);
         // we add quota symbol to indicate the textual format of time
         String time = String.format("'%s','%s'", Dates.parse(ms.get(Measure.TrainTime).longValue()),
                 Dates.parse(ms.get(Measure.TestTime).longValue()));
         // double commas as the separation of results and configuration
-        String evalInfo = String.format("Final Results by %s, %s, %s, Time: %s%s", algo.algoName, result, algo.toString(), time,
+        String evalInfo = String.format("Final Results by %s, %s, %s, Time: %s%s", algoName, result, algoInfo, time,
                 (outputOptions.contains("--measures-only") ? "" : "\n"));
 
         Logs.info(evalInfo);
@@ -390,39 +438,91 @@ public class CARSKit {
         int kFold = params.getInt("-k", 5);
         boolean isParallelFold = params.isOn("-p", true);
 
-        DataSplitter ds = new DataSplitter(rateMatrix, kFold);
+        // maximum number of folds which are materialized and run at the same time
+        int maxFolds = 1;
+        if (isParallelFold)
+            maxFolds = params.getInt("-maxfolds", params.getInt("-cpu", Runtime.getRuntime().availableProcessors()));
 
-        Thread[] ts = new Thread[kFold];
-        Recommender[] algos = new Recommender[kFold];
+        // folds share the cpu cores with the parallel work of algorithms
+        int numCPUs = params.getInt("-cpu", Runtime.getRuntime().availableProcessors());
+        ExecutionService service = ExecutionService.init(numCPUs, Math.min(maxFolds, kFold));
 
-        for (int i = 0; i < kFold; i++) {
-            Recommender algo = getRecommender(ds.getKthFold(i + 1), i + 1);
+        final DataSplitter ds = new DataSplitter(rateMatrix, kFold);
 
-            algos[i] = algo;
-            ts[i] = new Thread(algo);
-            ts[i].start();
+        // name and configuration of the algorithm, taken from the 1st fold
+        final String[] algoInfo = new String[2];
+        // ranking measures at the extra cutoffs of each fold
+        final List<Map<String, Double>> cutoffMeasures = new ArrayList<>(Collections.<Map<String, Double>> nCopies(
+                kFold, null));
 
-            if (!isParallelFold)
-                ts[i].join();
+        // each fold builds its data only when it starts, and releases it once the measures are collected
+        List<Callable<Map<Measure, Double>>> folds = new ArrayList<>(kFold);
+        for (int i = 0; i < kFold; i++) {
+            final int fold = i + 1;
+            folds.add(new Callable<Map<Measure, Double>>() {
+
+                @Override
+                public Map<Measure, Double> call() throws Exception {
+                    SparseMatrix[] data = ds.getKthFold(fold);
+                    Recommender algo;
+                    // static settings of recommenders are initialized by the first one created
+                    synchronized (CARSKit.this) {
+                        algo = getRecommender(data, fold);
+                    }
+                    data = null;
+
+                    // an exception of the fold reaches the future, rather than being logged by run()
+                    algo.execute();
+
+                    if (fold == 1) {
+                        algoInfo[0] = algo.algoName;
+                        algoInfo[1] = algo.toString();
+                    }
+                    cutoffMeasures.set(fold - 1, algo.cutoffMeasures);
+                    return algo.measures;
+                }
+            });
         }
 
-
-        if (isParallelFold)
-            for (Thread t : ts)
-                t.join();
-
-        // average performance of k-fold
+        // average performance of k-fold; a failed fold aborts the run, since the average of the other folds is not
+        // the performance of k-fold
         Map<Measure, Double> avgMeasure = new HashMap<>();
-        for (Recommender algo : algos) {
-            //Logs.info("Measures: "+algo.measures.entrySet().size());
-            for (Entry<Measure, Double> en : algo.measures.entrySet()) {
+        Map<String, Double> avgCutoffMeasure = null;
+        List<Future<Map<Measure, Double>>> futures = service.submitFolds(folds);
+        for (int i = 0; i < kFold; i++) {
+            Map<Measure, Double> measures;
+            try {
+                measures = futures.get(i).get();
+            } catch (ExecutionException e) {
+                for (Future<Map<Measure, Double>> f : futures)
+                    f.cancel(true);
+
+                Throwable cause = e.getCause();
+                Logs.error("Fold [{}] failed: {}", i + 1, cause);
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
+                throw e;
+            }
+            for (Entry<Measure, Double> en : measures.entrySet()) {
                 Measure m = en.getKey();
                 double val = avgMeasure.containsKey(m) ? avgMeasure.get(m) : 0.0;
                 avgMeasure.put(m, val + en.getValue() / kFold);
             }
+
+            // the extra cutoffs are the same in all the folds, and so is the order of their measures
+            Map<String, Double> foldCutoffMeasure = cutoffMeasures.get(i);
+            if (foldCutoffMeasure != null) {
+                if (avgCutoffMeasure == null)
+                    avgCutoffMeasure = new LinkedHashMap<>();
+                for (Entry<String, Double> en : foldCutoffMeasure.entrySet()) {
+                    String m = en.getKey();
+                    double val = avgCutoffMeasure.containsKey(m) ? avgCutoffMeasure.get(m) : 0.0;
+                    avgCutoffMeasure.put(m, val + en.getValue() / kFold);
+                }
+            }
         }
 
-        printEvalInfo(algos[0], avgMeasure);
+        printEvalInfo(algoInfo[0], algoInfo[1], avgMeasure, avgCutoffMeasure);
     }
 
 